@@ -0,0 +1,101 @@
+package io.microdev.source.text;
+
+import android.test.AndroidTestCase;
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.Random;
+
+public class PieceTableEditableBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "PieceTableBenchmark";
+
+    private static final String[] WORDS = { "int", "return", "value", "offset", "length", "public", "static", "void", "final", "private", "(", ")", "{", "}", ";", "=", "+", "i", "j", "text", "\n" };
+
+    private static final int TEXT_LENGTH = 10 * 1024 * 1024;
+
+    private static final int INSERTS = 2000;
+    private static final int SNAPSHOTS = 20;
+
+    public void testRandomInserts() throws Exception {
+        String text = buildText();
+
+        // Same positions for both, so each does the same work
+        int[] positions = new int[INSERTS];
+        Random random = new Random(42);
+        for (int i = 0; i < INSERTS; i++) {
+            positions[i] = random.nextInt(TEXT_LENGTH + i);
+        }
+
+        Editable builder = new SpannableStringBuilder(text);
+        Editable table = new PieceTableEditable(text);
+
+        long timeBuilder = insertAll(builder, positions);
+        long timeTable = insertAll(table, positions);
+
+        Log.i(TAG, String.format("%d random inserts into %d chars: SpannableStringBuilder %.2f ms, piece table %.2f ms (%d pieces)", INSERTS, TEXT_LENGTH, timeBuilder / 1e6, timeTable / 1e6, ((PieceTableEditable) table).getPieceCount()));
+
+        // Both end up with the same text
+        assertEquals(builder.length(), table.length());
+        assertTrue(TextUtils.equals(builder, table));
+    }
+
+    public void testSnapshots() throws Exception {
+        String text = buildText();
+
+        Editable builder = new SpannableStringBuilder(text);
+        PieceTableEditable table = new PieceTableEditable(text);
+
+        // Scatter some edits so the table has pieces to copy
+        Random random = new Random(42);
+        for (int i = 0; i < INSERTS; i++) {
+            int position = random.nextInt(builder.length());
+            builder.insert(position, "x");
+            table.insert(position, "x");
+        }
+
+        // What snapshotting the text used to cost: a full copy
+        long timeStart = System.nanoTime();
+        for (int i = 0; i < SNAPSHOTS; i++) {
+            char[] chars = new char[builder.length()];
+            TextUtils.getChars(builder, 0, chars.length, chars, 0);
+        }
+        long timeCopy = (System.nanoTime() - timeStart) / SNAPSHOTS;
+
+        timeStart = System.nanoTime();
+        CharSequence snapshot = null;
+        for (int i = 0; i < SNAPSHOTS; i++) {
+            snapshot = table.snapshot();
+        }
+        long timeSnapshot = (System.nanoTime() - timeStart) / SNAPSHOTS;
+
+        Log.i(TAG, String.format("snapshot of %d chars: copy %.2f ms, piece table %.3f ms", builder.length(), timeCopy / 1e6, timeSnapshot / 1e6));
+
+        assertTrue(TextUtils.equals(builder, snapshot));
+    }
+
+    private static long insertAll(Editable text, int[] positions) {
+        long timeStart = System.nanoTime();
+
+        for (int position : positions) {
+            text.insert(position, "x");
+        }
+
+        return System.nanoTime() - timeStart;
+    }
+
+    private static String buildText() {
+        // Source-like text of words, spaces and line breaks
+        Random random = new Random(7);
+        StringBuilder builder = new StringBuilder(TEXT_LENGTH + 16);
+        while (builder.length() < TEXT_LENGTH) {
+            builder.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        builder.setLength(TEXT_LENGTH);
+
+        return builder.toString();
+    }
+
+}
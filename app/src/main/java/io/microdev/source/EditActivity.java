@@ -17,9 +17,11 @@ import android.text.InputType;
 import android.text.Layout;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
+import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.text.style.RelativeSizeSpan;
 import android.text.style.StyleSpan;
+import android.util.Log;
 import android.view.Gravity;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -31,6 +33,7 @@ import android.widget.CompoundButton;
 import android.widget.EditText;
 import android.widget.FrameLayout;
 import android.widget.LinearLayout;
+import android.widget.ProgressBar;
 import android.widget.RadioButton;
 import android.widget.RadioGroup;
 import android.widget.RelativeLayout;
@@ -41,11 +44,25 @@ import com.gmail.tylerfilla.widget.panview.OnPanStoppedListener;
 import com.gmail.tylerfilla.widget.panview.PanView;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import io.microdev.source.io.DocumentLoader;
+import io.microdev.source.io.DocumentSaver;
+import io.microdev.source.io.PagedDocument;
+import io.microdev.source.io.UndoJournal;
+import io.microdev.source.search.OccurrenceIndex;
+import io.microdev.source.search.OccurrencePatcher;
+import io.microdev.source.search.SearchEngine;
+import io.microdev.source.syntax.Grammar;
+import io.microdev.source.syntax.GrammarCache;
 import io.microdev.source.util.Callback;
 import io.microdev.source.util.IdGen;
 import io.microdev.source.widget.PseudoPopupMenu;
@@ -55,20 +72,63 @@ import static io.microdev.source.util.DimenUtil.dpToPxI;
 
 public class EditActivity extends AppCompatActivity {
 
+    private static final String TAG = "EditActivity";
+
+    // Files larger than this are edited a window of pages at a time rather than loaded whole
+    private static final long LARGE_FILE_SIZE = 16l * 1024l * 1024l;
+
+    // Pages in a large file window (the viewport stays within the middle one)
+    private static final int WINDOW_PAGES = 3;
+
+    // Syntax grammars by file extension: the name each is cached under, and its definition
+    private static final String[] GRAMMAR_EXTENSIONS = { "java", "json", "yaml", "yml", "xml", "sh", "bash" };
+    private static final String[] GRAMMAR_NAMES = { "java", "json", "yaml", "yaml", "xml", "shell", "shell" };
+    private static final int[] GRAMMAR_DEFINITIONS = { R.raw.grammar_java, R.raw.grammar_json, R.raw.grammar_yaml, R.raw.grammar_yaml, R.raw.grammar_xml, R.raw.grammar_shell, R.raw.grammar_shell };
+
     private File file;
     private String filename;
 
     private Toolbar appBar;
     private PanView panView;
     private Editor editor;
+    private ProgressBar loadProgress;
+
+    // Whether the whole document is in, as saving before then would write out only what has loaded so far
+    private boolean loaded;
+
+    private UndoJournal undoJournal;
+
+    // Large file being edited through a window, and which of its pages the editor holds
+    private PagedDocument pagedDocument;
+    private int windowPageFirst;
+    private int windowPageCount;
+    private Object[] windowPageMarkers;
+    private int windowEditVersion;
+    private boolean withinWindowShift;
 
     private PopupMoreOptions popupMoreOptions;
     private PopupContextFindReplace popupContextFindReplace;
 
+    private SearchEngine searchEngine;
+
+    private DocumentSaver documentSaver;
+
+    private GrammarCache grammarCache;
+
+    // Grammar the editor is (or is about to be) highlighting with
+    private String grammarName;
+
     private boolean withinFindReplace;
+    private boolean withinFindReplaceReplace;
+
+    // Whether the search of the find session in progress stopped early, leaving occurrences past that point unfound
+    private boolean findReplaceTimedOut;
     private int findReplaceSelectionStart;
     private int findReplaceSelectionEnd;
 
+    // Receives responses for the find session in progress, if any
+    private Callback<EditorFindResult.Response> findResponseCallback;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -79,7 +139,7 @@ public class EditActivity extends AppCompatActivity {
         // Check if a file URI was passed
         if (getIntent().getData() != null) {
             // Get file for URI
-            file = new File(getIntent().getDataString());
+            file = new File(getIntent().getData().getPath());
 
             // Get name of file
             filename = file.getName();
@@ -95,10 +155,53 @@ public class EditActivity extends AppCompatActivity {
         appBar = (Toolbar) findViewById(R.id.activity_edit_app_bar);
         panView = (PanView) findViewById(R.id.activity_edit_panview);
         editor = (Editor) findViewById(R.id.activity_edit_editor);
+        loadProgress = (ProgressBar) findViewById(R.id.activity_edit_load_progress);
 
         // Set action bar to custom app bar
         setSupportActionBar(appBar);
 
+        // Create search engine for find and replace
+        searchEngine = new SearchEngine();
+
+        // Compiled grammars are kept in the cache, so each one is only ever compiled once
+        grammarCache = new GrammarCache(getCacheDir());
+
+        // Create saver, which reports back on the UI thread
+        documentSaver = new DocumentSaver(new DocumentSaver.Listener() {
+
+            @Override
+            public void onSaved(File file, final int version, final long length, final long modified) {
+                runOnUiThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        // Saved file is the journal's new base, but only if nothing was typed since the snapshot
+                        // (a later save will catch up otherwise, and until then the journal still matches the old base)
+                        // Large files aren't journaled
+                        if (undoJournal != null && pagedDocument == null && version == editor.getEditVersion()) {
+                            undoJournal.checkpoint(length, modified);
+                        }
+                    }
+
+                });
+            }
+
+            @Override
+            public void onSaveFailed(final File file, int version, IOException e) {
+                Log.e(TAG, "Unable to save " + file, e);
+
+                runOnUiThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        Snackbar.make(editor, getString(R.string.activity_edit_snackbar_save_fail, file.getName()), Snackbar.LENGTH_LONG).show();
+                    }
+
+                });
+            }
+
+        });
+
         // Enable action bar up arrow
         appBar.setNavigationIcon(android.support.v7.appcompat.R.drawable.abc_ic_ab_back_mtrl_am_alpha);
 
@@ -111,15 +214,9 @@ public class EditActivity extends AppCompatActivity {
 
             @Override
             public void onTextChanged(CharSequence s, int start, int before, int count) {
-                // If within find and replace operation
-                if (withinFindReplace) {
-                    // Cancel find and replace operation
-                    withinFindReplace = false;
-
-                    // Dismiss the find and replace context popup if it is showing
-                    if (popupContextFindReplace.isShowing()) {
-                        popupContextFindReplace.dismiss();
-                    }
+                // Bring the find session's occurrences up to date with any edit but its own replacements
+                if (!withinFindReplaceReplace && findResponseCallback != null) {
+                    findResponseCallback.ring(new EditorFindResult.Response(EditorFindResult.Response.Type.EDIT, new int[] { start, before, count }));
                 }
             }
 
@@ -137,6 +234,9 @@ public class EditActivity extends AppCompatActivity {
 
             @Override
             public void onPanChanged(final int l, final int t, final int oldl, final int oldt) {
+                // Move large file window along if the viewport nears its edge
+                checkWindow();
+
                 // If within find and replace operation
                 if (withinFindReplace) {
                     // Dismiss the find and replace context popup if it is showing
@@ -167,6 +267,11 @@ public class EditActivity extends AppCompatActivity {
                         } else {
                             // Cancel find and replace operation
                             withinFindReplace = false;
+
+                            // Stop looking for more occurrences
+                            searchEngine.cancel();
+                            editor.setFindHighlights(null);
+                            findResponseCallback = null;
                         }
                     }
                 }
@@ -176,6 +281,69 @@ public class EditActivity extends AppCompatActivity {
 
         // Establish current filename
         setFilename(filename);
+
+        // If editing a file
+        if (file != null) {
+            // Open the file's undo journal
+            undoJournal = new UndoJournal(UndoJournal.getJournalFile(getCacheDir(), file));
+
+            // Pick up a large file document from the activity we replace, if any
+            pagedDocument = (PagedDocument) getLastCustomNonConfigurationInstance();
+
+            boolean wasLoaded = savedInstanceState != null && savedInstanceState.getBoolean("loaded", false);
+
+            if (wasLoaded && pagedDocument != null) {
+                // Large file document carries on as it was (its window is shown again once state is restored)
+                loaded = true;
+                editor.setSaveEnabled(false);
+            } else if (wasLoaded && file.length() <= LARGE_FILE_SIZE) {
+                // Editor restores its own text, so just recover journaling
+                loaded = true;
+                editor.setUndoJournal(undoJournal);
+            } else {
+                // Whatever was part way in starts over, or the editor would be left with a part of the file to save
+                if (pagedDocument != null) {
+                    pagedDocument.close();
+                    pagedDocument = null;
+                }
+
+                // Load file and recover journaled edits (a large file reopens where its window was, as its document
+                // doesn't outlive the process)
+                loadFile(savedInstanceState == null ? 0 : savedInstanceState.getInt("windowPageFirst", 0));
+            }
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // Stop search worker
+        searchEngine.shutdown();
+
+        // Let saves in flight finish, but take no more (a large file document stays open for them unless handed over)
+        if (pagedDocument != null && !isChangingConfigurations()) {
+            final PagedDocument document = pagedDocument;
+
+            documentSaver.shutdown(new Runnable() {
+
+                @Override
+                public void run() {
+                    document.close();
+                }
+
+            });
+        } else {
+            documentSaver.shutdown();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        // Get any edits in progress into the journal in case we don't come back
+        editor.commitUndoGroup();
     }
 
     @Override
@@ -184,6 +352,20 @@ public class EditActivity extends AppCompatActivity {
 
         // Store filename
         outState.putString("filename", filename);
+
+        // Store whether the document was all in
+        outState.putBoolean("loaded", loaded);
+
+        // Store large file window position
+        outState.putInt("windowPageFirst", windowPageFirst);
+    }
+
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        // Hand large file document over to the activity that replaces us, with window edits folded in
+        commitWindow();
+
+        return pagedDocument;
     }
 
     @Override
@@ -192,6 +374,11 @@ public class EditActivity extends AppCompatActivity {
 
         // Retrieve filename
         setFilename(savedInstanceState.getString("filename", filename));
+
+        // Show large file window where it was (the editor keeps no state of its own for a window)
+        if (loaded && pagedDocument != null && pagedDocument.getPageCount() > 0) {
+            showWindow(Math.min(savedInstanceState.getInt("windowPageFirst", 0), pagedDocument.getPageCount() - 1));
+        }
     }
 
     @Override
@@ -268,6 +455,11 @@ public class EditActivity extends AppCompatActivity {
             // Enter rename prompt sequence
             promptRenameFile();
             break;
+        case R.id.activity_edit_popup_more_options_item_save:
+            // Save item selected
+            // Write out the document in the background
+            saveFile();
+            break;
         case R.id.activity_edit_popup_more_options_item_goto:
             // Goto item selected
             // Not implemented
@@ -285,16 +477,102 @@ public class EditActivity extends AppCompatActivity {
         return filename;
     }
 
+    private void updateLexer() {
+        // Find grammar for the file's extension
+        int dot = filename.lastIndexOf('.');
+        int index = dot == -1 ? -1 : Arrays.asList(GRAMMAR_EXTENSIONS).indexOf(filename.substring(dot + 1).toLowerCase(Locale.US));
+        final String name = index == -1 ? null : GRAMMAR_NAMES[index];
+
+        // Only swap lexers (which means lexing everything again) if the kind of file changed
+        if (name == null ? grammarName == null : name.equals(grammarName)) {
+            return;
+        }
+        grammarName = name;
+
+        // Old highlighting doesn't apply any more
+        if (editor.getLexer() != null) {
+            editor.setLexer(null);
+        }
+
+        if (name == null) {
+            return;
+        }
+
+        // Grammar already loaded in this process
+        Grammar grammar = GrammarCache.getLoaded(name);
+        if (grammar != null) {
+            editor.setLexer(grammar);
+            return;
+        }
+
+        final int definition = GRAMMAR_DEFINITIONS[index];
+
+        // Read compiled tables from the cache (or compile them the first time) in the background
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                Grammar grammar = null;
+
+                try {
+                    grammar = grammarCache.load(name, readRawText(definition));
+                } catch (IOException e) {
+                    // File is shown without highlighting
+                    Log.w(TAG, "Unable to load grammar " + name, e);
+                }
+
+                final Grammar grammarLoaded = grammar;
+
+                runOnUiThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        // Only if the file is still of the same kind
+                        if (grammarLoaded != null && name.equals(grammarName)) {
+                            editor.setLexer(grammarLoaded);
+                        }
+                    }
+
+                });
+            }
+
+        }).start();
+    }
+
+    private String readRawText(int id) throws IOException {
+        Reader reader = new InputStreamReader(getResources().openRawResource(id), "UTF-8");
+
+        try {
+            StringBuilder text = new StringBuilder();
+
+            char[] buffer = new char[4096];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
     private void setFilename(String filename) {
         // Change filename
         this.filename = filename;
 
         // Is a file set?
         if (file != null) {
-            // Rename physical file
-            file.renameTo(new File(file.getParentFile(), filename));
+            // Rename physical file, and save to it from now on
+            File fileRenamed = new File(file.getParentFile(), filename);
+            if (file.renameTo(fileRenamed)) {
+                file = fileRenamed;
+            }
         }
 
+        // Highlight syntax for the kind of file it now is
+        updateLexer();
+
         // Set activity title
         setTitle(filename);
 
@@ -310,6 +588,377 @@ public class EditActivity extends AppCompatActivity {
         }
     }
 
+    private void saveFile() {
+        // Nowhere to save to without a file, and nothing whole to save until it has loaded
+        if (file == null || !loaded) {
+            return;
+        }
+
+        // Fold window edits into a large file, which writes untouched pages straight from the original
+        if (pagedDocument != null) {
+            commitWindow();
+
+            documentSaver.save(file, pagedDocument.snapshot(), editor.getEditVersion());
+            return;
+        }
+
+        // Get edits in progress into the journal first, so none of them end up after the checkpoint this save leads to
+        editor.commitUndoGroup();
+
+        // Snapshot text for the saver (sharing chars with the editor where it can, otherwise a plain copy)
+        documentSaver.save(file, editor.snapshotText(), editor.getEditVersion());
+    }
+
+    private void loadFile(int pageFirst) {
+        final File fileLoad = file;
+
+        // No saving until the whole file is in (and never, if it fails to load)
+        setLoaded(false);
+
+        // Large files get a window instead, starting at the page given
+        if (fileLoad.length() > LARGE_FILE_SIZE) {
+            loadLargeFile(pageFirst);
+            return;
+        }
+
+        // Show load progress, and keep the keyboard away until the whole file is in
+        loadProgress.setProgress(0);
+        loadProgress.setVisibility(View.VISIBLE);
+        editor.setFocusable(false);
+
+        // Read file and journal off the UI thread
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                // Note state of file as loaded, which journal checkpoints refer to
+                final long baseLength = fileLoad.length();
+                final long baseModified = fileLoad.lastModified();
+
+                // Length of text already shown early, if any
+                final int[] previewLength = { 0 };
+
+                // Read file contents (a file that doesn't exist yet is just empty)
+                CharSequence textLoad = "";
+                if (fileLoad.exists()) {
+                    try {
+                        textLoad = DocumentLoader.load(fileLoad, new DocumentLoader.Listener() {
+
+                            @Override
+                            public void onPreview(final CharSequence preview) {
+                                // Show the start of the file while the rest decodes
+                                runOnUiThread(new Runnable() {
+
+                                    @Override
+                                    public void run() {
+                                        editor.loadText(preview);
+                                        previewLength[0] = preview.length();
+                                    }
+
+                                });
+                            }
+
+                            @Override
+                            public void onProgress(final long bytesRead, final long bytesTotal) {
+                                runOnUiThread(new Runnable() {
+
+                                    @Override
+                                    public void run() {
+                                        loadProgress.setProgress((int) (loadProgress.getMax() * bytesRead / Math.max(1l, bytesTotal)));
+                                    }
+
+                                });
+                            }
+
+                        });
+                    } catch (IOException e) {
+                        // Leave the journal alone, as it may hold edits we couldn't load against
+                        Log.e(TAG, "Unable to load " + fileLoad, e);
+
+                        runOnUiThread(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                loadProgress.setVisibility(View.GONE);
+                                editor.setFocusableInTouchMode(true);
+
+                                Snackbar.make(editor, getString(R.string.activity_edit_snackbar_load_fail, fileLoad.getName()), Snackbar.LENGTH_LONG).show();
+                            }
+
+                        });
+
+                        return;
+                    }
+                }
+
+                // Read journaled edits made since the file was in this state
+                List<UndoJournal.Entry> entries = null;
+                try {
+                    entries = UndoJournal.readFromLastCheckpoint(undoJournal.getFile(), baseLength, baseModified);
+                } catch (IOException e) {
+                    // Start a new journal from the file as it is
+                    Log.w(TAG, "Unable to read undo journal for " + fileLoad, e);
+                }
+
+                final CharSequence text = textLoad;
+                final List<UndoJournal.Entry> entriesReplay = entries;
+
+                runOnUiThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        // Show file contents, adding only what the preview left out (posted runnables run in order)
+                        if (previewLength[0] > 0) {
+                            editor.appendLoadedText(text.subSequence(previewLength[0], text.length()));
+                        } else {
+                            editor.loadText(text);
+                        }
+
+                        // Rebuild document and undo history from the journal, or start a new one from here
+                        if (entriesReplay != null) {
+                            editor.replayUndoJournal(entriesReplay);
+                        } else {
+                            undoJournal.checkpoint(baseLength, baseModified);
+                        }
+
+                        // Journal edits from now on
+                        editor.setUndoJournal(undoJournal);
+
+                        // Loading done
+                        loadProgress.setVisibility(View.GONE);
+                        editor.setFocusableInTouchMode(true);
+                        setLoaded(true);
+                    }
+
+                });
+            }
+
+        }).start();
+    }
+
+    private void setLoaded(boolean loaded) {
+        this.loaded = loaded;
+
+        // Update more options popup
+        if (popupMoreOptions != null) {
+            popupMoreOptions.update();
+        }
+    }
+
+    private void loadLargeFile(final int pageFirst) {
+        // Show indexing progress, and keep the keyboard away until there's a window to edit
+        loadProgress.setProgress(0);
+        loadProgress.setVisibility(View.VISIBLE);
+        editor.setFocusable(false);
+
+        // Window text is only a part of the document, so the editor mustn't save or restore it as if it were the whole
+        editor.setSaveEnabled(false);
+
+        try {
+            pagedDocument = PagedDocument.open(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open " + file, e);
+
+            loadProgress.setVisibility(View.GONE);
+            editor.setFocusableInTouchMode(true);
+
+            Snackbar.make(editor, getString(R.string.activity_edit_snackbar_load_fail, file.getName()), Snackbar.LENGTH_LONG).show();
+            return;
+        }
+
+        // Update more options popup (find and replace is off for windows)
+        if (popupMoreOptions != null) {
+            popupMoreOptions.update();
+        }
+
+        final PagedDocument document = pagedDocument;
+
+        // Index pages in the background, showing the first window once it fills up
+        document.index(new PagedDocument.Listener() {
+
+            @Override
+            public void onIndexProgress(final long bytesIndexed, final long bytesTotal) {
+                runOnUiThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        loadProgress.setProgress((int) (loadProgress.getMax() * bytesIndexed / Math.max(1l, bytesTotal)));
+
+                        // Show first window as soon as there are pages enough (or all there will be)
+                        if (windowPageCount == 0 && document.getPageCount() > 0 && (document.getPageCount() >= pageFirst + WINDOW_PAGES || document.isIndexed())) {
+                            showWindow(Math.min(pageFirst, document.getPageCount() - 1));
+                            editor.setFocusableInTouchMode(true);
+                        }
+
+                        // Done indexing
+                        if (document.isIndexed()) {
+                            loadProgress.setVisibility(View.GONE);
+                            setLoaded(true);
+                        }
+                    }
+
+                });
+            }
+
+            @Override
+            public void onIndexFailed(IOException e) {
+                Log.e(TAG, "Unable to index " + document.getFile(), e);
+
+                runOnUiThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        loadProgress.setVisibility(View.GONE);
+                        editor.setFocusableInTouchMode(true);
+
+                        Snackbar.make(editor, getString(R.string.activity_edit_snackbar_load_fail, document.getFile().getName()), Snackbar.LENGTH_LONG).show();
+                    }
+
+                });
+            }
+
+        });
+    }
+
+    private void showWindow(int pageFirst) {
+        // Keep edits to the window we're leaving
+        commitWindow();
+
+        // Gather window text, noting where each page starts
+        int pageCount = Math.min(WINDOW_PAGES, pagedDocument.getPageCount() - pageFirst);
+        int[] pageStarts = new int[pageCount];
+        StringBuilder text = new StringBuilder();
+        try {
+            for (int i = 0; i < pageCount; i++) {
+                pageStarts[i] = text.length();
+                text.append(pagedDocument.getPage(pageFirst + i));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read pages of " + pagedDocument.getFile(), e);
+
+            Snackbar.make(editor, getString(R.string.activity_edit_snackbar_load_fail, pagedDocument.getFile().getName()), Snackbar.LENGTH_LONG).show();
+            return;
+        }
+
+        // Show window, numbering lines as in the whole document
+        editor.loadText(text);
+        editor.setLineNumberBase(pagedDocument.getLineForPage(pageFirst));
+
+        // Mark page boundaries, which move with edits so the window can be split back into pages later
+        Editable editable = editor.getText();
+        windowPageMarkers = new Object[pageCount];
+        for (int i = 1; i < pageCount; i++) {
+            windowPageMarkers[i] = new Object();
+            editable.setSpan(windowPageMarkers[i], pageStarts[i], pageStarts[i], Spanned.SPAN_POINT_POINT);
+        }
+
+        windowPageFirst = pageFirst;
+        windowPageCount = pageCount;
+        windowEditVersion = editor.getEditVersion();
+    }
+
+    private void commitWindow() {
+        // Nothing to do without a window, or if it hasn't been edited
+        if (pagedDocument == null || windowPageCount == 0 || editor.getEditVersion() == windowEditVersion) {
+            return;
+        }
+
+        // Hand back pages that changed
+        Editable text = editor.getText();
+        for (int i = 0; i < windowPageCount; i++) {
+            String page = text.subSequence(getWindowPageStart(i), getWindowPageStart(i + 1)).toString();
+
+            try {
+                if (page.equals(pagedDocument.getPage(windowPageFirst + i))) {
+                    continue;
+                }
+            } catch (IOException e) {
+                // Can't tell, so keep ours
+                Log.w(TAG, "Unable to read page " + (windowPageFirst + i) + " of " + pagedDocument.getFile(), e);
+            }
+
+            pagedDocument.setPage(windowPageFirst + i, page);
+        }
+
+        windowEditVersion = editor.getEditVersion();
+    }
+
+    private void checkWindow() {
+        // Only for a large file window, and not while we're moving it ourselves
+        if (pagedDocument == null || windowPageCount == 0 || withinWindowShift) {
+            return;
+        }
+
+        Layout layout = editor.getLayout();
+        if (layout == null) {
+            return;
+        }
+
+        // Find text offsets at the top and bottom of the viewport
+        int top = Math.max(0, panView.getPanY() - editor.getTop() - editor.getPaddingTop());
+        int bottom = top + panView.getHeight();
+        int offsetTop = layout.getLineStart(layout.getLineForVertical(top));
+        int offsetBottom = layout.getLineEnd(layout.getLineForVertical(bottom));
+
+        // Move window a page back or ahead when the viewport reaches into its first or last page (not both at once,
+        // which could only happen with a middle page edited down to almost nothing)
+        int middleStart = getWindowPageStart(1);
+        int lastStart = getWindowPageStart(windowPageCount - 1);
+        if (offsetTop < middleStart && offsetBottom <= lastStart && windowPageFirst > 0) {
+            shiftWindow(-1);
+        } else if (offsetBottom > lastStart && offsetTop >= middleStart && windowPageFirst + windowPageCount < pagedDocument.getPageCount()) {
+            shiftWindow(1);
+        }
+    }
+
+    private void shiftWindow(int direction) {
+        withinWindowShift = true;
+
+        // A page that stays in the window either way (now second when moving ahead, first when moving back)
+        int anchor = direction > 0 ? 1 : 0;
+        int anchorTopBefore = getWindowPageTop(anchor);
+
+        showWindow(windowPageFirst + direction);
+
+        // Pan by as much as that page moved, so the text in view stays put
+        int anchorTopAfter = getWindowPageTop(anchor - direction);
+        panView.panTo(panView.getPanX(), panView.getPanY() + anchorTopAfter - anchorTopBefore);
+
+        withinWindowShift = false;
+    }
+
+    private int getWindowPageStart(int page) {
+        // Offset where a window page starts in the editor (or the end, for the page after the last)
+        if (page <= 0) {
+            return 0;
+        } else if (page >= windowPageCount) {
+            return editor.getText().length();
+        }
+
+        return editor.getText().getSpanStart(windowPageMarkers[page]);
+    }
+
+    private int getWindowPageTop(int page) {
+        int offset = getWindowPageStart(page);
+
+        // Use layout if it's up to date, which it isn't straight after new text when the editor wraps its content
+        Layout layout = editor.getLayout();
+        if (layout != null) {
+            return layout.getLineTop(layout.getLineForOffset(offset));
+        }
+
+        // Otherwise go by lines, which are a row each without word wrap
+        Editable text = editor.getText();
+        int lines = 0;
+        for (int i = 0; i < offset; i++) {
+            if (text.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+
+        return lines * editor.getLineHeight();
+    }
+
     private void setWordWrap(boolean wordWrap) {
         // Get editor layout parameters
         ViewGroup.LayoutParams layoutParams = editor.getLayoutParams();
@@ -600,6 +1249,11 @@ public class EditActivity extends AppCompatActivity {
     }
 
     private void promptFindReplace() {
+        // A large file's editor holds only a window of it, so searching there would pass off that window as the whole
+        if (pagedDocument != null) {
+            return;
+        }
+
         // Display find and replace dialog
         displayDialogFindReplace(new Callback<FindReplaceDialogResult>() {
 
@@ -608,8 +1262,33 @@ public class EditActivity extends AppCompatActivity {
                 // Appears to detach keyboard from editor enough to not make scrolling spazzy
                 ((InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE)).hideSoftInputFromWindow(editor.getWindowToken(), InputMethodManager.HIDE_NOT_ALWAYS);
 
+                // Compile search as a regular expression if asked to
+                Pattern regex = null;
+                if (resultDialog.isEnableRegex()) {
+                    try {
+                        // Anchors work per line, and case folding matches that of literal search
+                        regex = Pattern.compile(resultDialog.getSearch(), Pattern.MULTILINE | (resultDialog.isEnableMatchCase() ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+                    } catch (PatternSyntaxException e) {
+                        // Notify the user
+                        Snackbar.make(editor, getString(R.string.activity_edit_snackbar_find_replace_result_text_invalid, e.getDescription()), Snackbar.LENGTH_LONG).show();
+                        return;
+                    }
+                }
+
+                // Split search into terms if looking for several at once, one per line
+                String[] terms = new String[] { resultDialog.getSearch() };
+                if (resultDialog.isEnableMultiTerm()) {
+                    List<String> termList = new ArrayList<>();
+                    for (String term : resultDialog.getSearch().split("\n")) {
+                        if (term.length() > 0) {
+                            termList.add(term);
+                        }
+                    }
+                    terms = termList.toArray(new String[termList.size()]);
+                }
+
                 // Find occurrences in editor
-                findInEditor(resultDialog.getSearch(), 0, false, !resultDialog.isEnableMatchCase(), new Callback<EditorFindResult>() {
+                findInEditor(terms, !resultDialog.isEnableMatchCase(), regex, resultDialog.isEnableReplace() ? resultDialog.getReplace() : null, new Callback<EditorFindResult>() {
 
                     @Override
                     public void ring(final EditorFindResult resultFind) {
@@ -618,6 +1297,10 @@ public class EditActivity extends AppCompatActivity {
                             // Cancel find and replace operation
                             withinFindReplace = false;
 
+                            // Stop highlighting occurrences and following edits
+                            editor.setFindHighlights(null);
+                            findResponseCallback = null;
+
                             // Dismiss find and replace dialog if it is showing
                             if (popupContextFindReplace.isShowing()) {
                                 popupContextFindReplace.dismiss();
@@ -629,7 +1312,7 @@ public class EditActivity extends AppCompatActivity {
                             // If no occurrences were found
                             if (resultFind.getOccurrenceTotal() == 0) {
                                 // Notify the user
-                                Snackbar.make(editor, getString(R.string.activity_edit_snackbar_find_replace_result_text_fail, resultDialog.getSearch()), Snackbar.LENGTH_SHORT).show();
+                                Snackbar.make(editor, getString(R.string.activity_edit_snackbar_find_replace_result_text_fail, resultDialog.getSearch().replace('\n', ' ')), Snackbar.LENGTH_SHORT).show();
                             } else {
                                 // No occurrences remain, notify user
                                 Snackbar.make(editor, R.string.activity_edit_snackbar_find_replace_result_text_end, Snackbar.LENGTH_SHORT).show();
@@ -643,36 +1326,28 @@ public class EditActivity extends AppCompatActivity {
 
                             // Set find and replace bounds
                             findReplaceSelectionStart = offset;
-                            findReplaceSelectionEnd = offset + resultDialog.getSearch().length();
+                            findReplaceSelectionEnd = offset + resultFind.getLength();
 
                             // Get popup content view
                             View popupContentView = popupContextFindReplace.getContentView();
 
                             // Get contents and stuff
                             View buttonReplace = popupContentView.findViewById(R.id.activity_edit_popup_find_replace_item_replace);
+                            View buttonReplaceAll = popupContentView.findViewById(R.id.activity_edit_popup_find_replace_item_replace_all);
                             View buttonNext = popupContentView.findViewById(R.id.activity_edit_popup_find_replace_item_next);
                             View buttonPrevious = popupContentView.findViewById(R.id.activity_edit_popup_find_replace_item_previous);
 
-                            // Show replace button if replacing, else hide it
+                            // Show replace buttons if replacing, else hide them
                             if (resultDialog.isEnableReplace()) {
                                 buttonReplace.setVisibility(View.VISIBLE);
+                                buttonReplaceAll.setVisibility(View.VISIBLE);
                             } else {
                                 buttonReplace.setVisibility(View.GONE);
+                                buttonReplaceAll.setVisibility(View.GONE);
                             }
 
-                            // Show next button if a valid occurrence follows, else hide it
-                            if (resultFind.getNextValidForward() != -1) {
-                                buttonNext.setVisibility(View.VISIBLE);
-                            } else {
-                                buttonNext.setVisibility(View.GONE);
-                            }
-
-                            // Show previous button if a valid occurrence precedes, else hide it
-                            if (resultFind.getNextValidBackward() != -1) {
-                                buttonPrevious.setVisibility(View.VISIBLE);
-                            } else {
-                                buttonPrevious.setVisibility(View.GONE);
-                            }
+                            // Show occurrence count and navigation buttons for this result
+                            updatePopupContextFindReplace(resultFind);
 
                             // Listen for replace button clicks
                             buttonReplace.setOnClickListener(new View.OnClickListener() {
@@ -682,11 +1357,37 @@ public class EditActivity extends AppCompatActivity {
                                     // Dismiss popup
                                     popupContextFindReplace.dismiss();
 
-                                    // Replace text
-                                    editor.getText().replace(findReplaceSelectionStart, findReplaceSelectionEnd, resultDialog.getReplace());
+                                    // Get replacement text (for a regex, with group references expanded by the search worker when it matched)
+                                    String replacement = resultFind.getReplacement() != null ? resultFind.getReplacement() : resultDialog.getReplace();
+
+                                    // Replace text (without cancelling the search still streaming in occurrences)
+                                    withinFindReplaceReplace = true;
+                                    editor.getText().replace(findReplaceSelectionStart, findReplaceSelectionEnd, replacement);
+                                    withinFindReplaceReplace = false;
 
                                     // Replace occurrence
-                                    resultFind.dispatchResponse(new EditorFindResult.Response(EditorFindResult.Response.Type.REPLACE, resultDialog.getReplace().length() - resultDialog.getSearch().length()));
+                                    resultFind.dispatchResponse(new EditorFindResult.Response(EditorFindResult.Response.Type.REPLACE, replacement.length() - (findReplaceSelectionEnd - findReplaceSelectionStart)));
+                                }
+
+                            });
+
+                            // Listen for replace all button clicks
+                            buttonReplaceAll.setOnClickListener(new View.OnClickListener() {
+
+                                @Override
+                                public void onClick(View v) {
+                                    // Dismiss popup
+                                    popupContextFindReplace.dismiss();
+
+                                    // Replace all occurrences once they are all known
+                                    resultFind.dispatchResponse(new EditorFindResult.Response(EditorFindResult.Response.Type.REPLACE_ALL, new Callback<OccurrenceIndex>() {
+
+                                        @Override
+                                        public void ring(OccurrenceIndex occurrenceIndex) {
+                                            replaceAllInEditor(occurrenceIndex, resultDialog.getReplace(), resultFind.getReplacements());
+                                        }
+
+                                    }));
                                 }
 
                             });
@@ -824,6 +1525,30 @@ public class EditActivity extends AppCompatActivity {
         inputEnableMatchCaseLayoutParams.addRule(RelativeLayout.BELOW, inputReplace.getId());
         inputEnableMatchCase.setLayoutParams(inputEnableMatchCaseLayoutParams);
 
+        // Checkbox input to enable regular expressions
+        final CheckBox inputEnableRegex = new CheckBox(this);
+        inputEnableRegex.setId(IdGen.next());
+        inputEnableRegex.setText(R.string.activity_edit_dialog_find_replace_input_enable_regex_hint);
+        inputEnableRegex.setChecked(false);
+
+        // Set layout parameters for enable regex input
+        RelativeLayout.LayoutParams inputEnableRegexLayoutParams = new RelativeLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT);
+        inputEnableRegexLayoutParams.topMargin = dpToPxI(this, 5f);
+        inputEnableRegexLayoutParams.addRule(RelativeLayout.BELOW, inputEnableMatchCase.getId());
+        inputEnableRegex.setLayoutParams(inputEnableRegexLayoutParams);
+
+        // Checkbox input to search for several terms at once
+        final CheckBox inputEnableMultiTerm = new CheckBox(this);
+        inputEnableMultiTerm.setId(IdGen.next());
+        inputEnableMultiTerm.setText(R.string.activity_edit_dialog_find_replace_input_enable_multi_term_hint);
+        inputEnableMultiTerm.setChecked(false);
+
+        // Set layout parameters for enable multiple terms input
+        RelativeLayout.LayoutParams inputEnableMultiTermLayoutParams = new RelativeLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT);
+        inputEnableMultiTermLayoutParams.topMargin = dpToPxI(this, 5f);
+        inputEnableMultiTermLayoutParams.addRule(RelativeLayout.BELOW, inputEnableRegex.getId());
+        inputEnableMultiTerm.setLayoutParams(inputEnableMultiTermLayoutParams);
+
         // Checkbox input to enable replacement
         final CheckBox inputEnableReplace = new CheckBox(this);
         inputEnableReplace.setId(IdGen.next());
@@ -833,20 +1558,22 @@ public class EditActivity extends AppCompatActivity {
         // Set layout parameters for enable replace input
         RelativeLayout.LayoutParams inputEnableReplaceLayoutParams = new RelativeLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT);
         inputEnableReplaceLayoutParams.topMargin = dpToPxI(this, 5f);
-        inputEnableReplaceLayoutParams.addRule(RelativeLayout.BELOW, inputEnableMatchCase.getId());
+        inputEnableReplaceLayoutParams.addRule(RelativeLayout.BELOW, inputEnableMultiTerm.getId());
         inputEnableReplace.setLayoutParams(inputEnableReplaceLayoutParams);
 
         // Add stuff to content layout
         content.addView(inputSearch);
         content.addView(inputReplace);
         content.addView(inputEnableMatchCase);
+        content.addView(inputEnableRegex);
+        content.addView(inputEnableMultiTerm);
         content.addView(inputEnableReplace);
 
         // Add content to dialog
         builder.setView(content);
 
         // A place for all checkbox states
-        final boolean[] checkState = new boolean[2];
+        final boolean[] checkState = new boolean[4];
 
         // Set up cancel button
         builder.setNegativeButton(R.string.activity_edit_dialog_find_replace_button_negative_text, null);
@@ -862,6 +1589,8 @@ public class EditActivity extends AppCompatActivity {
                 result.setReplace(inputReplace.getText().toString());
                 result.setEnableMatchCase(checkState[0]);
                 result.setEnableReplace(checkState[1]);
+                result.setEnableRegex(checkState[2]);
+                result.setEnableMultiTerm(checkState[3]);
 
                 // Send result to caller
                 callback.ring(result);
@@ -896,6 +1625,41 @@ public class EditActivity extends AppCompatActivity {
 
         });
 
+        // Listen for changes on enable regex input
+        inputEnableRegex.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean b) {
+                // Deposit enable regex state
+                checkState[2] = b;
+
+                // A regex can't also be a list of terms
+                if (b) {
+                    inputEnableMultiTerm.setChecked(false);
+                }
+            }
+
+        });
+
+        // Listen for changes on enable multiple terms input
+        inputEnableMultiTerm.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean b) {
+                // Deposit enable multiple terms state
+                checkState[3] = b;
+
+                // Let search input take a term per line
+                inputSearch.setSingleLine(!b);
+
+                // A list of terms can't also be a regex
+                if (b) {
+                    inputEnableRegex.setChecked(false);
+                }
+            }
+
+        });
+
         // Listen for changes on enable replace input
         inputEnableReplace.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
 
@@ -1039,126 +1803,99 @@ public class EditActivity extends AppCompatActivity {
         }
     }
 
-    private void findInEditor(String search, int start, boolean reverse, boolean ignoreCase, final Callback<EditorFindResult> callback) {
-        // Get editor text
-        String text = editor.getText().toString();
-
-        // Deal with case insensitivity
-        if (ignoreCase) {
-            text = text.toLowerCase();
-            search = search.toLowerCase();
-        }
+    private void updatePopupContextFindReplace(EditorFindResult resultFind) {
+        // Get popup content view
+        View popupContentView = popupContextFindReplace.getContentView();
 
-        // List to store occurrence indices
-        final List<Integer> occurrenceOffsetList = new ArrayList<>();
+        // Get contents and stuff
+        TextView textCount = (TextView) popupContentView.findViewById(R.id.activity_edit_popup_find_replace_item_count);
+        View buttonNext = popupContentView.findViewById(R.id.activity_edit_popup_find_replace_item_next);
+        View buttonPrevious = popupContentView.findViewById(R.id.activity_edit_popup_find_replace_item_previous);
 
-        // Iterate over occurrences
-        int offset = start;
-        while ((offset = reverse ? text.lastIndexOf(search, offset) : text.indexOf(search, offset)) > -1) {
-            // Store occurrence index
-            occurrenceOffsetList.add(offset);
+        // Show running occurrence count (marked as a lower bound while the search is still going)
+        if (resultFind.getTerm() != null) {
+            // Also show which term this is and how many of it there are
+            textCount.setText(getString(resultFind.isOccurrenceTotalFinal() ? R.string.activity_edit_popup_find_replace_item_count_text_term : R.string.activity_edit_popup_find_replace_item_count_text_term_partial, resultFind.getOccurrenceCurrent() + 1, resultFind.getOccurrenceTotal(), resultFind.getTerm(), resultFind.getTermCount()));
+        } else {
+            textCount.setText(getString(resultFind.isOccurrenceTotalFinal() ? R.string.activity_edit_popup_find_replace_item_count_text : R.string.activity_edit_popup_find_replace_item_count_text_partial, resultFind.getOccurrenceCurrent() + 1, resultFind.getOccurrenceTotal()));
+        }
 
-            // Start next search from the next character
-            offset += reverse ? -1 : 1;
+        // Show next button if a valid occurrence follows, else hide it
+        if (resultFind.getNextValidForward() != -1) {
+            buttonNext.setVisibility(View.VISIBLE);
+        } else {
+            buttonNext.setVisibility(View.GONE);
         }
 
-        // Notify caller if no occurrences were found with an invalid result
-        if (occurrenceOffsetList.isEmpty()) {
-            callback.ring(EditorFindResult.buildInvalidReference(occurrenceOffsetList.size()));
-            return;
+        // Show previous button if a valid occurrence precedes, else hide it
+        if (resultFind.getNextValidBackward() != -1) {
+            buttonPrevious.setVisibility(View.VISIBLE);
+        } else {
+            buttonPrevious.setVisibility(View.GONE);
         }
+    }
+
+    private void findInEditor(final String[] terms, final boolean ignoreCase, Pattern regex, String replace, final Callback<EditorFindResult> callback) {
+        // A new search, which hasn't stopped early yet
+        findReplaceTimedOut = false;
+
+        // Snapshot editor text for the search worker (a single copy, no matter the case sensitivity)
+        char[] text = new char[editor.length()];
+        TextUtils.getChars(editor.getText(), 0, text.length, text, 0);
+
+        // Index to store occurrences (grows as the search worker reports them)
+        final OccurrenceIndex occurrenceIndex = new OccurrenceIndex();
+
+        // Highlight occurrences on screen as they come in
+        editor.setFindHighlights(occurrenceIndex);
+
+        // Expanded replacement of each regex occurrence, by index (regex sessions end on edits, so indices never move)
+        final List<String> replacements = regex != null && replace != null ? new ArrayList<String>() : null;
 
         // Final package to hold iterator across callbacks
         final int[] i = new int[] { 0 };
 
-        // Create result to represent first occurrence
-        EditorFindResult resultFirst = new EditorFindResult();
+        // Whether the search worker is done, and whether we're waiting on it for another occurrence (starting with the first)
+        final boolean[] complete = new boolean[] { false };
+        final boolean[] waiting = new boolean[] { true };
 
-        // Configure first result
-        resultFirst.setOffset(occurrenceOffsetList.get(i[0]));
-        resultFirst.setOccurrenceCurrent(i[0]);
-        resultFirst.setOccurrenceTotal(occurrenceOffsetList.size());
+        // Keeps occurrences in step with edits (only literal search has a bounded window to rescan)
+        final OccurrencePatcher patcher = regex == null ? new OccurrencePatcher(terms, ignoreCase) : null;
 
-        // If more than one occurrence found
-        if (occurrenceOffsetList.size() > 1) {
-            // Next valid forward occurrence is adjacent in forward direction
-            resultFirst.setNextValidForward(1);
-        }
+        // Final package to hold the worker listener, which picks up again after edits
+        final SearchEngine.Listener[] listener = new SearchEngine.Listener[1];
+
+        // Replace all request waiting on the search worker to finish
+        final List<Callback<OccurrenceIndex>> replaceAllPending = new ArrayList<>(1);
 
-        // Create callback to receive first response
-        resultFirst.setResponseCallback(new Callback<EditorFindResult.Response>() {
+        // Create callback to receive responses
+        final Callback<EditorFindResult.Response> responseCallback = new Callback<EditorFindResult.Response>() {
 
             @Override
             public void ring(EditorFindResult.Response response) {
                 // Next valid occurrences in either direction
-                int nextValidForward = -1;
-                int nextValidBackward = -1;
-
-                // Search forward for next valid occurrence
-                int searchForward = i[0];
-                while (true) {
-                    // Increment iterator
-                    searchForward++;
-
-                    // If we hit upper boundary
-                    if (searchForward > occurrenceOffsetList.size() - 1) {
-                        nextValidForward = -1;
-                        break;
-                    }
-
-                    // If this is a valid occurrence
-                    if (occurrenceOffsetList.get(searchForward) != -1) {
-                        nextValidForward = searchForward;
-                        break;
-                    }
-                }
-
-                // Search backward for next valid occurrence
-                int searchBackward = i[0];
-                while (true) {
-                    // Decrement iterator
-                    searchBackward--;
-
-                    // If we hit lower boundary
-                    if (searchBackward < 0) {
-                        nextValidBackward = -1;
-                        break;
-                    }
-
-                    // If this is a valid occurrence
-                    if (occurrenceOffsetList.get(searchBackward) != -1) {
-                        nextValidBackward = searchBackward;
-                        break;
-                    }
-                }
+                int nextValidForward = occurrenceIndex.nextValid(i[0]);
+                int nextValidBackward = occurrenceIndex.previousValid(i[0]);
 
                 // Switch against response
                 switch (response.getType()) {
                 case REPLACE:
-                    // Mark this offset as invalid (replaced) without affecting other occurrences
-                    occurrenceOffsetList.set(i[0], -1);
-
-                    // Shift following valid occurrences by difference due to replacement
-                    for (int j = i[0]; j < occurrenceOffsetList.size(); j++) {
-                        // Skip current
-                        if (j == i[0]) {
-                            continue;
-                        }
-
-                        // For replacements, the payload is the difference between new and old lengths
-                        if (occurrenceOffsetList.get(j) != -1) {
-                            occurrenceOffsetList.set(j, occurrenceOffsetList.get(j) + (int) response.getPayload());
-                        }
-                    }
+                    // Mark this occurrence as invalid (replaced) and shift all following ones, including those yet to be reported
+                    // For replacements, the payload is the difference between new and old lengths
+                    occurrenceIndex.invalidate(i[0], (int) response.getPayload());
 
                     // Move to next valid occurrence (try forward, then backward)
                     if (nextValidForward != -1) {
                         i[0] = nextValidForward;
                     } else if (nextValidBackward != -1) {
                         i[0] = nextValidBackward;
+                    } else if (!complete[0]) {
+                        // Pick up with the next occurrence the search worker reports
+                        waiting[0] = true;
+                        return;
                     } else {
                         // Notify caller of end of occurrences
-                        callback.ring(EditorFindResult.buildInvalidReference(occurrenceOffsetList.size()));
+                        callback.ring(EditorFindResult.buildInvalidReference(occurrenceIndex.size()));
                         return;
                     }
                     break;
@@ -1170,97 +1907,432 @@ public class EditActivity extends AppCompatActivity {
                     // Move backwards to next valid occurrence
                     i[0] = nextValidBackward;
                     break;
+                case REPLACE_ALL:
+                    // For replace all, the payload receives the complete occurrence index
+                    @SuppressWarnings("unchecked")
+                    Callback<OccurrenceIndex> replaceAll = (Callback<OccurrenceIndex>) response.getPayload();
+
+                    if (complete[0]) {
+                        replaceAll.ring(occurrenceIndex);
+                    } else {
+                        // Hold on to it until the search worker is done
+                        replaceAllPending.add(replaceAll);
+                    }
+                    return;
+                case EDIT:
+                    // For edits, the payload is the changed range as reported to a text watcher
+                    int[] edit = (int[]) response.getPayload();
+                    followEdit(edit[0], edit[1], edit[2]);
+                    return;
                 }
 
-                // Search forward again for next valid occurrence
-                searchForward = i[0];
-                while (true) {
-                    // Increment iterator
-                    searchForward++;
+                // Call back with next result, using this same callback for its response to enable recursive iteration
+                callback.ring(buildFindResult(occurrenceIndex, terms, replacements, i[0], complete[0], this));
+            }
 
-                    // If we hit upper boundary
-                    if (searchForward > occurrenceOffsetList.size() - 1) {
-                        nextValidForward = -1;
-                        break;
-                    }
+            private void followEdit(int start, int before, int count) {
+                // Regex matches can reach arbitrarily far, so there's no window to rescan and the session ends
+                if (patcher == null) {
+                    withinFindReplace = false;
+                    searchEngine.cancel();
+                    editor.setFindHighlights(null);
+                    findResponseCallback = null;
 
-                    // If this is a valid occurrence
-                    if (occurrenceOffsetList.get(searchForward) != -1) {
-                        nextValidForward = searchForward;
-                        break;
+                    // Dismiss the find and replace context popup if it is showing
+                    if (popupContextFindReplace.isShowing()) {
+                        popupContextFindReplace.dismiss();
                     }
+                    return;
                 }
 
-                // Search backward again for next valid occurrence
-                searchBackward = i[0];
-                while (true) {
-                    // Decrement iterator
-                    searchBackward--;
+                // Where the current occurrence ends up, if the edit leaves it alone
+                int currentOffset = -1;
+                if (i[0] < occurrenceIndex.size()) {
+                    int offset = occurrenceIndex.getOffset(i[0]);
 
-                    // If we hit lower boundary
-                    if (searchBackward < 0) {
-                        nextValidBackward = -1;
-                        break;
+                    if (offset + occurrenceIndex.getLength(i[0]) <= start) {
+                        currentOffset = offset;
+                    } else if (offset >= start + before) {
+                        currentOffset = offset + count - before;
                     }
+                }
+
+                if (complete[0]) {
+                    // Patch occurrences around the edit, leaving the rest be
+                    patcher.patch(occurrenceIndex, editor.getText(), start, before, count);
+                } else {
+                    // Same for occurrences already in, while the worker carries on (its later ones are brought up to date as they come)
+                    patcher.follow(occurrenceIndex, editor.getText(), start, before, count);
+                }
+
+                // Find current occurrence again, or what now follows where it was
+                i[0] = Math.min(occurrenceIndex.firstEndingAfter(currentOffset != -1 ? currentOffset : start), occurrenceIndex.size() - 1);
+                boolean moved = currentOffset == -1 || i[0] == -1 || occurrenceIndex.getOffset(i[0]) != currentOffset;
+
+                // Settle on the nearest valid occurrence (try forward, then backward)
+                if (i[0] != -1 && !occurrenceIndex.isValid(i[0])) {
+                    int nextValidForward = occurrenceIndex.nextValid(i[0]);
+                    i[0] = nextValidForward != -1 ? nextValidForward : occurrenceIndex.previousValid(i[0]);
+                }
+
+                if (i[0] == -1) {
+                    i[0] = 0;
 
-                    // If this is a valid occurrence
-                    if (occurrenceOffsetList.get(searchBackward) != -1) {
-                        nextValidBackward = searchBackward;
-                        break;
+                    if (complete[0]) {
+                        // Notify caller the edit took out the last occurrence with an invalid result
+                        callback.ring(EditorFindResult.buildInvalidReference(occurrenceIndex.size()));
+                    } else if (popupContextFindReplace.isShowing()) {
+                        // Nothing to present until the worker turns something up
+                        popupContextFindReplace.dismiss();
                     }
+                    return;
                 }
 
-                // Prepare next result
-                EditorFindResult resultNext = new EditorFindResult();
+                // Keep presented occurrence bounds in step with the text
+                if (withinFindReplace) {
+                    findReplaceSelectionStart = occurrenceIndex.getOffset(i[0]);
+                    findReplaceSelectionEnd = findReplaceSelectionStart + occurrenceIndex.getLength(i[0]);
+
+                    if (moved) {
+                        // The edit took out the presented occurrence, so its popup has nothing to point at
+                        if (popupContextFindReplace.isShowing()) {
+                            popupContextFindReplace.dismiss();
+                        }
+                    } else {
+                        final Callback<EditorFindResult.Response> responseCallback = this;
+
+                        // Update count and move popup along with the occurrence once the editor has laid out the edit
+                        editor.post(new Runnable() {
 
-                // Configure result
-                resultNext.setOffset(occurrenceOffsetList.get(i[0]));
-                resultNext.setOccurrenceCurrent(i[0]);
-                resultNext.setOccurrenceTotal(occurrenceOffsetList.size());
-                resultNext.setNextValidBackward(nextValidBackward);
-                resultNext.setNextValidForward(nextValidForward);
+                            @Override
+                            public void run() {
+                                if (editor.getFindHighlights() == occurrenceIndex && i[0] < occurrenceIndex.size()) {
+                                    refreshFindResult(buildFindResult(occurrenceIndex, terms, replacements, i[0], complete[0], responseCallback));
+                                }
+                            }
 
-                // Iterate over occurrences
-                for (int i = 0; i < occurrenceOffsetList.size(); i++) {
-                    // Flag each occurrence as either valid or invalid
-                    resultNext.setOccurrenceValid(i, occurrenceOffsetList.get(i) != -1);
+                        });
+                    }
                 }
+            }
+
+        };
+
+        // Receives occurrences from the search worker
+        listener[0] = new SearchEngine.Listener() {
+
+            @Override
+            public void onOccurrences(final SearchEngine.Search search, final int[] offsets, final int[] lengths, final int[] occurrenceTerms, final String[] occurrenceReplacements) {
+                runOnUiThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        // Ignore stragglers from a cancelled search
+                        if (search.isCancelled()) {
+                            return;
+                        }
+
+                        // Where the current occurrence is, as rescans of text edited since the snapshot can move it along the index
+                        int currentOffset = !waiting[0] && i[0] < occurrenceIndex.size() ? occurrenceIndex.getOffset(i[0]) : -1;
+
+                        if (patcher != null) {
+                            // Store occurrences as found in the snapshot, brought up to date with edits since
+                            patcher.add(occurrenceIndex, editor.getText(), offsets, lengths, occurrenceTerms);
+                        } else {
+                            // Store occurrences as found in the snapshot (index accounts for replacements since)
+                            for (int j = 0; j < offsets.length; j++) {
+                                occurrenceIndex.add(offsets[j], lengths[j], occurrenceTerms[j]);
+                            }
+                        }
+
+                        // Keep expanded replacements alongside
+                        if (replacements != null) {
+                            replacements.addAll(Arrays.asList(occurrenceReplacements));
+                        }
 
-                // Use this same callback for next result, enabling recursive iteration
-                resultNext.setResponseCallback(this);
+                        // Highlight any new occurrences on screen
+                        editor.invalidate();
 
-                // Call back with next result
-                callback.ring(resultNext);
+                        if (waiting[0]) {
+                            // Nothing left valid before these, so call back with the first one right away (if edits left any)
+                            int first = occurrenceIndex.nextValid(-1);
+                            if (first != -1) {
+                                i[0] = first;
+                                waiting[0] = false;
+                                callback.ring(buildFindResult(occurrenceIndex, terms, replacements, i[0], false, responseCallback));
+                            }
+                        } else {
+                            // Find current occurrence again
+                            i[0] = findOccurrence(occurrenceIndex, i[0], currentOffset);
+
+                            // Update count and navigation of current occurrence
+                            if (i[0] < occurrenceIndex.size()) {
+                                refreshFindResult(buildFindResult(occurrenceIndex, terms, replacements, i[0], false, responseCallback));
+                            }
+                        }
+                    }
+
+                });
             }
 
-        });
+            @Override
+            public void onComplete(final SearchEngine.Search search, int total) {
+                runOnUiThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        // Ignore stragglers from a cancelled search
+                        if (search.isCancelled()) {
+                            return;
+                        }
+
+                        int currentOffset = !waiting[0] && i[0] < occurrenceIndex.size() ? occurrenceIndex.getOffset(i[0]) : -1;
+
+                        // Rescan text edited ahead of the worker, which it has now gone past
+                        if (patcher != null) {
+                            patcher.finish(occurrenceIndex, editor.getText());
+                        }
+
+                        complete[0] = true;
+
+                        // Carry out a replace all that was waiting on us
+                        if (!replaceAllPending.isEmpty()) {
+                            replaceAllPending.remove(0).ring(occurrenceIndex);
+                            return;
+                        }
+
+                        if (waiting[0] && occurrenceIndex.getValidCount() > 0) {
+                            // Edited text turned up occurrences after all, so call back with the first one
+                            i[0] = occurrenceIndex.nextValid(-1);
+                            waiting[0] = false;
+                            callback.ring(buildFindResult(occurrenceIndex, terms, replacements, i[0], true, responseCallback));
+                        } else if (waiting[0] || occurrenceIndex.getValidCount() == 0) {
+                            // Notify caller there are no (more) occurrences with an invalid result
+                            waiting[0] = false;
+                            callback.ring(EditorFindResult.buildInvalidReference(occurrenceIndex.size()));
+                        } else {
+                            // Count is now final
+                            i[0] = findOccurrence(occurrenceIndex, i[0], currentOffset);
+                            refreshFindResult(buildFindResult(occurrenceIndex, terms, replacements, i[0], true, responseCallback));
+                        }
+                    }
+
+                });
+            }
+
+            @Override
+            public void onTimeout(final SearchEngine.Search search) {
+                runOnUiThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        // Ignore stragglers from a cancelled search
+                        if (search.isCancelled()) {
+                            return;
+                        }
+
+                        // Whatever was found before the pattern blew up is all there will be
+                        complete[0] = true;
+                        findReplaceTimedOut = true;
+
+                        // Carry out a replace all that was waiting on us with what we have (which ends the session, and
+                        // tells the user it stopped short)
+                        if (!replaceAllPending.isEmpty()) {
+                            replaceAllPending.remove(0).ring(occurrenceIndex);
+                            return;
+                        }
+
+                        if (waiting[0] && !occurrenceIndex.isEmpty()) {
+                            // Notify caller there are no more occurrences with an invalid result
+                            waiting[0] = false;
+                            callback.ring(EditorFindResult.buildInvalidReference(occurrenceIndex.size()));
+                        } else if (!occurrenceIndex.isEmpty()) {
+                            // Count is now final
+                            refreshFindResult(buildFindResult(occurrenceIndex, terms, replacements, i[0], true, responseCallback));
+                        }
+
+                        // Notify the user
+                        Snackbar.make(editor, R.string.activity_edit_snackbar_find_replace_result_text_timeout, Snackbar.LENGTH_LONG).show();
+                    }
+
+                });
+            }
+
+        };
+
+        // Follow edits made during this session
+        findResponseCallback = responseCallback;
+
+        // Search in the background, starting a fresh search
+        if (regex != null) {
+            searchEngine.searchRegex(text, text.length, regex, replace, listener[0]);
+        } else {
+            searchEngine.search(text, text.length, terms, ignoreCase, listener[0]);
+        }
+    }
+
+    private void replaceAllInEditor(OccurrenceIndex occurrenceIndex, String replace, List<String> replacements) {
+        // Get editor text
+        Editable text = editor.getText();
+
+        // First and last occurrences not already replaced
+        int first = occurrenceIndex.nextValid(-1);
+        int last = occurrenceIndex.previousValid(occurrenceIndex.size());
+
+        int count = occurrenceIndex.getValidCount();
+
+        if (count > 0) {
+            // Only the text from the first occurrence to the end of the last one changes
+            int rangeStart = occurrenceIndex.getOffset(first);
+            int rangeEnd = occurrenceIndex.getOffset(last) + occurrenceIndex.getLength(last);
+
+            // Copy range out once rather than reading it a char at a time
+            char[] chars = new char[rangeEnd - rangeStart];
+            TextUtils.getChars(text, rangeStart, rangeEnd, chars, 0);
+
+            // Size builder up front from occurrence count and length change (exact for a single term, a good guess otherwise)
+            int lengthDelta = replace.length() - (replacements == null ? occurrenceIndex.getLength(first) : 0);
+            StringBuilder builder = new StringBuilder((int) Math.max(16, Math.min(Integer.MAX_VALUE - 8, chars.length + (long) count * lengthDelta)));
+
+            // Build new text in one pass, copying what lies between occurrences and substituting each occurrence
+            int position = rangeStart;
+            for (int j = first; j != -1; j = occurrenceIndex.nextValid(j)) {
+                int offset = occurrenceIndex.getOffset(j);
+                int length = occurrenceIndex.getLength(j);
+
+                builder.append(chars, position - rangeStart, offset - position);
+
+                // Literal replacement, or with group references as the search worker expanded them
+                builder.append(replacements == null ? replace : replacements.get(j));
+                position = offset + length;
+            }
+
+            // Close off any edits in progress so the replacement gets an undo entry all its own
+            editor.commitUndoGroup();
+
+            // Commit new text as a single change (a single layout and a single undo entry)
+            withinFindReplaceReplace = true;
+            text.replace(rangeStart, rangeEnd, builder);
+            withinFindReplaceReplace = false;
+
+            editor.commitUndoGroup();
+
+            // Put cursor after the last replacement
+            editor.setSelection(rangeStart + builder.length());
+        }
+
+        // End find and replace operation
+        withinFindReplace = false;
+        searchEngine.cancel();
+        editor.setFindHighlights(null);
+        findResponseCallback = null;
 
-        // Call back with first result
-        callback.ring(resultFirst);
+        // Re-enable editor focus
+        editor.setFocusable(true);
+
+        // Notify the user (saying so if the search stopped before reaching every occurrence)
+        if (findReplaceTimedOut) {
+            Snackbar.make(editor, getResources().getQuantityString(R.plurals.activity_edit_snackbar_find_replace_result_text_replace_all_timeout, count, count), Snackbar.LENGTH_LONG).show();
+        } else {
+            Snackbar.make(editor, getResources().getQuantityString(R.plurals.activity_edit_snackbar_find_replace_result_text_replace_all, count, count), Snackbar.LENGTH_SHORT).show();
+        }
+    }
+
+    private void refreshFindResult(EditorFindResult resultFind) {
+        // Only matters while an occurrence is being presented
+        if (!withinFindReplace) {
+            return;
+        }
+
+        updatePopupContextFindReplace(resultFind);
+
+        // Re-layout popup around its new contents
+        if (popupContextFindReplace.isShowing()) {
+            showPopupContextFindReplace();
+        }
+    }
+
+    private static int findOccurrence(OccurrenceIndex occurrenceIndex, int index, int offset) {
+        // Index of the occurrence that was at the given offset (or what now follows it), after rescans may have moved it along
+        if (offset == -1 || (index < occurrenceIndex.size() && occurrenceIndex.getOffset(index) == offset)) {
+            return index;
+        }
+
+        return Math.max(0, Math.min(occurrenceIndex.firstEndingAfter(offset), occurrenceIndex.size() - 1));
+    }
+
+    private static EditorFindResult buildFindResult(OccurrenceIndex occurrenceIndex, String[] terms, List<String> replacements, int index, boolean complete, Callback<EditorFindResult.Response> responseCallback) {
+        // Prepare result
+        EditorFindResult result = new EditorFindResult();
+
+        // Configure result
+        result.setOffset(occurrenceIndex.getOffset(index));
+        result.setLength(occurrenceIndex.getLength(index));
+        result.setOccurrenceCurrent(index);
+        result.setOccurrenceTotal(occurrenceIndex.size());
+        result.setOccurrenceTotalFinal(complete);
+        result.setNextValidBackward(occurrenceIndex.previousValid(index));
+        result.setNextValidForward(occurrenceIndex.nextValid(index));
+
+        // Label occurrences with their term when looking for several
+        if (terms.length > 1) {
+            result.setTerm(terms[occurrenceIndex.getTerm(index)]);
+            result.setTermCount(occurrenceIndex.getTermCount(occurrenceIndex.getTerm(index)));
+        }
+
+        // Regex replacements come already expanded
+        if (replacements != null) {
+            result.setReplacement(replacements.get(index));
+            result.setReplacements(replacements);
+        }
+
+        // Validity of each occurrence is looked up in the index
+        result.setOccurrenceIndex(occurrenceIndex);
+
+        // Set callback to receive response
+        result.setResponseCallback(responseCallback);
+
+        return result;
     }
 
     private static class EditorFindResult {
 
         private int offset;
+        private int length;
         private int occurrenceCurrent;
         private int occurrenceTotal;
+        private boolean occurrenceTotalFinal;
+
+        private String term;
+        private int termCount;
+
+        private String replacement;
+        private List<String> replacements;
 
         private int nextValidBackward;
         private int nextValidForward;
 
-        private Map<Integer, Boolean> validityMap;
+        private OccurrenceIndex occurrenceIndex;
 
         private Callback<Response> responseCallback;
 
         public EditorFindResult() {
             offset = -1;
+            length = 0;
             occurrenceCurrent = -1;
             occurrenceTotal = 0;
+            occurrenceTotalFinal = true;
+
+            term = null;
+            termCount = 0;
+
+            replacement = null;
+            replacements = null;
 
             nextValidBackward = -1;
             nextValidForward = -1;
 
-            validityMap = new HashMap<>();
+            occurrenceIndex = null;
         }
 
         public int getOffset() {
@@ -1271,6 +2343,14 @@ public class EditActivity extends AppCompatActivity {
             this.offset = offset;
         }
 
+        public int getLength() {
+            return length;
+        }
+
+        public void setLength(int length) {
+            this.length = length;
+        }
+
         public int getOccurrenceCurrent() {
             return occurrenceCurrent;
         }
@@ -1287,6 +2367,46 @@ public class EditActivity extends AppCompatActivity {
             this.occurrenceTotal = occurrenceTotal;
         }
 
+        public boolean isOccurrenceTotalFinal() {
+            return occurrenceTotalFinal;
+        }
+
+        public void setOccurrenceTotalFinal(boolean occurrenceTotalFinal) {
+            this.occurrenceTotalFinal = occurrenceTotalFinal;
+        }
+
+        public String getTerm() {
+            return term;
+        }
+
+        public void setTerm(String term) {
+            this.term = term;
+        }
+
+        public int getTermCount() {
+            return termCount;
+        }
+
+        public void setTermCount(int termCount) {
+            this.termCount = termCount;
+        }
+
+        public String getReplacement() {
+            return replacement;
+        }
+
+        public void setReplacement(String replacement) {
+            this.replacement = replacement;
+        }
+
+        public List<String> getReplacements() {
+            return replacements;
+        }
+
+        public void setReplacements(List<String> replacements) {
+            this.replacements = replacements;
+        }
+
         public int getNextValidBackward() {
             return nextValidBackward;
         }
@@ -1304,15 +2424,19 @@ public class EditActivity extends AppCompatActivity {
         }
 
         public boolean getOccurenceValid(int index) {
-            if (validityMap.containsKey(index)) {
-                return validityMap.get(index);
+            if (occurrenceIndex != null) {
+                return occurrenceIndex.isValid(index);
             }
 
             return true;
         }
 
-        public void setOccurrenceValid(int index, boolean valid) {
-            validityMap.put(index, valid);
+        public OccurrenceIndex getOccurrenceIndex() {
+            return occurrenceIndex;
+        }
+
+        public void setOccurrenceIndex(OccurrenceIndex occurrenceIndex) {
+            this.occurrenceIndex = occurrenceIndex;
         }
 
         public Callback<Response> getResponseCallback() {
@@ -1357,8 +2481,10 @@ public class EditActivity extends AppCompatActivity {
             public enum Type {
 
                 REPLACE,
+                REPLACE_ALL,
                 NEXT,
-                PREVIOUS
+                PREVIOUS,
+                EDIT
 
             }
 
@@ -1407,6 +2533,8 @@ public class EditActivity extends AppCompatActivity {
         private String replace;
         private boolean enableMatchCase;
         private boolean enableReplace;
+        private boolean enableRegex;
+        private boolean enableMultiTerm;
 
         public FindReplaceDialogResult() {
             search = null;
@@ -1445,6 +2573,22 @@ public class EditActivity extends AppCompatActivity {
             this.enableReplace = enableReplace;
         }
 
+        public boolean isEnableRegex() {
+            return enableRegex;
+        }
+
+        public void setEnableRegex(boolean enableRegex) {
+            this.enableRegex = enableRegex;
+        }
+
+        public boolean isEnableMultiTerm() {
+            return enableMultiTerm;
+        }
+
+        public void setEnableMultiTerm(boolean enableMultiTerm) {
+            this.enableMultiTerm = enableMultiTerm;
+        }
+
     }
 
     private static class PopupMoreOptions extends PseudoPopupMenu {
@@ -1486,6 +2630,21 @@ public class EditActivity extends AppCompatActivity {
             // Set as item text
             itemFilenameText.setText(itemFilenameTextContent);
 
+            // Get more options popup save item
+            View itemSave = contentView.findViewById(R.id.activity_edit_popup_more_options_item_save);
+
+            // Only offer saving once the whole document is in
+            itemSave.setEnabled(editActivity.loaded);
+            itemSave.setAlpha(editActivity.loaded ? 1f : 0.5f);
+
+            // Get more options popup find and replace item
+            View itemFindReplace = contentView.findViewById(R.id.activity_edit_popup_more_options_item_find_replace);
+
+            // Find and replace only covers what the editor holds, which for a large file is just its window
+            boolean findReplaceEnabled = editActivity.pagedDocument == null;
+            itemFindReplace.setEnabled(findReplaceEnabled);
+            itemFindReplace.setAlpha(findReplaceEnabled ? 1f : 0.5f);
+
             super.update();
         }
 
@@ -0,0 +1,136 @@
+package io.microdev.source.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+import io.microdev.source.util.CharArraySequence;
+
+public class DocumentLoader {
+
+    private static final String CHARSET_NAME = "UTF-8";
+
+    // Files up to this size are mapped, larger ones are read through a reused buffer (mapping a huge file can fail for
+    // want of address space on 32-bit devices)
+    private static final long MAP_LIMIT = 64l * 1024l * 1024l;
+
+    // Bytes decoded per step, and so between progress reports
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    // Chars to decode before a first screen of text goes out (files that decode in one step skip this)
+    private static final int PREVIEW_LENGTH = 16 * 1024;
+
+    // Largest char array we dare ask for
+    private static final long MAX_CHARS = Integer.MAX_VALUE - 8;
+
+    public static CharSequence load(File file, Listener listener) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+
+        try {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+
+            // Malformed input shows up as replacement chars rather than failing the whole load
+            CharsetDecoder decoder = Charset.forName(CHARSET_NAME).newDecoder();
+            decoder.onMalformedInput(CodingErrorAction.REPLACE);
+            decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+            // Decode straight into a buffer the text can't outgrow (UTF-8 never yields more chars than bytes)
+            long capacity = (long) Math.ceil(size * (double) decoder.maxCharsPerByte());
+            if (capacity > MAX_CHARS) {
+                throw new IOException("File too large to edit: " + size + " bytes");
+            }
+            CharBuffer out = CharBuffer.wrap(new char[(int) capacity]);
+
+            // Either a view on the whole file, fed to the decoder a chunk at a time, or a buffer we read chunks into
+            boolean mapped = size <= MAP_LIMIT;
+            ByteBuffer in;
+            if (mapped) {
+                in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                in.limit(0);
+            } else {
+                in = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                in.flip();
+            }
+
+            long bytesRead = 0;
+            boolean endOfInput = false;
+            boolean previewed = false;
+
+            while (!endOfInput) {
+                // Line up the next chunk (leftovers of a char split across chunks stay at the front)
+                if (mapped) {
+                    in.limit((int) Math.min(in.limit() + (long) CHUNK_SIZE, size));
+                    bytesRead = in.limit();
+                    endOfInput = bytesRead == size;
+                } else {
+                    in.compact();
+                    int count = channel.read(in);
+                    in.flip();
+
+                    if (count == -1) {
+                        endOfInput = true;
+                    } else {
+                        bytesRead += count;
+                    }
+                }
+
+                // Decode chunk, making room only if the file grew since we sized the buffer
+                CoderResult result;
+                while ((result = decoder.decode(in, out, endOfInput)).isOverflow()) {
+                    out = grow(out);
+                }
+                if (result.isError()) {
+                    result.throwException();
+                }
+
+                listener.onProgress(Math.min(bytesRead, size), size);
+
+                // Send out a screenful from the beginning as soon as we have it (decoded chars won't change again)
+                if (!previewed && !endOfInput && out.position() >= PREVIEW_LENGTH) {
+                    previewed = true;
+                    listener.onPreview(new CharArraySequence(out.array(), 0, PREVIEW_LENGTH));
+                }
+            }
+
+            while (decoder.flush(out).isOverflow()) {
+                out = grow(out);
+            }
+
+            // Hand over the decoded chars as they are, no copy
+            return new CharArraySequence(out.array(), 0, out.position());
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static CharBuffer grow(CharBuffer buffer) throws IOException {
+        if (buffer.capacity() >= MAX_CHARS) {
+            throw new IOException("File too large to edit");
+        }
+
+        CharBuffer grown = CharBuffer.wrap(Arrays.copyOf(buffer.array(), (int) Math.min(MAX_CHARS, Math.max(16l, 2l * buffer.capacity()))));
+        grown.position(buffer.position());
+
+        return grown;
+    }
+
+    public interface Listener {
+
+        // Both are called on the loading thread
+
+        void onPreview(CharSequence preview);
+
+        void onProgress(long bytesRead, long bytesTotal);
+
+    }
+
+}
@@ -0,0 +1,295 @@
+package io.microdev.source.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.microdev.source.util.GetCharsSequence;
+
+public class DocumentSaver {
+
+    private static final String CHARSET_NAME = "UTF-8";
+
+    // Bytes encoded per step before they go out to the channel
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    // Chars copied out of text per step, for text that can copy itself out
+    private static final int CHAR_CHUNK_SIZE = 64 * 1024;
+
+    // Saves are written next to the document under this suffix, then renamed over it
+    private static final String TEMP_SUFFIX = ".saving";
+
+    private final Listener listener;
+
+    private final ExecutorService worker;
+
+    // Latest save asked for and not yet started, and whether a run is queued to pick it up
+    private Save pending;
+    private boolean scheduled;
+
+    // Encoded bytes on their way out (only touched on the worker)
+    private ByteBuffer buffer;
+
+    private Runnable saveRunnable;
+
+    public DocumentSaver(Listener listener) {
+        this.listener = listener;
+
+        worker = Executors.newSingleThreadExecutor();
+
+        // Writes out whichever save is latest by the time the worker gets to it
+        saveRunnable = new Runnable() {
+
+            @Override
+            public void run() {
+                Save save;
+
+                // Take latest save, letting any asked for from now on queue another run
+                synchronized (DocumentSaver.this) {
+                    save = pending;
+
+                    pending = null;
+                    scheduled = false;
+                }
+
+                if (save == null) {
+                    return;
+                }
+
+                try {
+                    write(save);
+                } catch (IOException e) {
+                    DocumentSaver.this.listener.onSaveFailed(save.file, save.version, e);
+                    return;
+                }
+
+                DocumentSaver.this.listener.onSaved(save.file, save.version, save.file.length(), save.file.lastModified());
+            }
+
+        };
+    }
+
+    public void save(File file, final CharSequence text, int version) {
+        // Text must be a snapshot nobody changes from here on, as it's written out later on the worker
+        save(file, new Source() {
+
+            @Override
+            public void writeTo(Sink sink) throws IOException {
+                sink.writeText(text);
+            }
+
+        }, version);
+    }
+
+    public void save(File file, Source source, int version) {
+        synchronized (this) {
+            // Anything still waiting is out of date now, so only this one gets written
+            pending = new Save(file, source, version);
+
+            if (scheduled) {
+                return;
+            }
+
+            scheduled = true;
+        }
+
+        worker.execute(saveRunnable);
+    }
+
+    public void shutdown() {
+        // Saves already asked for still finish
+        worker.shutdown();
+    }
+
+    public void shutdown(Runnable after) {
+        // Same, then run something that has to wait for them (like closing what they read from)
+        worker.execute(after);
+        worker.shutdown();
+    }
+
+    private void write(Save save) throws IOException {
+        // Temp file has to be in the same directory for the rename to be atomic
+        File temp = new File(save.file.getParentFile(), "." + save.file.getName() + TEMP_SUFFIX);
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+
+        FileOutputStream stream = new FileOutputStream(temp);
+        boolean written = false;
+
+        try {
+            FileChannel channel = stream.getChannel();
+
+            // Let the source write itself out
+            Sink sink = new Sink(channel, buffer);
+            save.source.writeTo(sink);
+            sink.drain();
+
+            // Get bytes onto the disk before the rename makes them the document
+            channel.force(true);
+
+            written = true;
+        } finally {
+            stream.close();
+
+            // Don't leave a partial save lying around
+            if (!written) {
+                temp.delete();
+            }
+        }
+
+        // Replace document in one step, so it's either the old contents or the new, never half of each
+        if (!temp.renameTo(save.file)) {
+            temp.delete();
+
+            throw new IOException("Unable to replace " + save.file);
+        }
+    }
+
+    private static class Save {
+
+        private final File file;
+        private final Source source;
+        private final int version;
+
+        private Save(File file, Source source, int version) {
+            this.file = file;
+            this.source = source;
+            this.version = version;
+        }
+
+    }
+
+    public static class Sink {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+
+        private final CharsetEncoder encoder;
+
+        private char[] chars;
+
+        private Sink(FileChannel channel, ByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+
+            buffer.clear();
+
+            // Unpaired surrogates come out as replacement bytes rather than failing the save
+            encoder = Charset.forName(CHARSET_NAME).newEncoder();
+            encoder.onMalformedInput(CodingErrorAction.REPLACE);
+            encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        public void writeText(char[] text, int offset, int length) throws IOException {
+            // Each piece of text is complete in itself
+            encoder.reset();
+            encode(CharBuffer.wrap(text, offset, length), true);
+        }
+
+        public void writeText(CharSequence text) throws IOException {
+            encoder.reset();
+
+            // Other text is read a char at a time
+            if (!(text instanceof GetCharsSequence)) {
+                encode(CharBuffer.wrap(text), true);
+                return;
+            }
+
+            if (chars == null) {
+                chars = new char[CHAR_CHUNK_SIZE];
+            }
+
+            // Copy out and encode a chunk at a time, carrying over the first half of a surrogate pair split between chunks
+            int length = text.length();
+            int position = 0;
+            int carry = 0;
+            do {
+                int count = Math.min(chars.length - carry, length - position);
+                ((GetCharsSequence) text).getChars(position, position + count, chars, carry);
+                position += count;
+
+                CharBuffer in = CharBuffer.wrap(chars, 0, carry + count);
+                encode(in, position == length);
+
+                carry = in.remaining();
+                System.arraycopy(chars, in.position(), chars, 0, carry);
+            } while (position < length);
+        }
+
+        public void copy(FileChannel source, long position, long count) throws IOException {
+            // Encoded bytes so far go first
+            drain();
+
+            // Bytes go across as they are, without passing through our buffer
+            long end = position + count;
+            while (position < end) {
+                long transferred = source.transferTo(position, end - position, channel);
+
+                // Source is shorter than it should be
+                if (transferred <= 0) {
+                    throw new IOException("Unexpected end of source");
+                }
+
+                position += transferred;
+            }
+        }
+
+        private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+            // Encode a buffer's worth at a time, writing each out before going on
+            CoderResult result;
+            while ((result = encoder.encode(in, buffer, endOfInput)).isOverflow()) {
+                drain();
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+
+            if (endOfInput) {
+                while (encoder.flush(buffer).isOverflow()) {
+                    drain();
+                }
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            buffer.clear();
+        }
+
+    }
+
+    public interface Source {
+
+        // Called on the worker thread
+
+        void writeTo(Sink sink) throws IOException;
+
+    }
+
+    public interface Listener {
+
+        // Both are called on the worker thread, and only for saves that weren't superseded
+
+        void onSaved(File file, int version, long length, long modified);
+
+        void onSaveFailed(File file, int version, IOException e);
+
+    }
+
+}
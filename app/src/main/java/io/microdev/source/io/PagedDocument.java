@@ -0,0 +1,315 @@
+package io.microdev.source.io;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PagedDocument {
+
+    private static final String TAG = "PagedDocument";
+
+    private static final String CHARSET_NAME = "UTF-8";
+
+    // A page ends after this many line breaks, or once it's this long (at the next char boundary) for files of very long lines
+    private static final int LINES_PER_PAGE = 1000;
+    private static final int MAX_PAGE_BYTES = 64 * 1024;
+
+    // Decoded pages kept around, which covers a window and a few pages either side of it
+    private static final int CACHE_PAGES = 16;
+
+    // Bytes read per step while indexing
+    private static final int SCAN_BUFFER_SIZE = 1024 * 1024;
+
+    private final File file;
+    private final FileInputStream stream;
+    private final FileChannel channel;
+    private final long size;
+
+    // Page table, grown by the indexer: page i is bytes pageOffsets[i] to pageOffsets[i + 1] with pageLines[i] line breaks
+    private long[] pageOffsets;
+    private int[] pageLines;
+    private int pageCount;
+    private boolean indexed;
+
+    // Edited pages, which stand in for the original bytes until saved
+    private final Map<Integer, String> overlay;
+
+    // Recently decoded original pages, least recently used first
+    private final LinkedHashMap<Integer, String> cache;
+
+    private final CharsetDecoder decoder;
+
+    private volatile boolean closed;
+
+    private PagedDocument(File file, FileInputStream stream) throws IOException {
+        this.file = file;
+        this.stream = stream;
+
+        channel = stream.getChannel();
+        size = channel.size();
+
+        pageOffsets = new long[64];
+        pageLines = new int[64];
+        pageCount = 0;
+        indexed = false;
+
+        overlay = new HashMap<>();
+
+        cache = new LinkedHashMap<Integer, String>(CACHE_PAGES, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                return size() > CACHE_PAGES;
+            }
+
+        };
+
+        // Malformed input shows up as replacement chars, like everywhere else we decode
+        decoder = Charset.forName(CHARSET_NAME).newDecoder();
+        decoder.onMalformedInput(CodingErrorAction.REPLACE);
+        decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    public static PagedDocument open(File file) throws IOException {
+        return new PagedDocument(file, new FileInputStream(file));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void index(final Listener listener) {
+        // Build page table in the background, handing out pages as they are found
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    scan(listener);
+                } catch (IOException e) {
+                    if (!closed) {
+                        listener.onIndexFailed(e);
+                    }
+                }
+            }
+
+        }).start();
+    }
+
+    public synchronized int getPageCount() {
+        return pageCount;
+    }
+
+    public synchronized boolean isIndexed() {
+        return indexed;
+    }
+
+    public synchronized int getLineForPage(int page) {
+        // Line breaks before the page, which numbers its first line (even one that started on an earlier page)
+        int line = 0;
+        for (int i = 0; i < page; i++) {
+            line += pageLines[i];
+        }
+
+        return line;
+    }
+
+    public synchronized String getPage(int page) throws IOException {
+        // Edited page text is the page now
+        String text = overlay.get(page);
+        if (text != null) {
+            return text;
+        }
+
+        text = cache.get(page);
+        if (text == null) {
+            text = decode(pageOffsets[page], pageOffsets[page + 1]);
+            cache.put(page, text);
+        }
+
+        return text;
+    }
+
+    public synchronized void setPage(int page, String text) {
+        // Keep edited text until saved, and let the original decoding go
+        overlay.put(page, text);
+        cache.remove(page);
+
+        // Line count follows the edit
+        int lines = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        pageLines[page] = lines;
+    }
+
+    public synchronized boolean isEdited() {
+        return !overlay.isEmpty();
+    }
+
+    public synchronized DocumentSaver.Source snapshot() {
+        // Copy page table and edits as they are now (edited text is immutable, and the original bytes never change under us)
+        final long[] offsets = Arrays.copyOf(pageOffsets, pageCount + 1);
+        final int count = pageCount;
+        final Map<Integer, String> edits = new HashMap<>(overlay);
+
+        return new DocumentSaver.Source() {
+
+            @Override
+            public void writeTo(DocumentSaver.Sink sink) throws IOException {
+                // Copy runs of untouched pages byte for byte, and encode edited ones
+                int page = 0;
+                while (page < count) {
+                    String text = edits.get(page);
+
+                    if (text != null) {
+                        sink.writeText(text);
+                        page++;
+                    } else {
+                        int runStart = page;
+                        while (page < count && !edits.containsKey(page)) {
+                            page++;
+                        }
+
+                        sink.copy(channel, offsets[runStart], offsets[page] - offsets[runStart]);
+                    }
+                }
+
+                // Whatever the indexer hadn't reached yet can't have been edited
+                sink.copy(channel, offsets[count], size - offsets[count]);
+            }
+
+        };
+    }
+
+    public void close() {
+        closed = true;
+
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // Only ever read from, so there's nothing left unwritten
+            Log.w(TAG, "Unable to close " + file, e);
+        }
+    }
+
+    private void scan(Listener listener) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SCAN_BUFFER_SIZE);
+
+        long pageStart = 0;
+        int lines = 0;
+        long position = 0;
+
+        while (!closed && position < size) {
+            // Read next stretch at our own position, as pages may be read from the channel at the same time
+            buffer.clear();
+            int count = channel.read(buffer, position);
+            if (count <= 0) {
+                break;
+            }
+            buffer.flip();
+
+            for (int i = 0; i < count; i++) {
+                byte b = buffer.get(i);
+                long offset = position + i;
+
+                // Line breaks are single bytes in UTF-8 and never part of another char
+                if (b == '\n') {
+                    lines++;
+
+                    if (lines == LINES_PER_PAGE) {
+                        addPage(pageStart, offset + 1, lines);
+                        pageStart = offset + 1;
+                        lines = 0;
+                    }
+                } else if (offset - pageStart >= MAX_PAGE_BYTES && (b & 0xc0) != 0x80) {
+                    // Overlong page, so cut before this byte (it starts a char, so no char gets split)
+                    addPage(pageStart, offset, lines);
+                    pageStart = offset;
+                    lines = 0;
+                }
+            }
+
+            position += count;
+
+            listener.onIndexProgress(position, size);
+        }
+
+        if (closed) {
+            return;
+        }
+
+        // Last page takes the rest, and an empty file still gets one (empty) page
+        if (pageStart < size || getPageCount() == 0) {
+            addPage(pageStart, size, lines);
+        }
+
+        synchronized (this) {
+            indexed = true;
+        }
+
+        listener.onIndexProgress(size, size);
+    }
+
+    private synchronized void addPage(long start, long end, int lines) {
+        // Grow table as needed (offsets keep one extra slot for the end of the last page)
+        if (pageCount + 1 == pageOffsets.length) {
+            pageOffsets = Arrays.copyOf(pageOffsets, 2 * pageOffsets.length);
+            pageLines = Arrays.copyOf(pageLines, 2 * pageLines.length);
+        }
+
+        pageOffsets[pageCount] = start;
+        pageOffsets[pageCount + 1] = end;
+        pageLines[pageCount] = lines;
+        pageCount++;
+    }
+
+    private String decode(long start, long end) throws IOException {
+        // Read page bytes, which always start and end on char boundaries
+        ByteBuffer in = ByteBuffer.allocate((int) (end - start));
+        while (in.hasRemaining()) {
+            if (channel.read(in, start + in.position()) == -1) {
+                break;
+            }
+        }
+        in.flip();
+
+        CharBuffer out = CharBuffer.allocate((int) Math.ceil(in.remaining() * (double) decoder.maxCharsPerByte()));
+
+        decoder.reset();
+        decoder.decode(in, out, true);
+        decoder.flush(out);
+        out.flip();
+
+        return out.toString();
+    }
+
+    public interface Listener {
+
+        // Both are called on the indexing thread
+
+        void onIndexProgress(long bytesIndexed, long bytesTotal);
+
+        void onIndexFailed(IOException e);
+
+    }
+
+}
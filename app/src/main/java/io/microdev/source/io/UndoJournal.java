@@ -0,0 +1,418 @@
+package io.microdev.source.io;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+import io.microdev.source.widget.editor.EditOperation;
+
+public class UndoJournal {
+
+    private static final String TAG = "UndoJournal";
+
+    private static final String DIR_NAME = "journal";
+    private static final String FILE_EXTENSION = ".journal";
+
+    private static final int MAGIC = 0x534a524e;
+    private static final int VERSION = 1;
+
+    private static final byte RECORD_CHECKPOINT = 1;
+    private static final byte RECORD_GROUP = 2;
+    private static final byte RECORD_UNDO = 3;
+    private static final byte RECORD_REDO = 4;
+
+    // Largest record we will believe when reading (anything bigger is a torn or corrupt length)
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    // All journal and undo store I/O shares one thread, which keeps writes and reads in order
+    static final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    private final File file;
+
+    private ByteArrayOutputStream pending;
+    private DataOutputStream pendingOut;
+    private boolean pendingTruncate;
+    private boolean flushScheduled;
+
+    private ByteArrayOutputStream record;
+    private DataOutputStream recordOut;
+
+    private Runnable flushRunnable;
+
+    public UndoJournal(File file) {
+        this.file = file;
+
+        pending = new ByteArrayOutputStream();
+        pendingOut = new DataOutputStream(pending);
+        pendingTruncate = false;
+        flushScheduled = false;
+
+        record = new ByteArrayOutputStream();
+        recordOut = new DataOutputStream(record);
+
+        // Drains pending records to disk on the writer thread
+        flushRunnable = new Runnable() {
+
+            @Override
+            public void run() {
+                byte[] bytes;
+                boolean truncate;
+
+                // Take everything queued so far
+                synchronized (UndoJournal.this) {
+                    bytes = pending.toByteArray();
+                    truncate = pendingTruncate;
+
+                    pending.reset();
+                    pendingTruncate = false;
+                    flushScheduled = false;
+                }
+
+                try {
+                    write(bytes, truncate);
+                } catch (IOException e) {
+                    // Journal is best effort; losing it only loses crash recovery
+                    Log.w(TAG, "Unable to write undo journal " + UndoJournal.this.file, e);
+                }
+            }
+
+        };
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public static File getJournalFile(File cacheDir, File documentFile) {
+        // One journal per document, named after a digest of its path
+        return new File(new File(cacheDir, DIR_NAME), digest(documentFile.getAbsolutePath()) + FILE_EXTENSION);
+    }
+
+    public void checkpoint(long baseLength, long baseModified) {
+        synchronized (this) {
+            // Anything before a checkpoint is irrelevant, so start the file over
+            pending.reset();
+            pendingTruncate = true;
+
+            try {
+                DataOutputStream out = beginRecord(RECORD_CHECKPOINT);
+                out.writeLong(baseLength);
+                out.writeLong(baseModified);
+                endRecord(out);
+            } catch (IOException e) {
+                // Not possible writing to memory
+                throw new IllegalStateException(e);
+            }
+        }
+
+        scheduleFlush();
+    }
+
+    public void appendGroup(List<EditOperation> operations) {
+        synchronized (this) {
+            try {
+                DataOutputStream out = beginRecord(RECORD_GROUP);
+
+                // Write operations in order
+                out.writeInt(operations.size());
+                for (EditOperation operation : operations) {
+                    writeOperation(out, operation);
+                }
+
+                endRecord(out);
+            } catch (IOException e) {
+                // Not possible writing to memory
+                throw new IllegalStateException(e);
+            }
+        }
+
+        scheduleFlush();
+    }
+
+    public void appendUndo() {
+        appendMarker(RECORD_UNDO);
+    }
+
+    public void appendRedo() {
+        appendMarker(RECORD_REDO);
+    }
+
+    public void flush() {
+        scheduleFlush();
+    }
+
+    public static List<Entry> readFromLastCheckpoint(File file, long baseLength, long baseModified) throws IOException {
+        // No journal, nothing to replay
+        if (!file.exists()) {
+            return null;
+        }
+
+        InputStream in = new FileInputStream(file);
+        try {
+            DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+
+            // Check header
+            if (dataIn.readInt() != MAGIC || dataIn.readInt() != VERSION) {
+                return null;
+            }
+
+            List<Entry> entries = null;
+
+            // Read records until end of file or the first torn or corrupt record
+            while (true) {
+                byte[] record = readRecord(dataIn);
+                if (record == null) {
+                    break;
+                }
+
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+
+                switch (recordIn.readByte()) {
+                case RECORD_CHECKPOINT:
+                    // Entries only count if they start from the document as it is now
+                    if (recordIn.readLong() == baseLength && recordIn.readLong() == baseModified) {
+                        entries = new ArrayList<>();
+                    } else {
+                        entries = null;
+                    }
+                    break;
+                case RECORD_GROUP:
+                    if (entries != null) {
+                        int numOperations = recordIn.readInt();
+
+                        List<EditOperation> operations = new ArrayList<>(numOperations);
+                        for (int i = 0; i < numOperations; i++) {
+                            operations.add(readOperation(recordIn));
+                        }
+
+                        entries.add(new Entry(Entry.Type.GROUP, operations));
+                    }
+                    break;
+                case RECORD_UNDO:
+                    if (entries != null) {
+                        entries.add(new Entry(Entry.Type.UNDO, null));
+                    }
+                    break;
+                case RECORD_REDO:
+                    if (entries != null) {
+                        entries.add(new Entry(Entry.Type.REDO, null));
+                    }
+                    break;
+                }
+            }
+
+            return entries;
+        } catch (EOFException e) {
+            // File too short for a header
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static void writeOperation(DataOutput out, EditOperation operation) throws IOException {
+        out.writeInt(operation.getOffset());
+        writeString(out, operation.getTextRemoved());
+        writeString(out, operation.getTextInserted());
+        out.writeInt(operation.getSelectionStartBefore());
+        out.writeInt(operation.getSelectionEndBefore());
+        out.writeInt(operation.getSelectionStartAfter());
+        out.writeInt(operation.getSelectionEndAfter());
+    }
+
+    public static EditOperation readOperation(DataInput in) throws IOException {
+        int offset = in.readInt();
+        String textRemoved = readString(in);
+        String textInserted = readString(in);
+        int selectionStartBefore = in.readInt();
+        int selectionEndBefore = in.readInt();
+        int selectionStartAfter = in.readInt();
+        int selectionEndAfter = in.readInt();
+
+        return new EditOperation(offset, textRemoved, textInserted, selectionStartBefore, selectionEndBefore, selectionStartAfter, selectionEndAfter);
+    }
+
+    private static void writeString(DataOutput out, String string) throws IOException {
+        // Raw UTF-16 keeps any char sequence intact, unlike modified UTF-8 with its 64K limit
+        out.writeInt(string.length());
+        out.writeChars(string);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = in.readChar();
+        }
+
+        return new String(chars);
+    }
+
+    private void appendMarker(byte type) {
+        synchronized (this) {
+            try {
+                endRecord(beginRecord(type));
+            } catch (IOException e) {
+                // Not possible writing to memory
+                throw new IllegalStateException(e);
+            }
+        }
+
+        scheduleFlush();
+    }
+
+    private DataOutputStream beginRecord(byte type) throws IOException {
+        // Records are built in their own buffer so their length and checksum are known up front
+        record.reset();
+        recordOut.writeByte(type);
+
+        return recordOut;
+    }
+
+    private void endRecord(DataOutputStream out) throws IOException {
+        byte[] bytes = record.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        // Frame the record with its length and checksum
+        pendingOut.writeInt(bytes.length);
+        pendingOut.writeInt((int) crc.getValue());
+        pendingOut.write(bytes);
+    }
+
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        int length;
+        int checksum;
+        byte[] record;
+
+        try {
+            length = in.readInt();
+            checksum = in.readInt();
+
+            // Impossible length means the rest of the file is garbage
+            if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                return null;
+            }
+
+            record = new byte[length];
+            in.readFully(record);
+        } catch (EOFException e) {
+            // Clean end of file, or a record torn by a crash
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+
+        // Stop at the first record that fails its checksum
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        return record;
+    }
+
+    private void scheduleFlush() {
+        synchronized (this) {
+            // Batch everything appended until the writer gets to it
+            if (flushScheduled) {
+                return;
+            }
+
+            flushScheduled = true;
+        }
+
+        writer.execute(flushRunnable);
+    }
+
+    private void write(byte[] bytes, boolean truncate) throws IOException {
+        // Make sure journal directory exists
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+
+        OutputStream out = new FileOutputStream(file, !truncate);
+        try {
+            // A fresh file starts with a header
+            if (truncate) {
+                DataOutputStream dataOut = new DataOutputStream(out);
+                dataOut.writeInt(MAGIC);
+                dataOut.writeInt(VERSION);
+            }
+
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String digest(String string) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(string.getBytes("UTF-8"));
+
+            // Hex encode digest
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // SHA-1 and UTF-8 are always available
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class Entry {
+
+        private Type type;
+        private List<EditOperation> operations;
+
+        public Entry(Type type, List<EditOperation> operations) {
+            this.type = type;
+            this.operations = operations;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public List<EditOperation> getOperations() {
+            return operations;
+        }
+
+        public enum Type {
+
+            GROUP,
+            UNDO,
+            REDO
+
+        }
+
+    }
+
+}
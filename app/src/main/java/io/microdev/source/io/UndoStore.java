@@ -0,0 +1,200 @@
+package io.microdev.source.io;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import io.microdev.source.util.Callback;
+import io.microdev.source.widget.editor.EditOperation;
+
+public class UndoStore {
+
+    private static final String TAG = "UndoStore";
+
+    private static final String DIR_NAME = "undo";
+    private static final String FILE_EXTENSION = ".undo";
+
+    private static final int MAGIC = 0x53554e44;
+    private static final int VERSION = 1;
+
+    // Sessions never restored (e.g. the task was swiped away) are cleaned up after this long
+    private static final long STALE_AGE = 24l * 60l * 60l * 1000l;
+
+    private final File dir;
+
+    public UndoStore(File cacheDir) {
+        dir = new File(cacheDir, DIR_NAME);
+    }
+
+    public static String newSessionId() {
+        return UUID.randomUUID().toString();
+    }
+
+    public void write(final String sessionId, final List<List<EditOperation>> stackUndo, final List<List<EditOperation>> stackRedo) {
+        // Write on the shared I/O thread (ordered before any later read of the same session)
+        UndoJournal.writer.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    writeNow(sessionId, stackUndo, stackRedo);
+                } catch (IOException e) {
+                    // Losing this only loses undo history across the restart
+                    Log.w(TAG, "Unable to write undo session " + sessionId, e);
+                }
+
+                // Sweep out abandoned sessions
+                deleteStale();
+            }
+
+        });
+    }
+
+    public void read(final String sessionId, final Callback<State> callback) {
+        // Read on the shared I/O thread
+        UndoJournal.writer.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                State state = null;
+
+                try {
+                    state = readNow(sessionId);
+                } catch (IOException e) {
+                    // Start over with no history, as if there had been none stored
+                    Log.w(TAG, "Unable to read undo session " + sessionId, e);
+                }
+
+                // Session file is consumed
+                getFile(sessionId).delete();
+
+                callback.ring(state);
+            }
+
+        });
+    }
+
+    private File getFile(String sessionId) {
+        return new File(dir, sessionId + FILE_EXTENSION);
+    }
+
+    private void writeNow(String sessionId, List<List<EditOperation>> stackUndo, List<List<EditOperation>> stackRedo) throws IOException {
+        // Make sure store directory exists
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+
+        // Write to a temporary file first so a crash can't leave a half-written session
+        File file = getFile(sessionId);
+        File fileTemp = new File(dir, sessionId + FILE_EXTENSION + ".tmp");
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileTemp), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            writeStack(out, stackUndo);
+            writeStack(out, stackRedo);
+        } finally {
+            out.close();
+        }
+
+        if (!fileTemp.renameTo(file)) {
+            throw new IOException("Unable to rename " + fileTemp + " to " + file);
+        }
+    }
+
+    private State readNow(String sessionId) throws IOException {
+        File file = getFile(sessionId);
+
+        // Nothing was stored for this session
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            // Check header
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+
+            State state = new State();
+            state.stackUndo = readStack(in);
+            state.stackRedo = readStack(in);
+
+            return state;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeStack(DataOutputStream out, List<List<EditOperation>> stack) throws IOException {
+        // Write groups from top of stack down
+        out.writeInt(stack.size());
+        for (List<EditOperation> operations : stack) {
+            out.writeInt(operations.size());
+            for (EditOperation operation : operations) {
+                UndoJournal.writeOperation(out, operation);
+            }
+        }
+    }
+
+    private static List<List<EditOperation>> readStack(DataInputStream in) throws IOException {
+        int numGroups = in.readInt();
+
+        List<List<EditOperation>> stack = new ArrayList<>(numGroups);
+        for (int i = 0; i < numGroups; i++) {
+            int numOperations = in.readInt();
+
+            List<EditOperation> operations = new ArrayList<>(numOperations);
+            for (int j = 0; j < numOperations; j++) {
+                operations.add(UndoJournal.readOperation(in));
+            }
+
+            stack.add(operations);
+        }
+
+        return stack;
+    }
+
+    private void deleteStale() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (now - file.lastModified() > STALE_AGE) {
+                file.delete();
+            }
+        }
+    }
+
+    public static class State {
+
+        private List<List<EditOperation>> stackUndo;
+        private List<List<EditOperation>> stackRedo;
+
+        public List<List<EditOperation>> getStackUndo() {
+            return stackUndo;
+        }
+
+        public List<List<EditOperation>> getStackRedo() {
+            return stackRedo;
+        }
+
+    }
+
+}
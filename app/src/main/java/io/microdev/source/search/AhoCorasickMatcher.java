@@ -0,0 +1,232 @@
+package io.microdev.source.search;
+
+import java.util.Arrays;
+
+public class AhoCorasickMatcher implements TermMatcher {
+
+    private static final int ASCII_SIZE = 128;
+
+    private final boolean ignoreCase;
+
+    // Chars that appear in some term, sorted, and a direct lookup of their class for ASCII (class zero is everything else)
+    private final char[] alphabet;
+    private final int[] asciiClasses;
+    private final int classCount;
+
+    // Complete transition table, one row of classes per state, with failures already folded in
+    private final int[] delta;
+
+    // Longest term ending at each state, or -1
+    private final int[] output;
+
+    private final int[] termLengths;
+    private final int minLength;
+    private final int maxLength;
+
+    private int matchLength;
+    private int matchTerm;
+
+    public AhoCorasickMatcher(String[] terms, boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+
+        // Fold terms once up front so only the text needs folding while matching
+        char[][] folded = new char[terms.length][];
+        termLengths = new int[terms.length];
+        int totalLength = 0;
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int t = 0; t < terms.length; t++) {
+            folded[t] = terms[t].toCharArray();
+
+            if (ignoreCase) {
+                for (int i = 0; i < folded[t].length; i++) {
+                    folded[t][i] = Character.toLowerCase(folded[t][i]);
+                }
+            }
+
+            termLengths[t] = folded[t].length;
+            totalLength += folded[t].length;
+
+            // Empty terms occur nowhere, so they don't count towards lengths
+            if (folded[t].length > 0) {
+                min = Math.min(min, folded[t].length);
+                max = Math.max(max, folded[t].length);
+            }
+        }
+        minLength = max == 0 ? 0 : min;
+        maxLength = max;
+
+        // Collect the distinct chars of all terms, which keeps table rows as narrow as the terms allow
+        char[] chars = new char[totalLength];
+        int charCount = 0;
+        for (char[] term : folded) {
+            System.arraycopy(term, 0, chars, charCount, term.length);
+            charCount += term.length;
+        }
+        Arrays.sort(chars, 0, charCount);
+        int distinct = 0;
+        for (int i = 0; i < charCount; i++) {
+            if (distinct == 0 || chars[i] != chars[distinct - 1]) {
+                chars[distinct++] = chars[i];
+            }
+        }
+        alphabet = Arrays.copyOf(chars, distinct);
+        classCount = distinct + 1;
+
+        asciiClasses = new int[ASCII_SIZE];
+        for (int i = 0; i < alphabet.length && alphabet[i] < ASCII_SIZE; i++) {
+            asciiClasses[alphabet[i]] = i + 1;
+        }
+
+        // Build trie of terms (there can't be more states than term chars, plus the root)
+        int stateCapacity = totalLength + 1;
+        int[] table = new int[stateCapacity * classCount];
+        Arrays.fill(table, -1);
+        int[] terminal = new int[stateCapacity];
+        Arrays.fill(terminal, -1);
+        int stateCount = 1;
+
+        for (int t = 0; t < folded.length; t++) {
+            if (folded[t].length == 0) {
+                continue;
+            }
+
+            int state = 0;
+            for (char c : folded[t]) {
+                int edge = state * classCount + classOf(c);
+
+                if (table[edge] == -1) {
+                    table[edge] = stateCount++;
+                }
+
+                state = table[edge];
+            }
+
+            // A repeated term belongs to its first appearance
+            if (terminal[state] == -1) {
+                terminal[state] = t;
+            }
+        }
+
+        // Walk trie breadth first, filling in failure transitions and outputs from shallower states
+        delta = Arrays.copyOf(table, stateCount * classCount);
+        output = Arrays.copyOf(terminal, stateCount);
+        int[] fail = new int[stateCount];
+        int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+
+        // Children of the root fail back to it, and missing root transitions stay at it
+        for (int c = 0; c < classCount; c++) {
+            int next = delta[c];
+
+            if (next == -1) {
+                delta[c] = 0;
+            } else {
+                fail[next] = 0;
+                queue[tail++] = next;
+            }
+        }
+
+        while (head < tail) {
+            int state = queue[head++];
+
+            // Longest term ending here is this state's own, or failing that, the one its failure state ends
+            if (output[state] == -1) {
+                output[state] = output[fail[state]];
+            }
+
+            for (int c = 0; c < classCount; c++) {
+                int edge = state * classCount + c;
+                int next = delta[edge];
+
+                if (next == -1) {
+                    // No child, so go wherever the failure state would
+                    delta[edge] = delta[fail[state] * classCount + c];
+                } else {
+                    fail[next] = delta[fail[state] * classCount + c];
+                    queue[tail++] = next;
+                }
+            }
+        }
+    }
+
+    @Override
+    public int find(char[] text, int from, int lastStart, int end) {
+        // Nothing to find without terms
+        if (maxLength == 0) {
+            return -1;
+        }
+
+        // Occurrences starting by lastStart end by this
+        int scanEnd = (int) Math.min(end, (long) lastStart + maxLength);
+
+        // Leftmost occurrence so far, and the longest one starting there
+        int bestStart = -1;
+        int bestTerm = -1;
+
+        // Each state gives the longest term ending at it, which is the earliest to start of those ending here, but
+        // one that completes later may still start earlier (or at the same place and be longer), so keep going until
+        // nothing still to complete could start at or before the best so far
+        int state = 0;
+        for (int i = from; i < scanEnd; i++) {
+            if (bestStart != -1 && i >= bestStart + maxLength) {
+                break;
+            }
+
+            char c = ignoreCase ? Character.toLowerCase(text[i]) : text[i];
+            state = delta[state * classCount + classOf(c)];
+
+            int term = output[state];
+            if (term != -1) {
+                int start = i + 1 - termLengths[term];
+
+                // Ending later at the same start means longer
+                if (start <= lastStart && (bestStart == -1 || start <= bestStart)) {
+                    bestStart = start;
+                    bestTerm = term;
+                }
+            }
+        }
+
+        if (bestStart == -1) {
+            return -1;
+        }
+
+        matchLength = termLengths[bestTerm];
+        matchTerm = bestTerm;
+
+        return bestStart;
+    }
+
+    @Override
+    public int getMatchLength() {
+        return matchLength;
+    }
+
+    @Override
+    public int getMatchTerm() {
+        return matchTerm;
+    }
+
+    @Override
+    public int getMinLength() {
+        return minLength;
+    }
+
+    @Override
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    private int classOf(char c) {
+        if (c < ASCII_SIZE) {
+            return asciiClasses[c];
+        }
+
+        int i = Arrays.binarySearch(alphabet, c);
+
+        return i < 0 ? 0 : i + 1;
+    }
+
+}
@@ -0,0 +1,136 @@
+package io.microdev.source.search;
+
+public class HorspoolMatcher implements TermMatcher {
+
+    // Skip table is indexed by the low byte of a char, so it stays small for any alphabet
+    private static final int TABLE_SIZE = 256;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+
+    private final char[] pattern;
+    private final boolean ignoreCase;
+
+    private final int[] skip;
+
+    public HorspoolMatcher(String pattern, boolean ignoreCase) {
+        this.pattern = pattern.toCharArray();
+        this.ignoreCase = ignoreCase;
+
+        // Fold pattern once up front so only the text needs folding while matching
+        if (ignoreCase) {
+            for (int i = 0; i < this.pattern.length; i++) {
+                this.pattern[i] = Character.toLowerCase(this.pattern[i]);
+            }
+        }
+
+        int length = this.pattern.length;
+
+        // Chars not in the pattern let us skip its whole length
+        skip = new int[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            skip[i] = length;
+        }
+
+        // Chars in the pattern (but the last) skip to line up with their rightmost occurrence
+        // Chars sharing a low byte end up with the smallest of their skips, which is always safe
+        for (int i = 0; i < length - 1; i++) {
+            skip[this.pattern[i] & TABLE_MASK] = length - 1 - i;
+        }
+    }
+
+    public int getLength() {
+        return pattern.length;
+    }
+
+    @Override
+    public int find(char[] text, int from, int lastStart, int end) {
+        // Occurrences have to fit before the end
+        return find(text, from, Math.min(lastStart, end - pattern.length));
+    }
+
+    @Override
+    public int getMatchLength() {
+        return pattern.length;
+    }
+
+    @Override
+    public int getMatchTerm() {
+        return 0;
+    }
+
+    @Override
+    public int getMinLength() {
+        return pattern.length;
+    }
+
+    @Override
+    public int getMaxLength() {
+        return pattern.length;
+    }
+
+    public int find(char[] text, int from, int lastStart) {
+        // An empty pattern occurs nowhere
+        if (pattern.length == 0) {
+            return -1;
+        }
+
+        // Separate loops keep the case check out of the inner comparison
+        return ignoreCase ? findFolded(text, from, lastStart) : findExact(text, from, lastStart);
+    }
+
+    private int findExact(char[] text, int from, int lastStart) {
+        int last = pattern.length - 1;
+        char charLast = pattern[last];
+
+        // Slide window over text, comparing right to left
+        int offset = from;
+        while (offset <= lastStart) {
+            char c = text[offset + last];
+
+            // Check last char before bothering with the rest
+            if (c == charLast) {
+                int i = last - 1;
+                while (i >= 0 && text[offset + i] == pattern[i]) {
+                    i--;
+                }
+
+                if (i < 0) {
+                    return offset;
+                }
+            }
+
+            // Skip ahead based on char under end of window
+            offset += skip[c & TABLE_MASK];
+        }
+
+        return -1;
+    }
+
+    private int findFolded(char[] text, int from, int lastStart) {
+        int last = pattern.length - 1;
+        char charLast = pattern[last];
+
+        // Slide window over text, comparing right to left and folding text chars as we go
+        int offset = from;
+        while (offset <= lastStart) {
+            char c = Character.toLowerCase(text[offset + last]);
+
+            // Check last char before bothering with the rest
+            if (c == charLast) {
+                int i = last - 1;
+                while (i >= 0 && Character.toLowerCase(text[offset + i]) == pattern[i]) {
+                    i--;
+                }
+
+                if (i < 0) {
+                    return offset;
+                }
+            }
+
+            // Skip ahead based on char under end of window
+            offset += skip[c & TABLE_MASK];
+        }
+
+        return -1;
+    }
+
+}
@@ -0,0 +1,352 @@
+package io.microdev.source.search;
+
+import java.util.Arrays;
+
+public class OccurrenceIndex {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Offsets as found (before any replacements) and lengths of occurrences, in document order
+    private int[] offsets;
+    private int[] lengths;
+    private int size;
+
+    // Which term each occurrence is of, and how many there are of each (replaced ones included, like size)
+    private int[] terms;
+    private int[] termCounts;
+
+    // Length change recorded at each replaced occurrence, which shifts every later one
+    private int[] shifts;
+    private int[] shiftTree;
+
+    // Length change from edits before the first occurrence, which shifts every one
+    private int shiftBase;
+
+    // Which occurrences are still valid (not yet replaced), plus counts of them for ranking
+    private long[] validBits;
+    private int[] validTree;
+    private int validCount;
+
+    public OccurrenceIndex() {
+        offsets = new int[INITIAL_CAPACITY];
+        lengths = new int[INITIAL_CAPACITY];
+        size = 0;
+
+        terms = new int[INITIAL_CAPACITY];
+        termCounts = new int[1];
+
+        shifts = new int[INITIAL_CAPACITY];
+        shiftTree = new int[INITIAL_CAPACITY + 1];
+        shiftBase = 0;
+
+        validBits = new long[INITIAL_CAPACITY / 64];
+        validTree = new int[INITIAL_CAPACITY + 1];
+        validCount = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getValidCount() {
+        return validCount;
+    }
+
+    public int getTermCount(int term) {
+        return term < termCounts.length ? termCounts[term] : 0;
+    }
+
+    public void add(int offset, int length, int term) {
+        // Make room as needed
+        if (size == offsets.length) {
+            grow();
+        }
+
+        // Store as found (replacements so far all precede it, so its shift falls out of the tree)
+        offsets[size] = offset;
+        lengths[size] = length;
+        terms[size] = term;
+        countTerm(term, 1);
+
+        // New occurrences start out valid
+        validBits[size >> 6] |= 1l << size;
+        treeAdd(validTree, size + 1, 1);
+        validCount++;
+
+        size++;
+    }
+
+    public int getOffset(int index) {
+        // Shifted by the length changes of all replacements and edits before it
+        return offsets[index] + shiftBase + treeSum(shiftTree, index);
+    }
+
+    public int getShiftEnd() {
+        // Length change of all replacements and edits so far, which is how far an occurrence added now ends up from where it was found
+        return shiftBase + treeSum(shiftTree, size);
+    }
+
+    public int getLength(int index) {
+        return lengths[index];
+    }
+
+    public int getTerm(int index) {
+        return terms[index];
+    }
+
+    public int firstEndingAfter(int offset) {
+        // Binary search for the first occurrence that ends past the offset (current offsets stay in document order)
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            if (getOffset(mid) + lengths[mid] > offset) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        return low;
+    }
+
+    public boolean isValid(int index) {
+        return (validBits[index >> 6] & (1l << index)) != 0;
+    }
+
+    public void invalidate(int index, int shift) {
+        // Mark occurrence as invalid (replaced)
+        if (isValid(index)) {
+            validBits[index >> 6] &= ~(1l << index);
+            treeAdd(validTree, index + 1, -1);
+            validCount--;
+        }
+
+        // Shift all later occurrences by the replacement's length change
+        if (shift != 0) {
+            shifts[index] += shift;
+            treeAdd(shiftTree, index + 1, shift);
+        }
+    }
+
+    public void splice(int from, int to, int[] newOffsets, int[] newLengths, int[] newTerms, int count, int shift) {
+        // Replace occurrences from..to (exclusive) with new ones at current offsets, shifting all later ones by the given amount
+        // Length changes recorded at the dropped occurrences still apply to everything after them
+        int carry = shift;
+        for (int i = from; i < to; i++) {
+            carry += shifts[i];
+            countTerm(terms[i], -1);
+        }
+        for (int k = 0; k < count; k++) {
+            countTerm(newTerms[k], 1);
+        }
+
+        if (count == to - from) {
+            // Same number of occurrences, so overwrite in place and touch the trees only where they change
+            for (int k = 0; k < count; k++) {
+                int i = from + k;
+
+                if (shifts[i] != 0) {
+                    treeAdd(shiftTree, i + 1, -shifts[i]);
+                    shifts[i] = 0;
+                }
+
+                if (!isValid(i)) {
+                    validBits[i >> 6] |= 1l << i;
+                    treeAdd(validTree, i + 1, 1);
+                    validCount++;
+                }
+
+                lengths[i] = newLengths[k];
+                terms[i] = newTerms[k];
+                offsets[i] = newOffsets[k] - shiftBase - treeSum(shiftTree, i);
+            }
+
+            // Later occurrences pick up the carried shift from the last occurrence before them
+            if (from + count > 0) {
+                shifts[from + count - 1] += carry;
+                treeAdd(shiftTree, from + count, carry);
+            } else {
+                shiftBase += carry;
+            }
+
+            return;
+        }
+
+        int sizeNew = size + count - (to - from);
+
+        // Make room as needed (trees get rebuilt below anyway)
+        if (sizeNew > offsets.length) {
+            int capacity = offsets.length;
+            while (capacity < sizeNew) {
+                capacity *= 2;
+            }
+
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            terms = Arrays.copyOf(terms, capacity);
+            shifts = Arrays.copyOf(shifts, capacity);
+            validBits = Arrays.copyOf(validBits, capacity / 64);
+        }
+
+        // Move later occurrences into place, validity included (walking away from the direction of travel)
+        int tail = size - to;
+        System.arraycopy(offsets, to, offsets, from + count, tail);
+        System.arraycopy(lengths, to, lengths, from + count, tail);
+        System.arraycopy(terms, to, terms, from + count, tail);
+        System.arraycopy(shifts, to, shifts, from + count, tail);
+        if (from + count > to) {
+            for (int i = tail - 1; i >= 0; i--) {
+                setValidBit(from + count + i, isValid(to + i));
+            }
+        } else {
+            for (int i = 0; i < tail; i++) {
+                setValidBit(from + count + i, isValid(to + i));
+            }
+        }
+
+        // Clear slots left behind so add() finds them empty
+        for (int i = sizeNew; i < size; i++) {
+            shifts[i] = 0;
+            setValidBit(i, false);
+        }
+
+        // Fill in new occurrences, valid and unshifted
+        int shiftBefore = shiftBase;
+        for (int i = 0; i < from; i++) {
+            shiftBefore += shifts[i];
+        }
+        for (int k = 0; k < count; k++) {
+            offsets[from + k] = newOffsets[k] - shiftBefore;
+            lengths[from + k] = newLengths[k];
+            terms[from + k] = newTerms[k];
+            shifts[from + k] = 0;
+            setValidBit(from + k, true);
+        }
+
+        // Later occurrences pick up the carried shift from the last occurrence before them
+        if (from + count > 0) {
+            shifts[from + count - 1] += carry;
+        } else {
+            shiftBase += carry;
+        }
+
+        size = sizeNew;
+
+        // Indices moved, so rebuild the trees in linear time
+        rebuildTrees(offsets.length);
+    }
+
+    public int nextValid(int index) {
+        // Number of valid occurrences up to and including this one
+        int rank = treeSum(validTree, index + 1);
+
+        if (rank == validCount) {
+            return -1;
+        }
+
+        return select(rank + 1);
+    }
+
+    public int previousValid(int index) {
+        // Number of valid occurrences before this one
+        int rank = treeSum(validTree, index);
+
+        if (rank == 0) {
+            return -1;
+        }
+
+        return select(rank);
+    }
+
+    private int select(int rank) {
+        // Descend tree to find index of the valid occurrence with given rank (counting from one)
+        int position = 0;
+        for (int step = Integer.highestOneBit(validTree.length - 1); step > 0; step >>= 1) {
+            if (position + step < validTree.length && validTree[position + step] < rank) {
+                position += step;
+                rank -= validTree[position];
+            }
+        }
+
+        return position;
+    }
+
+    private void grow() {
+        int capacity = 2 * offsets.length;
+
+        offsets = Arrays.copyOf(offsets, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        terms = Arrays.copyOf(terms, capacity);
+        shifts = Arrays.copyOf(shifts, capacity);
+        validBits = Arrays.copyOf(validBits, capacity / 64);
+
+        // Trees can't be extended in place, so rebuild them at the new size
+        rebuildTrees(capacity);
+    }
+
+    private void rebuildTrees(int capacity) {
+        shiftTree = new int[capacity + 1];
+        validTree = new int[capacity + 1];
+        validCount = 0;
+        for (int i = 0; i < size; i++) {
+            shiftTree[i + 1] = shifts[i];
+
+            if (isValid(i)) {
+                validTree[i + 1] = 1;
+                validCount++;
+            }
+        }
+        treeBuild(shiftTree);
+        treeBuild(validTree);
+    }
+
+    private void countTerm(int term, int change) {
+        // Make room for terms as they turn up
+        if (term >= termCounts.length) {
+            termCounts = Arrays.copyOf(termCounts, term + 1);
+        }
+
+        termCounts[term] += change;
+    }
+
+    private void setValidBit(int index, boolean valid) {
+        if (valid) {
+            validBits[index >> 6] |= 1l << index;
+        } else {
+            validBits[index >> 6] &= ~(1l << index);
+        }
+    }
+
+    private static void treeBuild(int[] tree) {
+        // Turn plain values into a tree in linear time by pushing each node into its parent
+        for (int i = 1; i < tree.length; i++) {
+            int parent = i + (i & -i);
+            if (parent < tree.length) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+
+    private static void treeAdd(int[] tree, int position, int value) {
+        for (int i = position; i < tree.length; i += i & -i) {
+            tree[i] += value;
+        }
+    }
+
+    private static int treeSum(int[] tree, int position) {
+        // Sum of values at positions one through the given one
+        int sum = 0;
+        for (int i = position; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+
+        return sum;
+    }
+
+}
@@ -0,0 +1,294 @@
+package io.microdev.source.search;
+
+import java.util.Arrays;
+
+public class OccurrencePatcher {
+
+    private final TermMatcher matcher;
+
+    // Holds the text being rescanned (reused across edits)
+    private char[] window;
+
+    // Occurrences found by a rescan
+    private int[] foundOffsets;
+    private int[] foundLengths;
+    private int[] foundTerms;
+
+    // Ranges of the search worker's snapshot edited ahead of what it has reported, and how long each is now
+    // (in document order and never touching, so each one's current offset follows from those before it)
+    private int[] pendingStarts;
+    private int[] pendingEnds;
+    private int[] pendingLengths;
+    private int pendingCount;
+
+    // Offset in the worker's snapshot before which it has reported every occurrence starting there
+    private int reported;
+
+    public OccurrencePatcher(String[] terms, boolean ignoreCase) {
+        // Own matcher, as the search worker may be using another at the same time
+        matcher = SearchEngine.newMatcher(terms, ignoreCase);
+
+        window = new char[64];
+
+        foundOffsets = new int[4];
+        foundLengths = new int[4];
+        foundTerms = new int[4];
+
+        pendingStarts = new int[4];
+        pendingEnds = new int[4];
+        pendingLengths = new int[4];
+        pendingCount = 0;
+
+        reported = 0;
+    }
+
+    public void patch(OccurrenceIndex index, CharSequence text, int start, int before, int count) {
+        // Bring a complete index up to date with an edit of the text (start, before and count as from a TextWatcher)
+        // Also used for settled text of an incomplete one, which is complete as far as the edit can reach
+        int length = matcher.getMaxLength();
+
+        // Empty terms occur nowhere
+        if (length == 0) {
+            return;
+        }
+
+        int shift = count - before;
+        int editEnd = start + count;
+
+        // Occurrences starting a term length or more before the edit are untouched, and so is everything the scan found
+        // up to them (one starting closer may now run on into the edit, as the longest term at a place wins)
+        int reach = Math.max(0, start - length + 1);
+        int from = index.firstEndingAfter(reach);
+        int position = Math.max(reach, validEnd(index, from));
+
+        // One starting before that is found again as it was, so rescan from its start
+        if (from < index.size() && index.isValid(from)) {
+            position = Math.min(position, index.getOffset(from));
+        }
+
+        // Drop occurrences that lost text to the edit or straddle it, noting how far the old scan skipped past them
+        int to = from;
+        int droppedEnd = editEnd;
+        while (to < index.size() && index.getOffset(to) < start + before) {
+            int end = index.getOffset(to) + index.getLength(to);
+            droppedEnd = Math.max(droppedEnd, end > start + before ? end + shift : editEnd);
+            to++;
+        }
+
+        int found = 0;
+
+        // Rescan until we are past the edit and clear of anything the old scan skipped, after which both scans agree
+        // This is usually just term-length characters either side of the edit, but a new occurrence can knock out
+        // an old one after it and so push the rescan further (only ever with self-overlapping terms)
+        while (position < Math.max(editEnd, droppedEnd)) {
+            int occurrence = find(text, position, Math.max(editEnd, droppedEnd) - 1);
+
+            if (occurrence == -1) {
+                break;
+            }
+
+            // Grow buffers as needed
+            if (found == foundOffsets.length) {
+                foundOffsets = Arrays.copyOf(foundOffsets, 2 * foundOffsets.length);
+                foundLengths = Arrays.copyOf(foundLengths, 2 * foundLengths.length);
+                foundTerms = Arrays.copyOf(foundTerms, 2 * foundTerms.length);
+            }
+
+            foundOffsets[found] = occurrence;
+            foundLengths[found] = matcher.getMatchLength();
+            foundTerms[found] = matcher.getMatchTerm();
+            found++;
+
+            position = occurrence + matcher.getMatchLength();
+
+            // Old occurrences after the edit that this one now overlaps have to go too
+            while (to < index.size() && index.getOffset(to) + shift < position) {
+                droppedEnd = Math.max(droppedEnd, index.getOffset(to) + index.getLength(to) + shift);
+                to++;
+            }
+        }
+
+        index.splice(from, to, foundOffsets, foundLengths, foundTerms, found, shift);
+    }
+
+    public void follow(OccurrenceIndex index, CharSequence text, int start, int before, int count) {
+        // Bring an index the search worker is still adding to up to date with an edit, leaving the worker running on its snapshot
+        int shift = index.getShiftEnd();
+
+        // Text is settled up to where the worker has reported, or to the first edit waiting for it, whichever comes first
+        int settled = reported + shift;
+        if (pendingCount > 0) {
+            settled = Math.min(settled, pendingStarts[0] + shift);
+        }
+
+        // Edits among settled occurrences are patched like in a complete index (pending ranges move along with its shift)
+        if (start + before <= settled) {
+            patch(index, text, start, before, count);
+            return;
+        }
+
+        // Patch the part of the edit before that right away, leaving the rest to start where settled text now ends
+        if (start < settled) {
+            patch(index, text, start, settled - start, 0);
+            before -= settled - start;
+            shift = index.getShiftEnd();
+        }
+
+        // Skip pending ranges that end before the edit (current offsets of snapshot ones move by the length change before them)
+        int first = 0;
+        while (first < pendingCount && pendingStarts[first] + shift + pendingLengths[first] < start) {
+            shift += pendingLengths[first] - (pendingEnds[first] - pendingStarts[first]);
+            first++;
+        }
+
+        // Edited range in the snapshot, and where it is now, widened to take in the pending ranges it touches
+        int rangeStart = start - shift;
+        int currentStart = start;
+        if (first < pendingCount && pendingStarts[first] + shift < start) {
+            rangeStart = pendingStarts[first];
+            currentStart = pendingStarts[first] + shift;
+        }
+
+        int rangeEnd = -1;
+        int currentEnd = start + before;
+        int last = first;
+        while (last < pendingCount && pendingStarts[last] + shift <= start + before) {
+            int pendingEnd = pendingStarts[last] + shift + pendingLengths[last];
+            if (pendingEnd >= currentEnd) {
+                rangeEnd = pendingEnds[last];
+                currentEnd = pendingEnd;
+            }
+
+            shift += pendingLengths[last] - (pendingEnds[last] - pendingStarts[last]);
+            last++;
+        }
+        if (rangeEnd == -1) {
+            rangeEnd = start + before - shift;
+        }
+
+        // Swap them for a single range, to be rescanned once the worker has reported past it
+        setPending(first, last, rangeStart, rangeEnd, currentEnd - currentStart + count - before);
+    }
+
+    public void add(OccurrenceIndex index, CharSequence text, int[] offsets, int[] lengths, int[] terms) {
+        // Add occurrences the search worker found in its snapshot (in document order), bringing them up to date with edits since
+        for (int k = 0; k < offsets.length; k++) {
+            int offset = offsets[k];
+            int length = lengths[k];
+
+            // Pending ranges the worker has now reported past are settled, so rescan them
+            settle(index, text, offset);
+
+            if (pendingCount > 0 && pendingStarts[0] < offset + length) {
+                // Occurrence lost text to an edit, so leave it to the rescan of the edited range, which has to reach its end
+                // (the worker skipped over whatever else started inside it)
+                widenFirst(offset + length);
+            } else if (offset + index.getShiftEnd() < validEnd(index, index.size())) {
+                // A rescan already found an occurrence running into this one (only ever with self-overlapping terms), so
+                // rescan its range too once the worker is past it
+                setPending(0, 0, offset, offset, 0);
+                widenFirst(offset + length);
+            } else {
+                index.add(offset, length, terms[k]);
+            }
+
+            reported = offset + length;
+        }
+
+        settle(index, text, reported);
+    }
+
+    public void finish(OccurrenceIndex index, CharSequence text) {
+        // The worker is done, so everything left waiting on it is settled
+        settle(index, text, Integer.MAX_VALUE);
+    }
+
+    private void settle(OccurrenceIndex index, CharSequence text, int reportedTo) {
+        // Rescan pending ranges ending by the given snapshot offset, as the worker won't report anything more inside them
+        while (pendingCount > 0 && pendingEnds[0] <= reportedTo) {
+            int start = pendingStarts[0] + index.getShiftEnd();
+            int before = pendingEnds[0] - pendingStarts[0];
+            int count = pendingLengths[0];
+
+            setPending(0, 1, 0, 0, -1);
+
+            // Now it's settled text like any other, so patch it in as if just edited
+            patch(index, text, start, before, count);
+        }
+    }
+
+    private void widenFirst(int end) {
+        // Widen the first pending range to reach the given snapshot offset, taking in any others it runs into
+        int last = 1;
+        int rangeEnd = pendingEnds[0];
+        int length = pendingLengths[0];
+        while (last < pendingCount && pendingStarts[last] <= end) {
+            length += pendingStarts[last] - rangeEnd + pendingLengths[last];
+            rangeEnd = pendingEnds[last];
+            last++;
+        }
+
+        // Text between the range and the offset is unedited, so it keeps its length
+        if (end > rangeEnd) {
+            length += end - rangeEnd;
+            rangeEnd = end;
+        }
+
+        setPending(0, last, pendingStarts[0], rangeEnd, length);
+    }
+
+    private void setPending(int from, int to, int start, int end, int length) {
+        // Replace pending ranges from..to (exclusive) with the given one, or with none if its length is negative
+        int count = length < 0 ? 0 : 1;
+        int pendingCountNew = pendingCount - (to - from) + count;
+
+        // Make room as needed
+        if (pendingCountNew > pendingStarts.length) {
+            pendingStarts = Arrays.copyOf(pendingStarts, 2 * pendingCountNew);
+            pendingEnds = Arrays.copyOf(pendingEnds, 2 * pendingCountNew);
+            pendingLengths = Arrays.copyOf(pendingLengths, 2 * pendingCountNew);
+        }
+
+        System.arraycopy(pendingStarts, to, pendingStarts, from + count, pendingCount - to);
+        System.arraycopy(pendingEnds, to, pendingEnds, from + count, pendingCount - to);
+        System.arraycopy(pendingLengths, to, pendingLengths, from + count, pendingCount - to);
+
+        if (count > 0) {
+            pendingStarts[from] = start;
+            pendingEnds[from] = end;
+            pendingLengths[from] = length;
+        }
+
+        pendingCount = pendingCountNew;
+    }
+
+    private static int validEnd(OccurrenceIndex index, int before) {
+        // End of the last valid occurrence before the given index (replaced ones keep their old length, so can't be trusted)
+        int previous = index.previousValid(before);
+
+        return previous == -1 ? 0 : index.getOffset(previous) + index.getLength(previous);
+    }
+
+    private int find(CharSequence text, int from, int lastStart) {
+        // Don't look past the end of the text
+        lastStart = Math.min(lastStart, text.length() - matcher.getMinLength());
+
+        if (lastStart < from) {
+            return -1;
+        }
+
+        // Copy out just the text that occurrences starting in range can touch
+        int windowLength = Math.min(lastStart + matcher.getMaxLength(), text.length()) - from;
+        if (windowLength > window.length) {
+            window = new char[Math.max(windowLength, 2 * window.length)];
+        }
+        for (int i = 0; i < windowLength; i++) {
+            window[i] = text.charAt(from + i);
+        }
+
+        int occurrence = matcher.find(window, 0, lastStart - from, windowLength);
+
+        return occurrence == -1 ? -1 : from + occurrence;
+    }
+
+}
@@ -0,0 +1,48 @@
+package io.microdev.source.search;
+
+import java.util.regex.MatchResult;
+
+public class RegexReplacement {
+
+    private RegexReplacement() {
+    }
+
+    public static String expand(MatchResult match, String replacement) {
+        StringBuilder result = new StringBuilder(replacement.length());
+
+        for (int i = 0; i < replacement.length(); i++) {
+            char c = replacement.charAt(i);
+
+            if (c == '\\' && i + 1 < replacement.length()) {
+                // Backslash takes the next char literally (e.g. "\$" for a dollar sign)
+                result.append(replacement.charAt(++i));
+            } else if (c == '$' && i + 1 < replacement.length() && isDigit(replacement.charAt(i + 1))) {
+                // Take first digit, then more as long as they still name an existing group (like Matcher does)
+                int group = replacement.charAt(++i) - '0';
+                while (i + 1 < replacement.length() && isDigit(replacement.charAt(i + 1)) && group * 10 + (replacement.charAt(i + 1) - '0') <= match.groupCount()) {
+                    group = group * 10 + (replacement.charAt(++i) - '0');
+                }
+
+                if (group <= match.groupCount()) {
+                    // Groups that didn't take part in the match are empty
+                    String text = match.group(group);
+                    if (text != null) {
+                        result.append(text);
+                    }
+                } else {
+                    // No such group, keep reference as typed rather than fail the replacement
+                    result.append('$').append(group);
+                }
+            } else {
+                result.append(c);
+            }
+        }
+
+        return result.toString();
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+}
@@ -0,0 +1,276 @@
+package io.microdev.source.search;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.microdev.source.util.CharArraySequence;
+
+public class SearchEngine {
+
+    // Characters scanned between checks for cancellation and deliveries of results
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    // Longest a regex may spend looking for a single match before we assume it's backtracking catastrophically
+    private static final long REGEX_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+    private final ExecutorService worker;
+
+    private Search current;
+
+    public SearchEngine() {
+        worker = Executors.newSingleThreadExecutor();
+    }
+
+    public Search search(char[] text, int length, String[] terms, boolean ignoreCase, Listener listener) {
+        // Precompute matcher tables once for the whole scan
+        return start(new Search(text, length, newMatcher(terms, ignoreCase), null, null, listener));
+    }
+
+    public Search searchRegex(char[] text, int length, Pattern pattern, String replacement, Listener listener) {
+        // Group references in the replacement are expanded here, under the watchdog, so nothing matches again on the UI thread
+        return start(new Search(text, length, null, pattern, replacement, listener));
+    }
+
+    public void cancel() {
+        if (current != null) {
+            current.cancel();
+            current = null;
+        }
+    }
+
+    public void shutdown() {
+        cancel();
+        worker.shutdown();
+    }
+
+    static TermMatcher newMatcher(String[] terms, boolean ignoreCase) {
+        // A lone term gets the skip-ahead matcher, several share one automaton and a single pass
+        if (terms.length == 1) {
+            return new HorspoolMatcher(terms[0], ignoreCase);
+        }
+
+        return new AhoCorasickMatcher(terms, ignoreCase);
+    }
+
+    private Search start(Search search) {
+        // Only one search runs at a time
+        cancel();
+
+        current = search;
+        worker.execute(current);
+
+        return current;
+    }
+
+    public static class Search implements Runnable {
+
+        private final char[] text;
+        private final int length;
+
+        private final TermMatcher matcher;
+        private final Pattern regex;
+        private final String replacement;
+
+        private final Listener listener;
+
+        private volatile boolean cancelled;
+
+        // Occurrences found but not yet delivered
+        private int[] foundOffsets;
+        private int[] foundLengths;
+        private int[] foundTerms;
+        private String[] foundReplacements;
+        private int foundCount;
+
+        private int total;
+
+        private Search(char[] text, int length, TermMatcher matcher, Pattern regex, String replacement, Listener listener) {
+            this.text = text;
+            this.length = length;
+            this.matcher = matcher;
+            this.regex = regex;
+            this.replacement = replacement;
+            this.listener = listener;
+
+            cancelled = false;
+
+            foundOffsets = new int[16];
+            foundLengths = new int[16];
+            foundTerms = new int[16];
+            foundReplacements = replacement != null ? new String[16] : null;
+            foundCount = 0;
+
+            total = 0;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public void run() {
+            if (regex != null) {
+                // Timed out searches end without completing
+                if (!runRegex()) {
+                    return;
+                }
+            } else {
+                runLiteral();
+            }
+
+            if (!cancelled) {
+                listener.onComplete(this, total);
+            }
+        }
+
+        private void runLiteral() {
+            // Empty terms occur nowhere
+            if (matcher.getMaxLength() == 0) {
+                return;
+            }
+
+            // Last offset at which the shortest term still fits
+            int offsetLast = length - matcher.getMinLength();
+
+            // Where to look for the next occurrence (carries across chunks, as an occurrence may push it past one)
+            int offset = 0;
+
+            // Scan snapshot in chunks
+            for (int chunkStart = 0; chunkStart <= offsetLast; chunkStart += CHUNK_SIZE) {
+                // Stop as soon as we learn we're no longer wanted
+                if (cancelled) {
+                    return;
+                }
+
+                int chunkEnd = Math.min(chunkStart + CHUNK_SIZE - 1, offsetLast);
+
+                // Occurrences starting in this chunk (they may run past its end)
+                int occurrence;
+                while ((occurrence = matcher.find(text, offset, chunkEnd, length)) != -1) {
+                    found(occurrence, matcher.getMatchLength(), matcher.getMatchTerm());
+
+                    // Continue after this occurrence, as overlapping ones can't all be replaced
+                    offset = occurrence + matcher.getMatchLength();
+                }
+
+                // Continue with the next chunk unless an occurrence already carried us into it
+                offset = Math.max(offset, chunkEnd + 1);
+
+                // Stream this chunk's occurrences out right away (the first hit shouldn't wait for the whole scan)
+                deliver();
+            }
+        }
+
+        private boolean runRegex() {
+            // Match over a view of the snapshot, with a watchdog to pull us out of runaway backtracking
+            WatchdogCharSequence sequence = new WatchdogCharSequence(new CharArraySequence(text, 0, length), this);
+            Matcher regexMatcher = regex.matcher(sequence);
+
+            // Deliver occurrences a chunk's worth of text at a time, like literal search
+            int chunkEnd = CHUNK_SIZE;
+
+            try {
+                while (true) {
+                    // Give each match its own time budget
+                    sequence.arm(REGEX_TIMEOUT);
+
+                    if (!regexMatcher.find()) {
+                        break;
+                    }
+
+                    // Moving into a new chunk, so send what the last one found
+                    if (regexMatcher.start() >= chunkEnd) {
+                        deliver();
+
+                        // Stop as soon as we learn we're no longer wanted
+                        if (cancelled) {
+                            return false;
+                        }
+
+                        chunkEnd = (regexMatcher.start() / CHUNK_SIZE + 1) * CHUNK_SIZE;
+                    }
+
+                    found(regexMatcher.start(), regexMatcher.end() - regexMatcher.start(), 0);
+
+                    // Expand the replacement while the match is at hand (group text is copied out, not read through the watchdog)
+                    if (replacement != null) {
+                        foundReplacements[foundCount - 1] = RegexReplacement.expand(regexMatcher, replacement);
+                    }
+
+                    // Don't sit on the very first hit
+                    if (total == 0) {
+                        deliver();
+                    }
+                }
+            } catch (WatchdogCharSequence.Expired e) {
+                // Give up quietly if cancelled, else report that the pattern ran too long
+                if (!cancelled) {
+                    deliver();
+                    listener.onTimeout(this);
+                }
+
+                return false;
+            }
+
+            deliver();
+
+            return true;
+        }
+
+        private void found(int offset, int length, int term) {
+            // Grow buffers as needed
+            if (foundCount == foundOffsets.length) {
+                foundOffsets = Arrays.copyOf(foundOffsets, 2 * foundOffsets.length);
+                foundLengths = Arrays.copyOf(foundLengths, 2 * foundLengths.length);
+                foundTerms = Arrays.copyOf(foundTerms, 2 * foundTerms.length);
+
+                if (foundReplacements != null) {
+                    foundReplacements = Arrays.copyOf(foundReplacements, 2 * foundReplacements.length);
+                }
+            }
+
+            foundOffsets[foundCount] = offset;
+            foundLengths[foundCount] = length;
+            foundTerms[foundCount] = term;
+            foundCount++;
+        }
+
+        private void deliver() {
+            if (foundCount > 0 && !cancelled) {
+                total += foundCount;
+                listener.onOccurrences(this, Arrays.copyOf(foundOffsets, foundCount), Arrays.copyOf(foundLengths, foundCount), Arrays.copyOf(foundTerms, foundCount), foundReplacements != null ? Arrays.copyOf(foundReplacements, foundCount) : null);
+            }
+
+            // Let go of delivered replacements
+            if (foundReplacements != null) {
+                Arrays.fill(foundReplacements, 0, foundCount, null);
+            }
+
+            foundCount = 0;
+        }
+
+    }
+
+    public interface Listener {
+
+        // All are called on the search worker thread, in document order
+
+        // Terms index into those searched for (always zero for a single term or a regex)
+        // Replacements are expanded per occurrence for a regex search given one, and null otherwise
+        void onOccurrences(Search search, int[] offsets, int[] lengths, int[] terms, String[] replacements);
+
+        void onComplete(Search search, int total);
+
+        void onTimeout(Search search);
+
+    }
+
+}
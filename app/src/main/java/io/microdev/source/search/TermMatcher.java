@@ -0,0 +1,20 @@
+package io.microdev.source.search;
+
+public interface TermMatcher {
+
+    // Matchers remember their last occurrence, so each thread needs its own
+
+    // Find the first occurrence starting from..lastStart (inclusive), reading no text at or past end, or return -1
+    int find(char[] text, int from, int lastStart, int end);
+
+    // Length and term (as an index into the terms given) of the occurrence last found
+    int getMatchLength();
+
+    int getMatchTerm();
+
+    // Shortest and longest possible occurrences
+    int getMinLength();
+
+    int getMaxLength();
+
+}
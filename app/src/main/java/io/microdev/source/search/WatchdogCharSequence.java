@@ -0,0 +1,69 @@
+package io.microdev.source.search;
+
+class WatchdogCharSequence implements CharSequence {
+
+    // Reads between looks at the clock (reading it on every char would dominate matching)
+    private static final int CHECK_INTERVAL = 4096;
+
+    // Thrown as control flow only, so a single instance does
+    private static final Expired EXPIRED = new Expired();
+
+    private final CharSequence sequence;
+    private final SearchEngine.Search search;
+
+    private long deadline;
+    private int countdown;
+
+    WatchdogCharSequence(CharSequence sequence, SearchEngine.Search search) {
+        this.sequence = sequence;
+        this.search = search;
+
+        countdown = CHECK_INTERVAL;
+    }
+
+    void arm(long timeoutNanos) {
+        deadline = System.nanoTime() + timeoutNanos;
+    }
+
+    @Override
+    public int length() {
+        return sequence.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        // Every so often, bail out of the regex engine if we've run too long or aren't wanted anymore
+        if (--countdown == 0) {
+            countdown = CHECK_INTERVAL;
+
+            if (search.isCancelled() || System.nanoTime() > deadline) {
+                throw EXPIRED;
+            }
+        }
+
+        return sequence.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return sequence.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return sequence.toString();
+    }
+
+    static class Expired extends RuntimeException {
+
+        private static final long serialVersionUID = 1l;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            // No stack trace needed, this is just control flow out of the regex engine
+            return this;
+        }
+
+    }
+
+}
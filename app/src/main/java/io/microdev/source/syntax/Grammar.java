@@ -0,0 +1,219 @@
+package io.microdev.source.syntax;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class Grammar implements Lexer {
+
+    // Chars below this get their class from a table rather than a search
+    private static final int ASCII_LIMIT = 128;
+
+    // Longest table we will believe when reading (anything longer is a corrupt length)
+    private static final int MAX_TABLE_LENGTH = 16 * 1024 * 1024;
+
+    // Char classes: class k covers chars from classStarts[k] up to the next class's start (chars no pattern tells apart share one)
+    private final int[] classStarts;
+    private final int classCount;
+    private final int[] asciiClasses;
+
+    // Class read at the end of a line, or -1 if no pattern looks for it
+    private final int endOfLineClass;
+
+    // One DFA for all modes: state s on class k goes to transitions[s * classCount + k] (-1 when no rule can match any more)
+    private final int[] transitions;
+
+    // Rule matched on reaching each state, or -1 (the earliest rule wins among those matching the same text)
+    private final int[] accepts;
+
+    // Where each mode starts in the DFA, and the style of text no rule of the mode matches
+    private final int[] modeStarts;
+    private final int[] modeStyles;
+
+    // Style of each rule, and the mode it switches to (-1 to stay in the same one)
+    private final int[] ruleStyles;
+    private final int[] ruleModes;
+
+    Grammar(int[] classStarts, int[] transitions, int[] accepts, int[] modeStarts, int[] modeStyles, int[] ruleStyles, int[] ruleModes) {
+        this.classStarts = classStarts;
+        this.transitions = transitions;
+        this.accepts = accepts;
+        this.modeStarts = modeStarts;
+        this.modeStyles = modeStyles;
+        this.ruleStyles = ruleStyles;
+        this.ruleModes = ruleModes;
+
+        classCount = classStarts.length;
+        endOfLineClass = classStarts[classCount - 1] == GrammarCompiler.END_OF_LINE ? classCount - 1 : -1;
+
+        // Look up classes of the chars most text is made of once, up front
+        asciiClasses = new int[ASCII_LIMIT];
+        for (int c = 0; c < ASCII_LIMIT; c++) {
+            asciiClasses[c] = findClass(c);
+        }
+    }
+
+    public static Grammar read(DataInputStream in) throws IOException {
+        int[] classStarts = readInts(in);
+        int[] transitions = readInts(in);
+        int[] accepts = readInts(in);
+        int[] modeStarts = readInts(in);
+        int[] modeStyles = readInts(in);
+        int[] ruleStyles = readInts(in);
+        int[] ruleModes = readInts(in);
+
+        // Tables are indexed by each other while lexing, so check every index would land before trusting them
+        int stateCount = accepts.length;
+        int modeCount = modeStarts.length;
+        int ruleCount = ruleStyles.length;
+
+        if (classStarts.length == 0 || classStarts[0] != 0 || modeCount == 0 || modeStyles.length != modeCount || ruleModes.length != ruleCount) {
+            throw new IOException("Grammar tables don't fit together");
+        }
+        for (int k = 1; k < classStarts.length; k++) {
+            if (classStarts[k] <= classStarts[k - 1] || classStarts[k] > GrammarCompiler.END_OF_LINE) {
+                throw new IOException("Grammar char classes out of order");
+            }
+        }
+        if (transitions.length != (long) stateCount * classStarts.length) {
+            throw new IOException("Grammar has " + transitions.length + " transitions for " + stateCount + " states of " + classStarts.length + " classes");
+        }
+
+        checkRange(transitions, -1, stateCount);
+        checkRange(accepts, -1, ruleCount);
+        checkRange(modeStarts, 0, stateCount);
+        checkRange(modeStyles, 0, TokenStyle.COUNT);
+        checkRange(ruleStyles, 0, TokenStyle.COUNT);
+        checkRange(ruleModes, -1, modeCount);
+
+        return new Grammar(classStarts, transitions, accepts, modeStarts, modeStyles, ruleStyles, ruleModes);
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        writeInts(out, classStarts);
+        writeInts(out, transitions);
+        writeInts(out, accepts);
+        writeInts(out, modeStarts);
+        writeInts(out, modeStyles);
+        writeInts(out, ruleStyles);
+        writeInts(out, ruleModes);
+    }
+
+    public int getStateCount() {
+        return accepts.length;
+    }
+
+    @Override
+    public int getInitialState() {
+        // First mode defined
+        return 0;
+    }
+
+    @Override
+    public int tokenizeLine(CharSequence text, int start, int end, int state, Sink sink) {
+        int mode = state;
+        int i = start;
+
+        while (i < end) {
+            // Run the mode's DFA as far as it goes, remembering the longest match on the way
+            int dfaState = modeStarts[mode];
+            int matchEnd = -1;
+            int matchRule = -1;
+
+            int j = i;
+            while (j < end) {
+                char c = text.charAt(j++);
+
+                dfaState = transitions[dfaState * classCount + (c < ASCII_LIMIT ? asciiClasses[c] : findClass(c))];
+                if (dfaState < 0) {
+                    break;
+                }
+
+                if (accepts[dfaState] >= 0) {
+                    matchEnd = j;
+                    matchRule = accepts[dfaState];
+                }
+            }
+
+            // Made it to the end of the line, where a pattern may be waiting on it
+            if (dfaState >= 0 && j == end && endOfLineClass >= 0) {
+                dfaState = transitions[dfaState * classCount + endOfLineClass];
+
+                if (dfaState >= 0 && accepts[dfaState] >= 0) {
+                    matchEnd = end;
+                    matchRule = accepts[dfaState];
+                }
+            }
+
+            // Nothing matches here, so this char takes the mode's own style
+            if (matchRule < 0) {
+                sink.addToken(i, i + 1, modeStyles[mode]);
+                i++;
+                continue;
+            }
+
+            sink.addToken(i, matchEnd, ruleStyles[matchRule]);
+
+            if (ruleModes[matchRule] >= 0) {
+                mode = ruleModes[matchRule];
+            }
+
+            i = matchEnd;
+        }
+
+        return mode;
+    }
+
+    private int findClass(int c) {
+        // Binary search for the last class starting at or before the char
+        int low = 0;
+        int high = classCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+
+            if (classStarts[mid] <= c) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return low;
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int length = in.readInt();
+
+        // Impossible length means the rest is garbage
+        if (length < 0 || length > MAX_TABLE_LENGTH) {
+            throw new IOException("Grammar table length " + length + " out of range");
+        }
+
+        // Read a whole table at once, then convert it in bulk
+        byte[] bytes = new byte[4 * length];
+        in.readFully(bytes);
+
+        int[] values = new int[bytes.length / 4];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+
+        return values;
+    }
+
+    private static void checkRange(int[] values, int min, int limit) throws IOException {
+        for (int value : values) {
+            if (value < min || value >= limit) {
+                throw new IOException("Grammar table entry " + value + " out of range");
+            }
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        byte[] bytes = new byte[4 * values.length];
+        ByteBuffer.wrap(bytes).asIntBuffer().put(values);
+
+        out.writeInt(values.length);
+        out.write(bytes);
+    }
+
+}
@@ -0,0 +1,166 @@
+package io.microdev.source.syntax;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public class GrammarCache {
+
+    private static final String TAG = "GrammarCache";
+
+    private static final String DIR_NAME = "grammars";
+    private static final String FILE_EXTENSION = ".grammar";
+
+    private static final int MAGIC = 0x5347524d;
+    private static final int VERSION = 2;
+
+    // Grammars compiled or read in this process, by name
+    private static final Map<String, Grammar> loaded = new HashMap<>();
+
+    private final File dir;
+
+    public GrammarCache(File cacheDir) {
+        dir = new File(cacheDir, DIR_NAME);
+    }
+
+    public static Grammar getLoaded(String name) {
+        synchronized (loaded) {
+            return loaded.get(name);
+        }
+    }
+
+    public Grammar load(String name, String definition) {
+        // Already in memory
+        Grammar grammar = getLoaded(name);
+        if (grammar != null) {
+            return grammar;
+        }
+
+        // Tables stored by an earlier run, as long as they were compiled from this very definition
+        try {
+            grammar = read(name, definition);
+        } catch (IOException | RuntimeException e) {
+            // Compiled again below, as if nothing had been stored (whatever is wrong with the file)
+            Log.w(TAG, "Unable to read grammar " + name, e);
+        }
+
+        // Compile and store for next time
+        if (grammar == null) {
+            grammar = GrammarCompiler.compile(definition);
+
+            try {
+                write(name, definition, grammar);
+            } catch (IOException e) {
+                // Losing this only means compiling again next time
+                Log.w(TAG, "Unable to write grammar " + name, e);
+            }
+        }
+
+        synchronized (loaded) {
+            loaded.put(name, grammar);
+        }
+
+        return grammar;
+    }
+
+    private File getFile(String name) {
+        return new File(dir, name + FILE_EXTENSION);
+    }
+
+    private Grammar read(String name, String definition) throws IOException {
+        File file = getFile(name);
+
+        // Nothing was stored for this grammar
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            // Check header, and that the definition hasn't changed since (as with an app update)
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != definition.length() || in.readInt() != definition.hashCode()) {
+                return null;
+            }
+
+            int length = in.readInt();
+            int checksum = in.readInt();
+
+            // Impossible length means the file was cut short or is garbage
+            if (length < 0 || length > file.length()) {
+                return null;
+            }
+
+            byte[] tables = new byte[length];
+            in.readFully(tables);
+
+            CRC32 crc = new CRC32();
+            crc.update(tables, 0, tables.length);
+
+            // Tables that fail their checksum are as good as missing
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+
+            return Grammar.read(new DataInputStream(new ByteArrayInputStream(tables)));
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(String name, String definition, Grammar grammar) throws IOException {
+        // Make sure cache directory exists
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+
+        // Tables are built in memory first so their length and checksum are known up front
+        ByteArrayOutputStream tables = new ByteArrayOutputStream();
+        grammar.write(new DataOutputStream(tables));
+        byte[] bytes = tables.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        // Write to a temporary file of our own first, so a crash can't leave half a grammar and loads of the same one
+        // at once can't write over each other
+        File file = getFile(name);
+        File fileTemp = File.createTempFile(name, FILE_EXTENSION + ".tmp", dir);
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileTemp), 64 * 1024));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(definition.length());
+                out.writeInt(definition.hashCode());
+                out.writeInt(bytes.length);
+                out.writeInt((int) crc.getValue());
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+
+            if (!fileTemp.renameTo(file)) {
+                throw new IOException("Unable to rename " + fileTemp + " to " + file);
+            }
+        } finally {
+            // Gone already once renamed
+            if (fileTemp.exists() && !fileTemp.delete()) {
+                Log.w(TAG, "Unable to delete " + fileTemp);
+            }
+        }
+    }
+
+}
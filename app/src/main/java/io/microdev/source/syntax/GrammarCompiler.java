@@ -0,0 +1,568 @@
+package io.microdev.source.syntax;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+public class GrammarCompiler {
+
+    // Style names as written in definitions, indexed by style
+    private static final String[] STYLE_NAMES = { "plain", "keyword", "type", "string", "number", "comment", "operator" };
+
+    // Chars are UTF-16 units, so every char set is within this
+    private static final int CHAR_LIMIT = 0x10000;
+
+    // Read once the end of a line is reached, so $ can match there
+    static final int END_OF_LINE = CHAR_LIMIT;
+
+    private static final int[] DIGIT = { '0', '9' };
+    private static final int[] WORD = { '0', '9', 'A', 'Z', '_', '_', 'a', 'z' };
+    private static final int[] SPACE = { '\t', '\t', 0x0b, '\r', ' ', ' ' };
+    private static final int[] ANY_BUT_LINE_FEED = { 0, '\n' - 1, '\n' + 1, CHAR_LIMIT - 1 };
+
+    // NFA for every mode, built as definition lines are read
+    private final List<NfaState> nfaStates;
+
+    private final List<String> modeNames;
+    private final List<NfaState> modeStarts;
+    private final List<Integer> modeStyles;
+
+    private final List<Integer> ruleStyles;
+    private final List<String> ruleModeNames;
+
+    // Pattern being parsed, and where in it (and the definition) we are
+    private String pattern;
+    private int position;
+    private int lineNumber;
+
+    private GrammarCompiler() {
+        nfaStates = new ArrayList<>();
+
+        modeNames = new ArrayList<>();
+        modeStarts = new ArrayList<>();
+        modeStyles = new ArrayList<>();
+
+        ruleStyles = new ArrayList<>();
+        ruleModeNames = new ArrayList<>();
+    }
+
+    public static Grammar compile(String definition) {
+        // Definitions are made of lines like these (blank lines and lines starting with # are skipped):
+        //   mode <name> [<style of text no rule matches>]
+        //   <style> <pattern> [> <mode to switch to>]
+        // Patterns take literals, ., [...] and [^...] classes, \d \w \s (and their negations), $ for the end of the line, groups, |, *, + and ?
+        // At each position the longest match wins, and the rule defined first wins among matches of the same length
+        GrammarCompiler compiler = new GrammarCompiler();
+        compiler.parse(definition);
+
+        return compiler.build();
+    }
+
+    private void parse(String definition) {
+        String[] lines = definition.split("\n");
+
+        for (lineNumber = 1; lineNumber <= lines.length; lineNumber++) {
+            String line = lines[lineNumber - 1].trim();
+            pattern = null;
+
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] words = line.split("\\s+");
+
+            if (words[0].equals("mode")) {
+                // Rules from here on belong to a new mode
+                if (words.length < 2 || words.length > 3) {
+                    throw error("Expected mode name and optional style");
+                }
+
+                modeNames.add(words[1]);
+                modeStarts.add(newState());
+                modeStyles.add(words.length == 3 ? parseStyle(words[2]) : TokenStyle.PLAIN);
+                continue;
+            }
+
+            if (modeNames.isEmpty()) {
+                throw error("Rule before any mode");
+            }
+
+            // Style, then the pattern, then maybe a mode to switch to
+            int style = parseStyle(words[0]);
+            String rest = line.substring(words[0].length()).trim();
+            String modeName = null;
+
+            int arrow = rest.lastIndexOf(" > ");
+            if (arrow != -1 && rest.substring(arrow + 3).trim().matches("\\S+")) {
+                modeName = rest.substring(arrow + 3).trim();
+                rest = rest.substring(0, arrow).trim();
+            }
+
+            // Rule accepts at the end of its pattern, reached from the start of its mode
+            pattern = rest;
+            position = 0;
+            Fragment fragment = parseAlternation();
+            if (position < pattern.length()) {
+                throw error("Unexpected " + pattern.charAt(position));
+            }
+
+            fragment.end.accept = ruleStyles.size();
+            modeStarts.get(modeStarts.size() - 1).epsilon.add(fragment.start);
+
+            ruleStyles.add(style);
+            ruleModeNames.add(modeName);
+        }
+
+        if (modeNames.isEmpty()) {
+            throw new IllegalArgumentException("No modes defined");
+        }
+    }
+
+    private int parseStyle(String name) {
+        for (int style = 0; style < STYLE_NAMES.length; style++) {
+            if (STYLE_NAMES[style].equals(name)) {
+                return style;
+            }
+        }
+
+        throw error("Unknown style " + name);
+    }
+
+    private Fragment parseAlternation() {
+        Fragment fragment = parseSequence();
+
+        while (position < pattern.length() && pattern.charAt(position) == '|') {
+            position++;
+
+            // Either branch gets from a new start to a new end
+            Fragment other = parseSequence();
+            NfaState start = newState();
+            NfaState end = newState();
+
+            start.epsilon.add(fragment.start);
+            start.epsilon.add(other.start);
+            fragment.end.epsilon.add(end);
+            other.end.epsilon.add(end);
+
+            fragment = new Fragment(start, end);
+        }
+
+        return fragment;
+    }
+
+    private Fragment parseSequence() {
+        NfaState start = newState();
+        NfaState end = start;
+
+        // Chain pieces up to the end of this branch
+        while (position < pattern.length() && pattern.charAt(position) != '|' && pattern.charAt(position) != ')') {
+            Fragment fragment = parseRepeat();
+            end.epsilon.add(fragment.start);
+            end = fragment.end;
+        }
+
+        return new Fragment(start, end);
+    }
+
+    private Fragment parseRepeat() {
+        Fragment fragment = parseAtom();
+
+        while (position < pattern.length()) {
+            char c = pattern.charAt(position);
+            if (c != '*' && c != '+' && c != '?') {
+                break;
+            }
+            position++;
+
+            NfaState start = newState();
+            NfaState end = newState();
+            start.epsilon.add(fragment.start);
+            fragment.end.epsilon.add(end);
+
+            // Skipping is allowed for * and ?, going round again for * and +
+            if (c != '+') {
+                start.epsilon.add(end);
+            }
+            if (c != '?') {
+                fragment.end.epsilon.add(fragment.start);
+            }
+
+            fragment = new Fragment(start, end);
+        }
+
+        return fragment;
+    }
+
+    private Fragment parseAtom() {
+        char c = pattern.charAt(position++);
+
+        switch (c) {
+        case '(':
+            // Groups only group, so non-capturing ones are the same thing
+            if (pattern.startsWith("?:", position)) {
+                position += 2;
+            }
+
+            Fragment fragment = parseAlternation();
+            if (position >= pattern.length() || pattern.charAt(position) != ')') {
+                throw error("Unclosed group");
+            }
+            position++;
+
+            return fragment;
+        case '[':
+            return charFragment(parseClass());
+        case '.':
+            return charFragment(ANY_BUT_LINE_FEED);
+        case '$':
+            return charFragment(new int[] { END_OF_LINE, END_OF_LINE });
+        case '\\':
+            return charFragment(parseEscape());
+        case '*':
+        case '+':
+        case '?':
+            throw error("Nothing to repeat before " + c);
+        default:
+            return charFragment(new int[] { c, c });
+        }
+    }
+
+    private int[] parseClass() {
+        boolean negate = position < pattern.length() && pattern.charAt(position) == '^';
+        if (negate) {
+            position++;
+        }
+
+        int[] ranges = new int[0];
+        boolean first = true;
+
+        while (true) {
+            if (position >= pattern.length()) {
+                throw error("Unclosed class");
+            }
+
+            char c = pattern.charAt(position++);
+
+            // A ] right at the start is just a ]
+            if (c == ']' && !first) {
+                break;
+            }
+            first = false;
+
+            int[] item = c == '\\' ? parseEscape() : new int[] { c, c };
+
+            // Single char followed by a dash and something other than the end makes a range
+            if (item.length == 2 && item[0] == item[1] && position + 1 < pattern.length() && pattern.charAt(position) == '-' && pattern.charAt(position + 1) != ']') {
+                position++;
+
+                char d = pattern.charAt(position++);
+                int[] high = d == '\\' ? parseEscape() : new int[] { d, d };
+                if (high.length != 2 || high[0] != high[1] || high[0] < item[0]) {
+                    throw error("Bad range");
+                }
+
+                item = new int[] { item[0], high[0] };
+            }
+
+            ranges = union(ranges, item);
+        }
+
+        return negate ? complement(ranges) : ranges;
+    }
+
+    private int[] parseEscape() {
+        if (position >= pattern.length()) {
+            throw error("Trailing backslash");
+        }
+
+        char c = pattern.charAt(position++);
+
+        switch (c) {
+        case 'd':
+            return DIGIT;
+        case 'D':
+            return complement(DIGIT);
+        case 'w':
+            return WORD;
+        case 'W':
+            return complement(WORD);
+        case 's':
+            return SPACE;
+        case 'S':
+            return complement(SPACE);
+        case 't':
+            return new int[] { '\t', '\t' };
+        case 'n':
+            return new int[] { '\n', '\n' };
+        case 'r':
+            return new int[] { '\r', '\r' };
+        default:
+            // Anything else stands for itself
+            return new int[] { c, c };
+        }
+    }
+
+    private Fragment charFragment(int[] ranges) {
+        NfaState start = newState();
+        NfaState end = newState();
+
+        start.ranges = ranges;
+        start.target = end;
+
+        return new Fragment(start, end);
+    }
+
+    private NfaState newState() {
+        NfaState state = new NfaState(nfaStates.size());
+        nfaStates.add(state);
+
+        return state;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Line " + lineNumber + ": " + message + (pattern == null ? "" : " in " + pattern));
+    }
+
+    private Grammar build() {
+        // Modes that rules switch to
+        int[] ruleModes = new int[ruleStyles.size()];
+        for (int rule = 0; rule < ruleModes.length; rule++) {
+            String modeName = ruleModeNames.get(rule);
+            ruleModes[rule] = modeName == null ? -1 : modeNames.indexOf(modeName);
+
+            if (modeName != null && ruleModes[rule] == -1) {
+                throw new IllegalArgumentException("Unknown mode " + modeName);
+            }
+        }
+
+        // Split chars into classes no pattern tells apart, so tables have a column per class rather than per char
+        TreeSet<Integer> boundaries = new TreeSet<>();
+        boundaries.add(0);
+        for (NfaState state : nfaStates) {
+            if (state.ranges != null) {
+                for (int i = 0; i < state.ranges.length; i += 2) {
+                    boundaries.add(state.ranges[i]);
+                    if (state.ranges[i + 1] + 1 < END_OF_LINE) {
+                        boundaries.add(state.ranges[i + 1] + 1);
+                    }
+                }
+            }
+        }
+
+        int[] classStarts = new int[boundaries.size()];
+        int classCount = 0;
+        for (int boundary : boundaries) {
+            classStarts[classCount++] = boundary;
+        }
+
+        // Classes each char edge takes (every class lies wholly inside or outside each edge's ranges)
+        for (NfaState state : nfaStates) {
+            if (state.ranges != null) {
+                int[] classes = new int[classCount];
+                int count = 0;
+
+                for (int k = 0; k < classCount; k++) {
+                    if (contains(state.ranges, classStarts[k])) {
+                        classes[count++] = k;
+                    }
+                }
+
+                state.classes = Arrays.copyOf(classes, count);
+            }
+        }
+
+        // Subset construction, with a start state for each mode
+        Map<BitSet, Integer> dfaIds = new HashMap<>();
+        List<BitSet> dfaSets = new ArrayList<>();
+
+        int[] modeStartIds = new int[modeNames.size()];
+        for (int mode = 0; mode < modeStartIds.length; mode++) {
+            BitSet set = new BitSet();
+            closure(modeStarts.get(mode), set);
+
+            modeStartIds[mode] = addDfaState(set, dfaIds, dfaSets);
+        }
+
+        int[] transitions = new int[64 * classCount];
+        int[] accepts = new int[64];
+
+        BitSet[] moves = new BitSet[classCount];
+
+        for (int d = 0; d < dfaSets.size(); d++) {
+            BitSet set = dfaSets.get(d);
+
+            if ((d + 1) * classCount > transitions.length) {
+                transitions = Arrays.copyOf(transitions, 2 * transitions.length);
+            }
+            if (d >= accepts.length) {
+                accepts = Arrays.copyOf(accepts, 2 * accepts.length);
+            }
+
+            // Earliest rule ending here is the one matched
+            accepts[d] = -1;
+            Arrays.fill(moves, null);
+
+            for (int n = set.nextSetBit(0); n >= 0; n = set.nextSetBit(n + 1)) {
+                NfaState state = nfaStates.get(n);
+
+                if (state.accept >= 0 && (accepts[d] == -1 || state.accept < accepts[d])) {
+                    accepts[d] = state.accept;
+                }
+
+                // Gather where each class leads
+                if (state.classes != null) {
+                    for (int k : state.classes) {
+                        if (moves[k] == null) {
+                            moves[k] = new BitSet();
+                        }
+
+                        closure(state.target, moves[k]);
+                    }
+                }
+            }
+
+            for (int k = 0; k < classCount; k++) {
+                transitions[d * classCount + k] = moves[k] == null ? -1 : addDfaState(moves[k], dfaIds, dfaSets);
+            }
+        }
+
+        int dfaCount = dfaSets.size();
+
+        return new Grammar(classStarts, Arrays.copyOf(transitions, dfaCount * classCount), Arrays.copyOf(accepts, dfaCount), modeStartIds, toArray(modeStyles), toArray(ruleStyles), ruleModes);
+    }
+
+    private void closure(NfaState state, BitSet set) {
+        // Add the state and everything reachable from it without reading a char
+        if (set.get(state.id)) {
+            return;
+        }
+        set.set(state.id);
+
+        for (NfaState next : state.epsilon) {
+            closure(next, set);
+        }
+    }
+
+    private static int addDfaState(BitSet set, Map<BitSet, Integer> dfaIds, List<BitSet> dfaSets) {
+        Integer id = dfaIds.get(set);
+
+        if (id == null) {
+            id = dfaSets.size();
+            dfaIds.put(set, id);
+            dfaSets.add(set);
+        }
+
+        return id;
+    }
+
+    private static boolean contains(int[] ranges, int c) {
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (c >= ranges[i] && c <= ranges[i + 1]) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        // Sort ranges by their low end, then merge any that overlap or touch
+        long[] packed = new long[(a.length + b.length) / 2];
+        for (int i = 0; i < a.length; i += 2) {
+            packed[i / 2] = (long) a[i] << 32 | a[i + 1];
+        }
+        for (int i = 0; i < b.length; i += 2) {
+            packed[(a.length + i) / 2] = (long) b[i] << 32 | b[i + 1];
+        }
+        Arrays.sort(packed);
+
+        int[] merged = new int[2 * packed.length];
+        int count = 0;
+        for (long range : packed) {
+            int low = (int) (range >>> 32);
+            int high = (int) range;
+
+            if (count > 0 && low <= merged[count - 1] + 1) {
+                merged[count - 1] = Math.max(merged[count - 1], high);
+            } else {
+                merged[count++] = low;
+                merged[count++] = high;
+            }
+        }
+
+        return Arrays.copyOf(merged, count);
+    }
+
+    private static int[] complement(int[] ranges) {
+        // Gaps between the (sorted, merged) ranges
+        ranges = union(ranges, new int[0]);
+
+        int[] gaps = new int[ranges.length + 2];
+        int count = 0;
+        int next = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > next) {
+                gaps[count++] = next;
+                gaps[count++] = ranges[i] - 1;
+            }
+
+            next = ranges[i + 1] + 1;
+        }
+        if (next < CHAR_LIMIT) {
+            gaps[count++] = next;
+            gaps[count++] = CHAR_LIMIT - 1;
+        }
+
+        return Arrays.copyOf(gaps, count);
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+
+        return array;
+    }
+
+    private static class NfaState {
+
+        private final int id;
+
+        // States reachable without reading a char
+        private final List<NfaState> epsilon;
+
+        // Chars on the one edge that reads a char (and the classes they make up), and where it goes
+        private int[] ranges;
+        private int[] classes;
+        private NfaState target;
+
+        // Rule matched on reaching this state, or -1
+        private int accept;
+
+        private NfaState(int id) {
+            this.id = id;
+
+            epsilon = new ArrayList<>();
+            accept = -1;
+        }
+
+    }
+
+    private static class Fragment {
+
+        private final NfaState start;
+        private final NfaState end;
+
+        private Fragment(NfaState start, NfaState end) {
+            this.start = start;
+            this.end = end;
+        }
+
+    }
+
+}
@@ -0,0 +1,19 @@
+package io.microdev.source.syntax;
+
+public interface Lexer {
+
+    // State at the start of a document
+    int getInitialState();
+
+    // Tokenize one line (without its line feed) from the state it starts in, returning the state the next line starts in
+    int tokenizeLine(CharSequence text, int start, int end, int state, Sink sink);
+
+    interface Sink {
+
+        // Styled stretches of the line in order, with absolute offsets (anything between them is plain)
+
+        void addToken(int start, int end, int style);
+
+    }
+
+}
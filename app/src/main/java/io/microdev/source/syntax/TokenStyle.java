@@ -0,0 +1,21 @@
+package io.microdev.source.syntax;
+
+public final class TokenStyle {
+
+    // Text that isn't covered by a token is plain
+    public static final int PLAIN = 0;
+
+    public static final int KEYWORD = 1;
+    public static final int TYPE = 2;
+    public static final int STRING = 3;
+    public static final int NUMBER = 4;
+    public static final int COMMENT = 5;
+    public static final int OPERATOR = 6;
+
+    // Number of styles, for tables indexed by style
+    public static final int COUNT = 7;
+
+    private TokenStyle() {
+    }
+
+}
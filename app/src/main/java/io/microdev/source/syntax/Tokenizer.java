@@ -0,0 +1,422 @@
+package io.microdev.source.syntax;
+
+import java.util.Arrays;
+
+import io.microdev.source.util.CharArraySequence;
+import io.microdev.source.util.GetCharsSequence;
+
+public class Tokenizer {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // A batch ends after this many lines, or once its text is this long (but always takes at least one line)
+    private static final int BATCH_LINES = 500;
+    private static final int BATCH_CHARS = 32 * 1024;
+
+    // Shared by every line without styled text
+    private static final int[] NO_TOKENS = new int[0];
+
+    private Lexer lexer;
+
+    // Lexer state each line starts in (for out of date lines, a best guess until lexing gets there)
+    private int[] lineStates;
+
+    // Tokens of each line as (start within line, length, style) triples, or null where out of date
+    private int[][] lineTokens;
+
+    private int lineCount;
+
+    // Every line before this one is up to date
+    private int firstDirtyLine;
+
+    // Bumped whenever everything lexed so far is thrown away, which makes batches from before useless
+    private int generation;
+
+    // Line changes since the outstanding batch was prepared, as (line, removed, inserted) triples
+    private boolean batchOutstanding;
+    private int[] edits;
+    private int editCount;
+
+    private final LineLexer lineLexer;
+
+    public Tokenizer() {
+        lineStates = new int[INITIAL_CAPACITY];
+        lineTokens = new int[INITIAL_CAPACITY][];
+
+        // An empty document still has a single line
+        lineCount = 1;
+        firstDirtyLine = 0;
+
+        generation = 0;
+
+        batchOutstanding = false;
+        edits = new int[3 * 8];
+        editCount = 0;
+
+        lineLexer = new LineLexer();
+    }
+
+    public Lexer getLexer() {
+        return lexer;
+    }
+
+    public void setLexer(Lexer lexer) {
+        this.lexer = lexer;
+
+        // Nothing lexed so far holds for a different lexer
+        reset(lineCount);
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    public int[] getLineTokens(int line) {
+        return lineTokens[line];
+    }
+
+    public boolean isLineTokenized(int line) {
+        return lineTokens[line] != null;
+    }
+
+    public boolean isTokenized() {
+        return firstDirtyLine == lineCount;
+    }
+
+    public void reset(int lineCount) {
+        ensureCapacity(lineCount);
+
+        // Start over with every line out of date, guessing each one starts where a document does
+        Arrays.fill(lineTokens, null);
+        Arrays.fill(lineStates, lexer == null ? 0 : lexer.getInitialState());
+
+        this.lineCount = lineCount;
+        firstDirtyLine = 0;
+
+        // Batches under way were lexed for what's gone now
+        generation++;
+        editCount = 0;
+    }
+
+    public void onLinesChanged(int line, int removed, int inserted) {
+        // Lines line to line + removed were replaced by lines line to line + inserted
+        int newLineCount = lineCount - removed + inserted;
+        ensureCapacity(newLineCount);
+
+        // Lines after the change move along, keeping their states and tokens (what they start in is checked again when lexing reaches them)
+        int tail = lineCount - line - removed - 1;
+        System.arraycopy(lineStates, line + removed + 1, lineStates, line + inserted + 1, tail);
+        System.arraycopy(lineTokens, line + removed + 1, lineTokens, line + inserted + 1, tail);
+
+        // Changed lines need lexing (the first one still starts in the same state, as the change came after its start)
+        Arrays.fill(lineTokens, line, line + inserted + 1, null);
+
+        // Let go of lines that moved up
+        if (newLineCount < lineCount) {
+            Arrays.fill(lineTokens, newLineCount, lineCount, null);
+        }
+
+        lineCount = newLineCount;
+        firstDirtyLine = Math.min(firstDirtyLine, line);
+
+        // Keep track of changes a batch under way didn't see, so its results can be lined up with the text as it is now
+        if (batchOutstanding) {
+            if (editCount + 3 > edits.length) {
+                edits = Arrays.copyOf(edits, 2 * edits.length);
+            }
+
+            edits[editCount++] = line;
+            edits[editCount++] = removed;
+            edits[editCount++] = inserted;
+        }
+    }
+
+    public int tokenize(CharSequence text, Lines lines, int lineLimit, Listener listener) {
+        // Nothing to do without a lexer
+        if (lexer == null) {
+            return 0;
+        }
+
+        int lexed = 0;
+        int line = nextDirtyLine(firstDirtyLine);
+
+        while (line < lineCount && lexed < lineLimit) {
+            int runFirst = line;
+
+            // Lex on from an out of date line until a line starts in the same state it did before (from there on, nothing changes)
+            do {
+                lineTokens[line] = lineLexer.lex(lexer, text, lines.getLineStart(line), lines.getLineEnd(line), lineStates[line]);
+                int state = lineLexer.state;
+                lexed++;
+                line++;
+
+                if (line == lineCount || (lineTokens[line] != null && lineStates[line] == state)) {
+                    break;
+                }
+
+                // Next line starts differently now, so its tokens no longer hold
+                lineStates[line] = state;
+                lineTokens[line] = null;
+            } while (lexed < lineLimit);
+
+            if (listener != null) {
+                listener.onLinesTokenized(runFirst, line - 1);
+            }
+
+            // On to the next change further down
+            line = nextDirtyLine(line);
+        }
+
+        firstDirtyLine = line;
+
+        return lexed;
+    }
+
+    public Batch prepare(CharSequence text, Lines lines, int priorityFirst, int priorityLast) {
+        // Nothing to do without a lexer
+        if (lexer == null) {
+            return null;
+        }
+
+        // Start with out of date lines in the priority range (the ones on screen), then go down the rest from the top
+        int line = nextDirtyLine(Math.max(0, priorityFirst));
+        if (line > priorityLast || line >= lineCount) {
+            line = firstDirtyLine = nextDirtyLine(firstDirtyLine);
+        }
+
+        if (line >= lineCount) {
+            return null;
+        }
+
+        // Take lines on from there, whether up to date or not, as lexing may have to go on past the out of date ones
+        int start = lines.getLineStart(line);
+        int lineLast = line;
+        while (lineLast + 1 < lineCount && lineLast + 1 - line < BATCH_LINES && lines.getLineEnd(lineLast + 1) - start <= BATCH_CHARS) {
+            lineLast++;
+        }
+        int end = lines.getLineEnd(lineLast);
+
+        // Copy the text, so the batch can be lexed on another thread while the text changes here
+        char[] chars = new char[end - start];
+        if (text instanceof GetCharsSequence) {
+            ((GetCharsSequence) text).getChars(start, end, chars, 0);
+        } else if (text instanceof String) {
+            ((String) text).getChars(start, end, chars, 0);
+        } else {
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = text.charAt(start + i);
+            }
+        }
+
+        // Changes from now on are logged against it
+        batchOutstanding = true;
+        editCount = 0;
+
+        return new Batch(lexer, generation, line, lineLast - line + 1, lineStates[line], chars);
+    }
+
+    public int apply(Batch batch, Listener listener) {
+        batchOutstanding = false;
+
+        // Lexer changed or everything was reset since
+        if (batch.generation != generation) {
+            return -1;
+        }
+
+        // Line the batch up with changes made since it was prepared
+        int first = batch.lineFirst;
+        int count = batch.lineCount;
+        for (int i = 0; i < editCount; i += 3) {
+            int line = edits[i];
+            int removed = edits[i + 1];
+            int inserted = edits[i + 2];
+
+            if (line + removed < first) {
+                // Change came before the batch, which moved along with it
+                first += inserted - removed;
+            } else if (line < first + count) {
+                // Change hit the batch, so only lines before it still hold
+                count = Math.max(0, line - first);
+            }
+        }
+        editCount = 0;
+
+        // Lexed from a state the first line no longer starts in
+        if (count == 0 || first + count > lineCount || lineStates[first] != batch.startState) {
+            return -1;
+        }
+
+        // Take results until a line already starts in the state the batch got to
+        int applied = 0;
+        int state = batch.startState;
+        while (applied < count) {
+            int line = first + applied;
+
+            if (applied > 0) {
+                if (lineTokens[line] != null && lineStates[line] == state) {
+                    break;
+                }
+
+                lineStates[line] = state;
+            }
+
+            lineTokens[line] = batch.tokens[applied];
+            state = batch.states[applied];
+            applied++;
+        }
+
+        // Line after the batch has to be lexed again if it now starts differently
+        int next = first + applied;
+        if (applied == count && next < lineCount && !(lineTokens[next] != null && lineStates[next] == state)) {
+            lineStates[next] = state;
+            lineTokens[next] = null;
+        }
+
+        firstDirtyLine = nextDirtyLine(Math.min(firstDirtyLine, next));
+
+        if (listener != null) {
+            listener.onLinesTokenized(first, next - 1);
+        }
+
+        return applied;
+    }
+
+    private int nextDirtyLine(int line) {
+        while (line < lineCount && lineTokens[line] != null) {
+            line++;
+        }
+
+        return line;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > lineStates.length) {
+            // Grow by half again to amortize insertions
+            int capacityNew = Math.max(capacity, lineStates.length + (lineStates.length >> 1));
+            lineStates = Arrays.copyOf(lineStates, capacityNew);
+            lineTokens = Arrays.copyOf(lineTokens, capacityNew);
+        }
+    }
+
+    public static class Batch implements Runnable {
+
+        private final Lexer lexer;
+        private final int generation;
+
+        private final int lineFirst;
+        private final int lineCount;
+        private final int startState;
+
+        private final char[] chars;
+
+        // Results, once run: each line's tokens, and the state the line after it starts in
+        private final int[][] tokens;
+        private final int[] states;
+
+        private Batch(Lexer lexer, int generation, int lineFirst, int lineCount, int startState, char[] chars) {
+            this.lexer = lexer;
+            this.generation = generation;
+            this.lineFirst = lineFirst;
+            this.lineCount = lineCount;
+            this.startState = startState;
+            this.chars = chars;
+
+            tokens = new int[lineCount][];
+            states = new int[lineCount];
+        }
+
+        public int getLineFirst() {
+            return lineFirst;
+        }
+
+        public int getLineCount() {
+            return lineCount;
+        }
+
+        @Override
+        public void run() {
+            // Lex copied lines in order, each one split off at its line feed
+            LineLexer lineLexer = new LineLexer();
+            CharSequence text = new CharArraySequence(chars, 0, chars.length);
+
+            int state = startState;
+            int start = 0;
+            for (int i = 0; i < lineCount; i++) {
+                int end = start;
+                while (end < chars.length && chars[end] != '\n') {
+                    end++;
+                }
+
+                tokens[i] = lineLexer.lex(lexer, text, start, end, state);
+                state = states[i] = lineLexer.state;
+
+                start = end + 1;
+            }
+        }
+
+    }
+
+    private static class LineLexer implements Lexer.Sink {
+
+        // Tokens of the line being lexed, and where that line starts
+        private int[] tokens;
+        private int tokenCount;
+        private int lineStart;
+
+        // State the line after it starts in
+        private int state;
+
+        private LineLexer() {
+            tokens = new int[3 * 16];
+        }
+
+        private int[] lex(Lexer lexer, CharSequence text, int start, int end, int state) {
+            lineStart = start;
+            tokenCount = 0;
+
+            this.state = lexer.tokenizeLine(text, start, end, state, this);
+
+            // Keep tokens in an array of their own size
+            return tokenCount == 0 ? NO_TOKENS : Arrays.copyOf(tokens, tokenCount);
+        }
+
+        @Override
+        public void addToken(int start, int end, int style) {
+            if (start >= end || style == TokenStyle.PLAIN) {
+                return;
+            }
+
+            // Run on from a token of the same style that ends where this one starts
+            if (tokenCount > 0 && tokens[tokenCount - 1] == style && lineStart + tokens[tokenCount - 3] + tokens[tokenCount - 2] == start) {
+                tokens[tokenCount - 2] += end - start;
+                return;
+            }
+
+            if (tokenCount + 3 > tokens.length) {
+                tokens = Arrays.copyOf(tokens, 2 * tokens.length);
+            }
+
+            tokens[tokenCount++] = start - lineStart;
+            tokens[tokenCount++] = end - start;
+            tokens[tokenCount++] = style;
+        }
+
+    }
+
+    public interface Lines {
+
+        int getLineStart(int line);
+
+        int getLineEnd(int line);
+
+    }
+
+    public interface Listener {
+
+        // Called for each run of lines whose tokens were just worked out
+
+        void onLinesTokenized(int lineFirst, int lineLast);
+
+    }
+
+}
@@ -0,0 +1,351 @@
+package io.microdev.source.text;
+
+import java.util.Arrays;
+
+import io.microdev.source.util.GetCharsSequence;
+
+public class PieceTable implements GetCharsSequence {
+
+    // Text as loaded, never written to
+    private final char[] original;
+
+    // Text inserted since, only ever appended to (so any stretch of it, once written, stays as it is)
+    private char[] added;
+    private int addedLength;
+
+    // Pieces in document order: where each one's chars are, and where it starts in the document
+    private boolean[] pieceAdded;
+    private int[] pieceStarts;
+    private int[] pieceLengths;
+    private int[] pieceOffsets;
+    private int pieceCount;
+
+    private int length;
+
+    // Piece the last lookup landed in, as reads tend to stay close together
+    private int pieceLast;
+
+    public PieceTable(CharSequence text) {
+        // Take one copy of the initial text, after which it's shared by every snapshot
+        original = new char[text.length()];
+        if (text instanceof GetCharsSequence) {
+            ((GetCharsSequence) text).getChars(0, original.length, original, 0);
+        } else if (text instanceof String) {
+            ((String) text).getChars(0, original.length, original, 0);
+        } else {
+            for (int i = 0; i < original.length; i++) {
+                original[i] = text.charAt(i);
+            }
+        }
+
+        added = new char[64];
+        addedLength = 0;
+
+        pieceAdded = new boolean[16];
+        pieceStarts = new int[16];
+        pieceLengths = new int[16];
+        pieceOffsets = new int[16];
+        pieceCount = 0;
+
+        length = original.length;
+
+        if (length > 0) {
+            pieceStarts[0] = 0;
+            pieceLengths[0] = length;
+            pieceOffsets[0] = 0;
+            pieceCount = 1;
+        }
+    }
+
+    public int getPieceCount() {
+        return pieceCount;
+    }
+
+    public void replace(int start, int end, CharSequence text, int textStart, int textEnd) {
+        int count = textEnd - textStart;
+
+        // Put new text at the end of the add buffer
+        int addedStart = append(text, textStart, textEnd);
+
+        // Make piece boundaries at either end of the replaced range, then drop what's between them
+        int first = split(start);
+        int last = split(end);
+        removePieces(first, last);
+
+        if (count > 0) {
+            // Typing runs straight on from the previous insertion in the add buffer, so just grow that piece
+            if (first > 0 && pieceAdded[first - 1] && pieceStarts[first - 1] + pieceLengths[first - 1] == addedStart) {
+                pieceLengths[first - 1] += count;
+            } else {
+                insertPiece(first, true, addedStart, count);
+            }
+        }
+
+        length += count - (end - start);
+
+        // Offsets after the edit moved (only numbers here, never chars)
+        updateOffsets(Math.max(0, first - 1));
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+
+        int piece = findPiece(index);
+
+        return (pieceAdded[piece] ? added : original)[pieceStarts[piece] + index - pieceOffsets[piece]];
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destOffset) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("range " + start + " to " + end + ", length " + length);
+        }
+
+        copyChars(original, added, pieceAdded, pieceStarts, pieceLengths, pieceOffsets, start == end ? 0 : findPiece(start), start, end, dest, destOffset);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length).toString();
+    }
+
+    public Snapshot snapshot() {
+        // Pieces are copied, chars are shared (the original never changes and the add buffer is only appended to)
+        return new Snapshot(original, added, Arrays.copyOf(pieceAdded, pieceCount), Arrays.copyOf(pieceStarts, pieceCount), Arrays.copyOf(pieceLengths, pieceCount), Arrays.copyOf(pieceOffsets, pieceCount), pieceCount, 0, length);
+    }
+
+    private int append(CharSequence text, int start, int end) {
+        int count = end - start;
+        int addedStart = addedLength;
+
+        // Grow into a new array when full, leaving the old one to any snapshots that hold it
+        if (addedLength + count > added.length) {
+            added = Arrays.copyOf(added, Math.max(addedLength + count, 2 * added.length));
+        }
+
+        if (text instanceof String) {
+            ((String) text).getChars(start, end, added, addedLength);
+        } else if (text instanceof GetCharsSequence) {
+            ((GetCharsSequence) text).getChars(start, end, added, addedLength);
+        } else {
+            for (int i = start; i < end; i++) {
+                added[addedLength + i - start] = text.charAt(i);
+            }
+        }
+
+        addedLength += count;
+
+        return addedStart;
+    }
+
+    private int split(int offset) {
+        // Index of the piece that starts at the given offset, splitting the piece around it if need be
+        if (offset == length) {
+            return pieceCount;
+        }
+
+        int piece = findPiece(offset);
+        int into = offset - pieceOffsets[piece];
+
+        if (into == 0) {
+            return piece;
+        }
+
+        // Second half becomes a piece of its own
+        insertPiece(piece + 1, pieceAdded[piece], pieceStarts[piece] + into, pieceLengths[piece] - into);
+        pieceOffsets[piece + 1] = offset;
+        pieceLengths[piece] = into;
+
+        return piece + 1;
+    }
+
+    private void insertPiece(int index, boolean inAdded, int start, int count) {
+        if (pieceCount == pieceStarts.length) {
+            int capacity = 2 * pieceStarts.length;
+            pieceAdded = Arrays.copyOf(pieceAdded, capacity);
+            pieceStarts = Arrays.copyOf(pieceStarts, capacity);
+            pieceLengths = Arrays.copyOf(pieceLengths, capacity);
+            pieceOffsets = Arrays.copyOf(pieceOffsets, capacity);
+        }
+
+        int tail = pieceCount - index;
+        System.arraycopy(pieceAdded, index, pieceAdded, index + 1, tail);
+        System.arraycopy(pieceStarts, index, pieceStarts, index + 1, tail);
+        System.arraycopy(pieceLengths, index, pieceLengths, index + 1, tail);
+        System.arraycopy(pieceOffsets, index, pieceOffsets, index + 1, tail);
+
+        pieceAdded[index] = inAdded;
+        pieceStarts[index] = start;
+        pieceLengths[index] = count;
+        pieceCount++;
+    }
+
+    private void removePieces(int from, int to) {
+        int tail = pieceCount - to;
+        System.arraycopy(pieceAdded, to, pieceAdded, from, tail);
+        System.arraycopy(pieceStarts, to, pieceStarts, from, tail);
+        System.arraycopy(pieceLengths, to, pieceLengths, from, tail);
+        System.arraycopy(pieceOffsets, to, pieceOffsets, from, tail);
+        pieceCount -= to - from;
+    }
+
+    private void updateOffsets(int from) {
+        int offset = from == 0 ? 0 : pieceOffsets[from - 1] + pieceLengths[from - 1];
+
+        for (int i = from; i < pieceCount; i++) {
+            pieceOffsets[i] = offset;
+            offset += pieceLengths[i];
+        }
+
+        pieceLast = Math.min(pieceLast, Math.max(0, pieceCount - 1));
+    }
+
+    private int findPiece(int offset) {
+        // Check where the last lookup landed, and the piece after it, before searching
+        if (pieceLast < pieceCount && offset >= pieceOffsets[pieceLast]) {
+            if (offset < pieceOffsets[pieceLast] + pieceLengths[pieceLast]) {
+                return pieceLast;
+            }
+
+            int next = pieceLast + 1;
+            if (next < pieceCount && offset < pieceOffsets[next] + pieceLengths[next]) {
+                return pieceLast = next;
+            }
+        }
+
+        return pieceLast = findPiece(pieceOffsets, pieceCount, offset);
+    }
+
+    static int findPiece(int[] offsets, int count, int offset) {
+        // Last piece starting at or before the offset
+        int low = 0;
+        int high = count - 1;
+
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+
+            if (offsets[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return low;
+    }
+
+    static void copyChars(char[] original, char[] added, boolean[] pieceAdded, int[] pieceStarts, int[] pieceLengths, int[] pieceOffsets, int piece, int start, int end, char[] dest, int destOffset) {
+        // Copy piece by piece, starting in the given piece
+        while (start < end) {
+            int into = start - pieceOffsets[piece];
+            int count = Math.min(pieceLengths[piece] - into, end - start);
+
+            System.arraycopy(pieceAdded[piece] ? added : original, pieceStarts[piece] + into, dest, destOffset, count);
+
+            start += count;
+            destOffset += count;
+            piece++;
+        }
+    }
+
+    public static class Snapshot implements GetCharsSequence {
+
+        private final char[] original;
+        private final char[] added;
+
+        private final boolean[] pieceAdded;
+        private final int[] pieceStarts;
+        private final int[] pieceLengths;
+        private final int[] pieceOffsets;
+        private final int pieceCount;
+
+        // Stretch of the document this snapshot shows
+        private final int start;
+        private final int length;
+
+        // Piece the last lookup landed in (a snapshot is read from one thread at a time)
+        private int pieceLast;
+
+        private Snapshot(char[] original, char[] added, boolean[] pieceAdded, int[] pieceStarts, int[] pieceLengths, int[] pieceOffsets, int pieceCount, int start, int length) {
+            this.original = original;
+            this.added = added;
+            this.pieceAdded = pieceAdded;
+            this.pieceStarts = pieceStarts;
+            this.pieceLengths = pieceLengths;
+            this.pieceOffsets = pieceOffsets;
+            this.pieceCount = pieceCount;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+            }
+
+            int offset = start + index;
+
+            // Sequential reads stay in the same piece, so try that first
+            int piece = pieceLast;
+            if (offset < pieceOffsets[piece] || offset >= pieceOffsets[piece] + pieceLengths[piece]) {
+                piece = pieceLast = findPiece(pieceOffsets, pieceCount, offset);
+            }
+
+            return (pieceAdded[piece] ? added : original)[pieceStarts[piece] + offset - pieceOffsets[piece]];
+        }
+
+        @Override
+        public void getChars(int start, int end, char[] dest, int destOffset) {
+            if (start < 0 || end > length || start > end) {
+                throw new IndexOutOfBoundsException("range " + start + " to " + end + ", length " + length);
+            }
+
+            if (start < end) {
+                int from = this.start + start;
+                copyChars(original, added, pieceAdded, pieceStarts, pieceLengths, pieceOffsets, findPiece(pieceOffsets, pieceCount, from), from, this.start + end, dest, destOffset);
+            }
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length || start > end) {
+                throw new IndexOutOfBoundsException("range " + start + " to " + end + ", length " + length);
+            }
+
+            // Narrower view on the same pieces
+            return new Snapshot(original, added, pieceAdded, pieceStarts, pieceLengths, pieceOffsets, pieceCount, this.start + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            char[] chars = new char[length];
+            getChars(0, length, chars, 0);
+
+            return new String(chars);
+        }
+
+    }
+
+}
@@ -0,0 +1,601 @@
+package io.microdev.source.text;
+
+import android.text.Editable;
+import android.text.GetChars;
+import android.text.InputFilter;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+import io.microdev.source.util.GetCharsSequence;
+
+public class PieceTableEditable implements Editable, GetChars {
+
+    private static final InputFilter[] NO_FILTERS = new InputFilter[0];
+
+    // Span flag positions for start and end behavior
+    private static final int START_MASK = 0xf0;
+    private static final int END_MASK = 0x0f;
+    private static final int START_SHIFT = 4;
+
+    private static final int POINT = 2;
+    private static final int PARAGRAPH = 3;
+
+    private final PieceTable text;
+
+    private InputFilter[] filters;
+
+    // Spans in the order they were first set, which is also the order they're returned in (within a priority)
+    private Object[] spans;
+    private int[] spanStarts;
+    private int[] spanEnds;
+    private int[] spanFlags;
+    private int spanCount;
+
+    public PieceTableEditable(CharSequence source) {
+        text = new PieceTable(source instanceof GetChars ? new GetCharsAdapter((GetChars) source) : source);
+
+        filters = NO_FILTERS;
+
+        spans = new Object[8];
+        spanStarts = new int[8];
+        spanEnds = new int[8];
+        spanFlags = new int[8];
+        spanCount = 0;
+
+        // Bring spans along (but not those tied to the source itself), as SpannableStringBuilder would
+        if (source instanceof Spanned) {
+            Spanned spanned = (Spanned) source;
+
+            for (Object span : spanned.getSpans(0, source.length(), Object.class)) {
+                if (span instanceof NoCopySpan) {
+                    continue;
+                }
+
+                addSpan(span, spanned.getSpanStart(span), spanned.getSpanEnd(span), spanned.getSpanFlags(span));
+            }
+        }
+    }
+
+    public PieceTable.Snapshot snapshot() {
+        // Text as it is now, in time proportional to the number of pieces rather than chars
+        return text.snapshot();
+    }
+
+    public int getPieceCount() {
+        return text.getPieceCount();
+    }
+
+    @Override
+    public Editable replace(int st, int en, CharSequence source, int start, int end) {
+        checkRange("replace", st, en);
+
+        // Let filters have their say on what goes in
+        for (InputFilter filter : filters) {
+            CharSequence filtered = filter.filter(source, start, end, this, st, en);
+
+            if (filtered != null) {
+                source = filtered;
+                start = 0;
+                end = filtered.length();
+            }
+        }
+
+        int before = en - st;
+        int after = end - start;
+
+        // Nothing to do
+        if (before == 0 && after == 0) {
+            return this;
+        }
+
+        // Watchers over the replaced range hear about it before and after
+        TextWatcher[] textWatchers = getSpans(st, st + before, TextWatcher.class);
+        for (TextWatcher watcher : textWatchers) {
+            watcher.beforeTextChanged(this, st, before, after);
+        }
+
+        // Spans the change moves, removes or brings in, to tell span watchers about once text watchers have heard
+        SpanChanges changes = new SpanChanges();
+
+        change(st, en, source, start, end, changes);
+
+        for (TextWatcher watcher : textWatchers) {
+            watcher.onTextChanged(this, st, before, after);
+        }
+        for (TextWatcher watcher : textWatchers) {
+            watcher.afterTextChanged(this);
+        }
+
+        // Tell span watchers about spans that moved, went away or came in with the new text
+        for (int i = 0; i < changes.count; i++) {
+            if (changes.starts[i] == -1) {
+                sendSpanRemoved(changes.spans[i], changes.startsOld[i], changes.endsOld[i]);
+            } else if (changes.startsOld[i] == -1) {
+                sendSpanAdded(changes.spans[i], changes.starts[i], changes.ends[i]);
+            } else {
+                sendSpanChanged(changes.spans[i], changes.startsOld[i], changes.endsOld[i], changes.starts[i], changes.ends[i]);
+            }
+        }
+
+        return this;
+    }
+
+    @Override
+    public Editable replace(int st, int en, CharSequence text) {
+        return replace(st, en, text, 0, text.length());
+    }
+
+    @Override
+    public Editable insert(int where, CharSequence text, int start, int end) {
+        return replace(where, where, text, start, end);
+    }
+
+    @Override
+    public Editable insert(int where, CharSequence text) {
+        return replace(where, where, text, 0, text.length());
+    }
+
+    @Override
+    public Editable delete(int st, int en) {
+        return replace(st, en, "", 0, 0);
+    }
+
+    @Override
+    public Editable append(CharSequence text) {
+        return replace(length(), length(), text, 0, text.length());
+    }
+
+    @Override
+    public Editable append(CharSequence text, int start, int end) {
+        return replace(length(), length(), text, start, end);
+    }
+
+    @Override
+    public Editable append(char text) {
+        return append(String.valueOf(text));
+    }
+
+    @Override
+    public void clear() {
+        replace(0, length(), "", 0, 0);
+    }
+
+    @Override
+    public void clearSpans() {
+        // Last first, so removal doesn't shuffle what's left to go
+        for (int i = spanCount - 1; i >= 0; i--) {
+            removeSpan(spans[i]);
+        }
+    }
+
+    @Override
+    public void setFilters(InputFilter[] filters) {
+        if (filters == null) {
+            throw new IllegalArgumentException();
+        }
+
+        this.filters = filters;
+    }
+
+    @Override
+    public InputFilter[] getFilters() {
+        return filters;
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return text.charAt(index);
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destoff) {
+        text.getChars(start, end, dest, destoff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        // A styled copy, like SpannableStringBuilder hands out (callers may keep it past our next edit)
+        return new SpannableStringBuilder(this, start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+
+    @Override
+    public void setSpan(Object what, int start, int end, int flags) {
+        checkRange("setSpan", start, end);
+
+        int index = indexOf(what);
+
+        if (index == -1) {
+            addSpan(what, start, end, flags);
+            sendSpanAdded(what, start, end);
+        } else {
+            int startOld = spanStarts[index];
+            int endOld = spanEnds[index];
+
+            spanStarts[index] = start;
+            spanEnds[index] = end;
+            spanFlags[index] = flags;
+
+            sendSpanChanged(what, startOld, endOld, start, end);
+        }
+    }
+
+    @Override
+    public void removeSpan(Object what) {
+        int index = indexOf(what);
+
+        if (index == -1) {
+            return;
+        }
+
+        int start = spanStarts[index];
+        int end = spanEnds[index];
+
+        removeSpanAt(index);
+        sendSpanRemoved(what, start, end);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] getSpans(int queryStart, int queryEnd, Class<T> kind) {
+        if (kind == null) {
+            kind = (Class<T>) Object.class;
+        }
+
+        // Collect matching spans touching the range
+        int[] matches = new int[spanCount];
+        int count = 0;
+        for (int i = 0; i < spanCount; i++) {
+            if (kind.isInstance(spans[i]) && overlaps(spanStarts[i], spanEnds[i], queryStart, queryEnd)) {
+                matches[count++] = i;
+            }
+        }
+
+        // Higher priority first, and otherwise in the order set (insertion sort keeps that order, and counts are small)
+        for (int i = 1; i < count; i++) {
+            int match = matches[i];
+            int priority = spanFlags[match] & SPAN_PRIORITY;
+
+            int j = i - 1;
+            while (j >= 0 && (spanFlags[matches[j]] & SPAN_PRIORITY) < priority) {
+                matches[j + 1] = matches[j];
+                j--;
+            }
+            matches[j + 1] = match;
+        }
+
+        T[] result = (T[]) Array.newInstance(kind, count);
+        for (int i = 0; i < count; i++) {
+            result[i] = (T) spans[matches[i]];
+        }
+
+        return result;
+    }
+
+    @Override
+    public int getSpanStart(Object tag) {
+        int index = indexOf(tag);
+
+        return index == -1 ? -1 : spanStarts[index];
+    }
+
+    @Override
+    public int getSpanEnd(Object tag) {
+        int index = indexOf(tag);
+
+        return index == -1 ? -1 : spanEnds[index];
+    }
+
+    @Override
+    public int getSpanFlags(Object tag) {
+        int index = indexOf(tag);
+
+        return index == -1 ? 0 : spanFlags[index];
+    }
+
+    @Override
+    public int nextSpanTransition(int start, int limit, Class kind) {
+        if (kind == null) {
+            kind = Object.class;
+        }
+
+        // Nearest span bound after the start, up to the limit
+        for (int i = 0; i < spanCount; i++) {
+            if (!kind.isInstance(spans[i])) {
+                continue;
+            }
+
+            if (spanStarts[i] > start && spanStarts[i] < limit) {
+                limit = spanStarts[i];
+            }
+            if (spanEnds[i] > start && spanEnds[i] < limit) {
+                limit = spanEnds[i];
+            }
+        }
+
+        return limit;
+    }
+
+    private void change(int st, int en, CharSequence source, int start, int end, SpanChanges changes) {
+        int before = en - st;
+        int after = end - start;
+
+        // Move span bounds in or after the replaced range (last first, so removal doesn't shuffle what's left to go)
+        for (int i = spanCount - 1; i >= 0; i--) {
+            int flags = spanFlags[i];
+            boolean wasEmpty = spanStarts[i] == spanEnds[i];
+
+            int spanStart = moveBound(spanStarts[i], st, en, after, (flags & START_MASK) >> START_SHIFT, false);
+            int spanEnd = moveBound(spanEnds[i], st, en, after, flags & END_MASK, true);
+
+            // An empty span can only come out inverted if text went in right where it was
+            if (spanEnd < spanStart) {
+                spanStart = spanEnd;
+            }
+
+            // Exclusive spans that lose all their text go, as with SpannableStringBuilder
+            if (before > 0 && !wasEmpty && spanStart == spanEnd && (flags & SPAN_POINT_MARK_MASK) == SPAN_EXCLUSIVE_EXCLUSIVE) {
+                changes.add(spans[i], spanStarts[i], spanEnds[i], -1, -1);
+                removeSpanAt(i);
+                continue;
+            }
+
+            if (spanStart != spanStarts[i] || spanEnd != spanEnds[i]) {
+                changes.add(spans[i], spanStarts[i], spanEnds[i], spanStart, spanEnd);
+
+                spanStarts[i] = spanStart;
+                spanEnds[i] = spanEnd;
+            }
+        }
+
+        // Watchers hear about them in the order the spans were set
+        changes.reverse();
+
+        text.replace(st, en, source, start, end);
+
+        // Bring along spans of the new text that we don't have already
+        if (source instanceof Spanned) {
+            Spanned spanned = (Spanned) source;
+
+            for (Object span : spanned.getSpans(start, end, Object.class)) {
+                int spanStart = Math.max(spanned.getSpanStart(span), start) - start + st;
+                int spanEnd = Math.min(spanned.getSpanEnd(span), end) - start + st;
+
+                if (indexOf(span) == -1) {
+                    addSpan(span, spanStart, spanEnd, spanned.getSpanFlags(span));
+                    changes.add(span, -1, -1, spanStart, spanEnd);
+                }
+            }
+        }
+    }
+
+    private static int moveBound(int offset, int st, int en, int after, int mode, boolean atEnd) {
+        // Before the edit, nothing changes
+        if (offset < st) {
+            return offset;
+        }
+
+        // After it, shift by the change in length
+        if (offset > en) {
+            return offset + after - (en - st);
+        }
+
+        // Within (or at the edges of) replaced text, which when simply removed leaves everything at its start
+        if (after == 0) {
+            return st;
+        }
+
+        // Paragraph bounds behave as points at the end of a span and as marks at its start
+        boolean point = mode == POINT || (mode == PARAGRAPH && atEnd);
+
+        if (st == en) {
+            // Insertion pushes points along and leaves marks before it
+            return point ? st + after : st;
+        }
+
+        // Replacement sends points to its end (but those right at its start stay) and marks to its start (but those
+        // right at its end stay there)
+        if (point) {
+            return offset == st ? st : st + after;
+        }
+
+        return offset == en ? st + after : st;
+    }
+
+    private static boolean overlaps(int spanStart, int spanEnd, int queryStart, int queryEnd) {
+        // Spans touching the range count, but not those merely abutting a nonempty range from outside
+        if (spanStart > queryEnd || spanEnd < queryStart) {
+            return false;
+        }
+
+        if (spanStart != spanEnd && queryStart != queryEnd) {
+            if (spanStart == queryEnd || spanEnd == queryStart) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void addSpan(Object what, int start, int end, int flags) {
+        if (spanCount == spans.length) {
+            int capacity = 2 * spans.length;
+            spans = Arrays.copyOf(spans, capacity);
+            spanStarts = Arrays.copyOf(spanStarts, capacity);
+            spanEnds = Arrays.copyOf(spanEnds, capacity);
+            spanFlags = Arrays.copyOf(spanFlags, capacity);
+        }
+
+        spans[spanCount] = what;
+        spanStarts[spanCount] = start;
+        spanEnds[spanCount] = end;
+        spanFlags[spanCount] = flags;
+        spanCount++;
+    }
+
+    private void removeSpanAt(int index) {
+        int tail = spanCount - index - 1;
+        System.arraycopy(spans, index + 1, spans, index, tail);
+        System.arraycopy(spanStarts, index + 1, spanStarts, index, tail);
+        System.arraycopy(spanEnds, index + 1, spanEnds, index, tail);
+        System.arraycopy(spanFlags, index + 1, spanFlags, index, tail);
+
+        spanCount--;
+        spans[spanCount] = null;
+    }
+
+    private int indexOf(Object what) {
+        for (int i = spanCount - 1; i >= 0; i--) {
+            if (spans[i] == what) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private void sendSpanAdded(Object what, int start, int end) {
+        for (SpanWatcher watcher : getSpans(start, end, SpanWatcher.class)) {
+            watcher.onSpanAdded(this, what, start, end);
+        }
+    }
+
+    private void sendSpanRemoved(Object what, int start, int end) {
+        for (SpanWatcher watcher : getSpans(start, end, SpanWatcher.class)) {
+            watcher.onSpanRemoved(this, what, start, end);
+        }
+    }
+
+    private void sendSpanChanged(Object what, int startOld, int endOld, int start, int end) {
+        for (SpanWatcher watcher : getSpans(Math.min(startOld, start), Math.max(endOld, end), SpanWatcher.class)) {
+            watcher.onSpanChanged(this, what, startOld, endOld, start, end);
+        }
+    }
+
+    private void checkRange(String operation, int start, int end) {
+        if (end < start) {
+            throw new IndexOutOfBoundsException(operation + " (" + start + " ... " + end + ") has end before start");
+        }
+
+        if (start < 0 || end > length()) {
+            throw new IndexOutOfBoundsException(operation + " (" + start + " ... " + end + ") ends beyond length " + length());
+        }
+    }
+
+    public static class Factory extends Editable.Factory {
+
+        private static final Factory instance = new Factory();
+
+        public static Factory getInstance() {
+            return instance;
+        }
+
+        @Override
+        public Editable newEditable(CharSequence source) {
+            return new PieceTableEditable(source);
+        }
+
+    }
+
+    private static class SpanChanges {
+
+        // Spans one replace moved, with bounds before and after (-1 after for those it removed, and -1 before for
+        // those it brought in)
+
+        private Object[] spans = new Object[4];
+        private int[] startsOld = new int[4];
+        private int[] endsOld = new int[4];
+        private int[] starts = new int[4];
+        private int[] ends = new int[4];
+        private int count;
+
+        private void add(Object span, int startOld, int endOld, int start, int end) {
+            if (count == spans.length) {
+                int capacity = 2 * spans.length;
+                spans = Arrays.copyOf(spans, capacity);
+                startsOld = Arrays.copyOf(startsOld, capacity);
+                endsOld = Arrays.copyOf(endsOld, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+            }
+
+            spans[count] = span;
+            startsOld[count] = startOld;
+            endsOld[count] = endOld;
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+
+        private void reverse() {
+            for (int i = 0, j = count - 1; i < j; i++, j--) {
+                swap(spans, i, j);
+                swap(startsOld, i, j);
+                swap(endsOld, i, j);
+                swap(starts, i, j);
+                swap(ends, i, j);
+            }
+        }
+
+        private static void swap(Object[] array, int i, int j) {
+            Object swapped = array[i];
+            array[i] = array[j];
+            array[j] = swapped;
+        }
+
+        private static void swap(int[] array, int i, int j) {
+            int swapped = array[i];
+            array[i] = array[j];
+            array[j] = swapped;
+        }
+
+    }
+
+    private static class GetCharsAdapter implements GetCharsSequence {
+
+        // Lets the piece table take framework text in one bulk copy
+
+        private final GetChars source;
+
+        private GetCharsAdapter(GetChars source) {
+            this.source = source;
+        }
+
+        @Override
+        public void getChars(int start, int end, char[] dest, int destOffset) {
+            source.getChars(start, end, dest, destOffset);
+        }
+
+        @Override
+        public int length() {
+            return source.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return source.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return source.subSequence(start, end);
+        }
+
+    }
+
+}
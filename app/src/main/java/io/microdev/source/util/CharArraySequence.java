@@ -0,0 +1,41 @@
+package io.microdev.source.util;
+
+public class CharArraySequence implements GetCharsSequence {
+
+    private final char[] chars;
+    private final int offset;
+    private final int length;
+
+    public CharArraySequence(char[] chars, int offset, int length) {
+        this.chars = chars;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return chars[offset + index];
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destOffset) {
+        System.arraycopy(chars, offset + start, dest, destOffset, end - start);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        // Another view on the same chars, not a copy
+        return new CharArraySequence(chars, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, offset, length);
+    }
+
+}
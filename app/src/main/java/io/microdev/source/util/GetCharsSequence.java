@@ -0,0 +1,9 @@
+package io.microdev.source.util;
+
+public interface GetCharsSequence extends CharSequence {
+
+    // Like GetChars, but without pulling in the framework, so plain Java code can copy text out in bulk
+
+    void getChars(int start, int end, char[] dest, int destOffset);
+
+}
@@ -0,0 +1,173 @@
+package io.microdev.source.widget.editor;
+
+public class EditOperation {
+
+    // Approximate heap cost of the object, its fields and two String headers
+    private static final int OVERHEAD_BYTES = 96;
+
+    private final int offset;
+
+    private final String textRemoved;
+
+    // Inserted text, or null until asked for while it still lives in a builder that typing extends in place (only
+    // its first insertedLength chars belong to us, as a later operation may have moved on with the same builder)
+    private String textInserted;
+    private final StringBuilder insertedBuilder;
+    private final int insertedLength;
+
+    private final int selectionStartBefore;
+    private final int selectionEndBefore;
+    private final int selectionStartAfter;
+    private final int selectionEndAfter;
+
+    public EditOperation(int offset, String textRemoved, String textInserted, int selectionStartBefore, int selectionEndBefore, int selectionStartAfter, int selectionEndAfter) {
+        this.offset = offset;
+
+        this.textRemoved = textRemoved;
+        this.textInserted = textInserted;
+        insertedBuilder = null;
+        insertedLength = textInserted.length();
+
+        this.selectionStartBefore = selectionStartBefore;
+        this.selectionEndBefore = selectionEndBefore;
+        this.selectionStartAfter = selectionStartAfter;
+        this.selectionEndAfter = selectionEndAfter;
+    }
+
+    private EditOperation(int offset, String textRemoved, StringBuilder insertedBuilder, int insertedLength, int selectionStartBefore, int selectionEndBefore, int selectionStartAfter, int selectionEndAfter) {
+        this.offset = offset;
+
+        this.textRemoved = textRemoved;
+        this.insertedBuilder = insertedBuilder;
+        this.insertedLength = insertedLength;
+
+        this.selectionStartBefore = selectionStartBefore;
+        this.selectionEndBefore = selectionEndBefore;
+        this.selectionStartAfter = selectionStartAfter;
+        this.selectionEndAfter = selectionEndAfter;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public String getTextRemoved() {
+        return textRemoved;
+    }
+
+    public String getTextInserted() {
+        // Copy out of the builder the first time it's needed
+        if (textInserted == null) {
+            textInserted = insertedBuilder.substring(0, insertedLength);
+        }
+
+        return textInserted;
+    }
+
+    public int getSelectionStartBefore() {
+        return selectionStartBefore;
+    }
+
+    public int getSelectionEndBefore() {
+        return selectionEndBefore;
+    }
+
+    public int getSelectionStartAfter() {
+        return selectionStartAfter;
+    }
+
+    public int getSelectionEndAfter() {
+        return selectionEndAfter;
+    }
+
+    public EditOperation freeze() {
+        // Operation with its inserted text in a String of its own, letting go of any builder typing extended
+        if (insertedBuilder == null) {
+            return this;
+        }
+
+        return new EditOperation(offset, textRemoved, getTextInserted(), selectionStartBefore, selectionEndBefore, selectionStartAfter, selectionEndAfter);
+    }
+
+    public EditOperation trim() {
+        // Read inserted text where it is, without copying it out of a builder
+        CharSequence inserted = textInserted != null ? textInserted : insertedBuilder;
+
+        // Find common prefix of removed and inserted text
+        int prefix = 0;
+        int prefixMax = Math.min(textRemoved.length(), insertedLength);
+        while (prefix < prefixMax && textRemoved.charAt(prefix) == inserted.charAt(prefix)) {
+            prefix++;
+        }
+
+        // Find common suffix of what remains
+        int suffix = 0;
+        int suffixMax = prefixMax - prefix;
+        while (suffix < suffixMax && textRemoved.charAt(textRemoved.length() - 1 - suffix) == inserted.charAt(insertedLength - 1 - suffix)) {
+            suffix++;
+        }
+
+        // Operation changes nothing at all (including when it neither removed nor inserted anything)
+        if (prefix + suffix == textRemoved.length() && prefix + suffix == insertedLength) {
+            return null;
+        }
+
+        // Nothing to trim
+        if (prefix == 0 && suffix == 0) {
+            return this;
+        }
+
+        return new EditOperation(offset + prefix, textRemoved.substring(prefix, textRemoved.length() - suffix), inserted.subSequence(prefix, insertedLength - suffix).toString(), selectionStartBefore, selectionEndBefore, selectionStartAfter, selectionEndAfter);
+    }
+
+    public EditOperation mergeWith(EditOperation next) {
+        // Range of our inserted text, and range next operation removed, both after this operation
+        int insertedStart = offset;
+        int insertedEnd = offset + insertedLength;
+        int nextStart = next.offset;
+        int nextEnd = next.offset + next.textRemoved.length();
+
+        // Operations must touch or overlap to combine into a single contiguous change
+        if (nextStart > insertedEnd || nextEnd < insertedStart) {
+            return null;
+        }
+
+        // Typing on at the end of our inserted text extends it in a builder, rather than copying it all each keystroke
+        if (nextStart == insertedEnd && nextEnd == insertedEnd) {
+            StringBuilder builder = insertedBuilder;
+            if (builder == null) {
+                builder = new StringBuilder(Math.max(16, 2 * (insertedLength + next.insertedLength)));
+                builder.append(textInserted);
+            } else {
+                // Anything past our text was typed after us by an operation since merged away, or backspaced over
+                builder.setLength(insertedLength);
+            }
+            builder.append(next.getTextInserted());
+
+            return new EditOperation(offset, textRemoved, builder, insertedLength + next.insertedLength, selectionStartBefore, selectionEndBefore, next.selectionStartAfter, next.selectionEndAfter);
+        }
+
+        // Backspacing over the end of our inserted text just stops short in the same builder
+        if (insertedBuilder != null && next.insertedLength == 0 && nextEnd == insertedEnd && nextStart >= insertedStart) {
+            return new EditOperation(offset, textRemoved, insertedBuilder, nextStart - insertedStart, selectionStartBefore, selectionEndBefore, next.selectionStartAfter, next.selectionEndAfter);
+        }
+
+        // Text next removed from either side of our inserted text was there before this operation, too
+        int lead = Math.max(0, insertedStart - nextStart);
+        int trail = Math.max(0, nextEnd - insertedEnd);
+        String removed = next.textRemoved.substring(0, lead) + textRemoved + next.textRemoved.substring(next.textRemoved.length() - trail);
+
+        // What survives of our inserted text on either side of next's change
+        String insertedHead = getTextInserted().substring(0, Math.max(0, nextStart - insertedStart));
+        String insertedTail = getTextInserted().substring(Math.min(insertedLength, Math.max(0, nextEnd - insertedStart)));
+        String inserted = insertedHead + next.getTextInserted() + insertedTail;
+
+        return new EditOperation(Math.min(insertedStart, nextStart), removed, inserted, selectionStartBefore, selectionEndBefore, next.selectionStartAfter, next.selectionEndAfter);
+    }
+
+    public int getMemoryBytes() {
+        // Two bytes per char of stored text plus fixed overhead
+        return OVERHEAD_BYTES + 2 * (textRemoved.length() + insertedLength);
+    }
+
+}
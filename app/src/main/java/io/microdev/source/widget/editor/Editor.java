@@ -2,19 +2,23 @@ package io.microdev.source.widget.editor;
 
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.content.res.ColorStateList;
 import android.content.res.TypedArray;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.Typeface;
 import android.os.Build;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.Process;
+import android.os.SystemClock;
 import android.text.Editable;
 import android.text.Layout;
-import android.text.ParcelableSpan;
 import android.text.Selection;
-import android.text.Spannable;
-import android.text.SpannableStringBuilder;
-import android.text.Spanned;
+import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.view.Gravity;
@@ -22,18 +26,29 @@ import android.view.MotionEvent;
 import android.view.ViewTreeObserver;
 import android.widget.EditText;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import io.microdev.source.R;
+import io.microdev.source.io.UndoJournal;
+import io.microdev.source.io.UndoStore;
+import io.microdev.source.search.OccurrenceIndex;
+import io.microdev.source.syntax.Lexer;
+import io.microdev.source.syntax.Tokenizer;
+import io.microdev.source.text.PieceTableEditable;
+import io.microdev.source.util.Callback;
+import io.microdev.source.util.CharArraySequence;
 
 import static io.microdev.source.util.DimenUtil.dpToPx;
 
 public class Editor extends EditText {
 
     private static final int DEF_COLOR_LINE_HIGHLIGHT = 0x2040c4ff;
+    private static final int DEF_COLOR_FIND_HIGHLIGHT = 0x60ffd600;
     private static final int DEF_COLOR_LINE_NUMBER_COLUMN_BG = 0xffe0e0e0;
 
     private static final boolean DEF_SHOW_LINE_HIGHLIGHT = true;
@@ -44,7 +59,16 @@ public class Editor extends EditText {
 
     private static final boolean DEF_ENABLE_SYNTAX_HIGHLIGHTING = true;
 
+    // Colors by token style (plain text keeps the text color)
+    private static final int[] DEF_COLORS_SYNTAX = { 0, 0xff7b1fa2, 0xff1565c0, 0xff2e7d32, 0xffc62828, 0xff757575, 0xff5d4037 };
+
+    private static final boolean DEF_USE_PIECE_TABLE = false;
+
+    private static final int DEF_UNDO_MEMORY_LIMIT = 4 * 1024 * 1024;
+    private static final int DEF_UNDO_HISTORY_DEPTH = 0;
+
     private int colorLineHighlight;
+    private int colorFindHighlight;
     private int colorLineNumberColumnBg;
 
     private boolean showLineHighlight;
@@ -55,20 +79,68 @@ public class Editor extends EditText {
 
     private boolean enableSyntaxHighlighting;
 
+    private int[] colorsSyntax;
+
+    // Text color while tokens are drawn by hand (the layout draws text transparent then, so it isn't drawn twice)
+    private int colorText;
+    private boolean textColorHidden;
+
+    private boolean usePieceTable;
+
+    private int undoMemoryLimit;
+    private int undoHistoryDepth;
+
     private Paint paintLineHighlight;
+    private Paint paintFindHighlight;
     private Paint paintLineNumberColumnBg;
 
     private Layout layout;
 
+    private LineIndex lineIndex;
+    private LineNumberGutter<Canvas> lineNumberGutter;
+
+    private Tokenizer tokenizer;
+    private Tokenizer.Listener tokenizerListener;
+
+    // Lexes batches of lines off the UI thread, one batch at a time
+    private ExecutorService tokenizerWorker;
+    private Tokenizer.Batch tokenizerBatch;
+
+    // Logical lines last drawn on screen, which get lexed before the rest
+    private int visibleLineFirst;
+    private int visibleLineLast;
+
+    private Rect clipBounds;
+
+    private OccurrenceIndex findHighlights;
+    private Path findHighlightPath;
+
+    private float lineNumberPaintTextSize;
+    private float lineNumberPaintTextScaleX;
+    private Typeface lineNumberPaintTypeface;
+
     private int lineCountCurrent;
     private int lineCountPrev;
 
     private float lineNumberColumnWidth;
 
+    // Lines before the first one shown, for text that is a window on a larger document
+    private int lineNumberBase;
+
     private UndoProvider undoProvider;
+    private UndoJournal undoJournal;
+    private UndoStore undoStore;
+
+    private String undoSessionId;
 
     private int textChangedInternally;
 
+    // Set while the superclass restores its text, which is never recorded for undo
+    private boolean textRestoring;
+
+    // Bumped on every change to the text, so snapshots can tell whether they're still current
+    private int editVersion;
+
     public Editor(Context context) {
         super(context);
 
@@ -103,6 +175,7 @@ public class Editor extends EditText {
 
     private void initialize() {
         colorLineHighlight = DEF_COLOR_LINE_HIGHLIGHT;
+        colorFindHighlight = DEF_COLOR_FIND_HIGHLIGHT;
         colorLineNumberColumnBg = DEF_COLOR_LINE_NUMBER_COLUMN_BG;
 
         showLineHighlight = DEF_SHOW_LINE_HIGHLIGHT;
@@ -112,6 +185,13 @@ public class Editor extends EditText {
         lineNumberColumnPaddingRight = dpToPx(getContext(), DEF_LINE_NUMBER_COLUMN_PADDING_RIGHT_DP);
 
         enableSyntaxHighlighting = DEF_ENABLE_SYNTAX_HIGHLIGHTING;
+
+        colorsSyntax = DEF_COLORS_SYNTAX.clone();
+
+        usePieceTable = DEF_USE_PIECE_TABLE;
+
+        undoMemoryLimit = DEF_UNDO_MEMORY_LIMIT;
+        undoHistoryDepth = DEF_UNDO_HISTORY_DEPTH;
     }
 
     private void handleAttrs(AttributeSet attrs, int defStyleAttr, int defStyleRes) {
@@ -119,6 +199,7 @@ public class Editor extends EditText {
         TypedArray styledAttrs = getContext().getTheme().obtainStyledAttributes(attrs, R.styleable.Editor, defStyleAttr, defStyleRes);
 
         colorLineHighlight = styledAttrs.getColor(R.styleable.Editor_colorLineHighlight, colorLineHighlight);
+        colorFindHighlight = styledAttrs.getColor(R.styleable.Editor_colorFindHighlight, colorFindHighlight);
         colorLineNumberColumnBg = styledAttrs.getColor(R.styleable.Editor_colorLineNumberColumnBackground, colorLineNumberColumnBg);
 
         showLineHighlight = styledAttrs.getBoolean(R.styleable.Editor_showLineHighlight, showLineHighlight);
@@ -129,11 +210,22 @@ public class Editor extends EditText {
 
         enableSyntaxHighlighting = styledAttrs.getBoolean(R.styleable.Editor_enableSyntaxHighlighting, enableSyntaxHighlighting);
 
+        usePieceTable = styledAttrs.getBoolean(R.styleable.Editor_usePieceTable, usePieceTable);
+
+        undoMemoryLimit = styledAttrs.getInt(R.styleable.Editor_undoMemoryLimit, undoMemoryLimit);
+        undoHistoryDepth = styledAttrs.getInt(R.styleable.Editor_undoHistoryDepth, undoHistoryDepth);
+
         // Recycle styled attributes array
         styledAttrs.recycle();
     }
 
     private void configure() {
+        // Keep text in a piece table if asked to, rewrapping whatever text was set before now
+        if (usePieceTable) {
+            setEditableFactory(PieceTableEditable.Factory.getInstance());
+            setText(getText());
+        }
+
         // Remove default underline and decor
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
             setBackground(null);
@@ -147,11 +239,18 @@ public class Editor extends EditText {
 
         // Allocate paints for custom drawing
         paintLineHighlight = new Paint();
+        paintFindHighlight = new Paint();
         paintLineNumberColumnBg = new Paint();
 
         // Set up paint for line highlighting
         paintLineHighlight.setColor(colorLineHighlight);
 
+        // Set up paint for find highlighting
+        paintFindHighlight.setColor(colorFindHighlight);
+
+        // Reused for the outline of each highlighted occurrence
+        findHighlightPath = new Path();
+
         // Set up paint for line number column background
         paintLineNumberColumnBg.setColor(colorLineNumberColumnBg);
 
@@ -169,33 +268,117 @@ public class Editor extends EditText {
 
         });
 
+        // Index logical lines of any text set before now
+        lineIndex = new LineIndex();
+        lineIndex.reset(getText());
+
+        // Set up line number gutter to draw from current layout
+        lineNumberGutter = new LineNumberGutter<>(new LineNumberGutter.Host<Canvas>() {
+
+            @Override
+            public int getLineCount() {
+                return layout == null ? 0 : layout.getLineCount();
+            }
+
+            @Override
+            public int getLineForVertical(int vertical) {
+                return layout.getLineForVertical(vertical);
+            }
+
+            @Override
+            public int getLineStart(int line) {
+                return layout.getLineStart(line);
+            }
+
+            @Override
+            public int getLineBaseline(int line) {
+                return layout.getLineBaseline(line);
+            }
+
+            @Override
+            public float measureText(char[] text, int index, int count) {
+                return getPaint().measureText(text, index, count);
+            }
+
+            @Override
+            public void drawLineNumber(Canvas canvas, char[] text, int index, int count, float x, int baseline) {
+                canvas.drawText(text, index, count, x, baseline + getPaddingTop(), getPaint());
+            }
+
+        }, lineIndex);
+
+        // Keep lexer state per line, so edits only lex lines until the state going into one matches what it was before
+        tokenizer = new Tokenizer();
+        tokenizer.reset(lineIndex.getLineCount());
+
+        // Nothing on screen yet
+        visibleLineFirst = -1;
+        visibleLineLast = -1;
+
+        // Redraw when freshly tokenized lines are on screen (tokens are drawn straight from the tokenizer, the text carries no spans for them)
+        tokenizerListener = new Tokenizer.Listener() {
+
+            @Override
+            public void onLinesTokenized(int lineFirst, int lineLast) {
+                if (lineFirst <= visibleLineLast && lineLast >= visibleLineFirst) {
+                    invalidate();
+                }
+            }
+
+        };
+
+        // Reusable rect for canvas clip queries
+        clipBounds = new Rect();
+
         // Set up a text changed listener to watch input
         addTextChangedListener(new TextWatcher() {
 
             @Override
             public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                // If this change will be recorded for undo
+                if (textChangedInternally == 0 && !textRestoring) {
+                    // Capture text about to be removed and selection before the change
+                    undoProvider.captureBefore(s, start, count);
+                }
             }
 
             @Override
             public void onTextChanged(CharSequence s, int start, int before, int count) {
+                // Lines the change replaced, while the index still describes the text as it was
+                int line = lineIndex.getLineForOffset(start);
+                int linesRemoved = lineIndex.getLineForOffset(start + before) - line;
+
+                // Update logical line index for changed range
+                lineIndex.onTextChanged(s, start, before, count);
+
+                // Have changed lines lexed again
+                tokenizer.onLinesChanged(line, linesRemoved, lineIndex.getLineForOffset(start + count) - line);
+
+                // Any snapshot taken before now is out of date
+                editVersion++;
+
                 // If line count changed
-                if (getLineCount() != lineCountCurrent) {
+                if (lineIndex.getLineCount() != lineCountCurrent) {
                     // Store new line count
-                    lineCountCurrent = getLineCount();
+                    lineCountCurrent = lineIndex.getLineCount();
                 }
 
                 // Check if an operation internal to the editor changed the text
-                if (textChangedInternally > 0) {
+                if (textRestoring) {
+                    // However many times restoring sets the text, none of it is an edit
+                } else if (textChangedInternally > 0) {
                     // Reset the flag for future use
                     textChangedInternally--;
                 } else {
-                    // Bump the undo provider
-                    undoProvider.bump();
+                    // Record the change with the undo provider
+                    undoProvider.captureAfter(s, start, count);
                 }
             }
 
             @Override
             public void afterTextChanged(Editable s) {
+                // Recolor whatever the change affected
+                updateSyntaxHighlighting();
             }
 
         });
@@ -203,8 +386,8 @@ public class Editor extends EditText {
         // Create a new undo provider
         undoProvider = new UndoProvider();
 
-        // Establish undo baseline
-        undoProvider.reset();
+        // Undo/redo stacks outlive process death in the cache
+        undoStore = new UndoStore(getContext().getCacheDir());
 
         // Give line numbering a little nudge
         lineCountCurrent = 0;
@@ -236,6 +419,36 @@ public class Editor extends EditText {
         this.colorLineHighlight = colorLineHighlight;
     }
 
+    public int getColorFindHighlight() {
+        return colorFindHighlight;
+    }
+
+    public void setColorFindHighlight(int colorFindHighlight) {
+        this.colorFindHighlight = colorFindHighlight;
+        paintFindHighlight.setColor(colorFindHighlight);
+        invalidate();
+    }
+
+    public OccurrenceIndex getFindHighlights() {
+        return findHighlights;
+    }
+
+    public void setFindHighlights(OccurrenceIndex findHighlights) {
+        // Occurrences are drawn straight from the index, so call invalidate() whenever it changes
+        this.findHighlights = findHighlights;
+        invalidate();
+    }
+
+    public int getLineNumberBase() {
+        return lineNumberBase;
+    }
+
+    public void setLineNumberBase(int lineNumberBase) {
+        this.lineNumberBase = lineNumberBase;
+        lineNumberGutter.setLineNumberBase(lineNumberBase);
+        updateLineNumberColumnWidth(true);
+    }
+
     public int getColorLineNumberColumnBg() {
         return colorLineNumberColumnBg;
     }
@@ -266,13 +479,171 @@ public class Editor extends EditText {
     }
 
     public void setEnableSyntaxHighlighting(boolean enableSyntaxHighlighting) {
+        if (enableSyntaxHighlighting == this.enableSyntaxHighlighting) {
+            return;
+        }
+
         this.enableSyntaxHighlighting = enableSyntaxHighlighting;
+
+        // Tokens weren't kept up to date while off, so start over either way
+        clearSyntaxHighlighting();
+        updateSyntaxHighlighting();
+    }
+
+    public Lexer getLexer() {
+        return tokenizer.getLexer();
+    }
+
+    public void setLexer(Lexer lexer) {
+        // Tokens of a different lexer don't hold, so start over
+        tokenizer.setLexer(lexer);
+
+        clearSyntaxHighlighting();
+        updateSyntaxHighlighting();
+    }
+
+    public int getColorSyntax(int style) {
+        return colorsSyntax[style];
+    }
+
+    public void setColorSyntax(int style, int color) {
+        colorsSyntax[style] = color;
+
+        // Colors are only looked up when drawing
+        invalidate();
+    }
+
+    @Override
+    public void setTextColor(int color) {
+        // Hold on to the color while drawing tokens, keeping the layout's own text invisible
+        if (textColorHidden) {
+            colorText = color;
+            invalidate();
+        } else {
+            super.setTextColor(color);
+        }
+    }
+
+    @Override
+    public void setTextColor(ColorStateList colors) {
+        if (textColorHidden) {
+            colorText = colors.getDefaultColor();
+            invalidate();
+        } else {
+            super.setTextColor(colors);
+        }
+    }
+
+    public boolean getUsePieceTable() {
+        return usePieceTable;
+    }
+
+    public CharSequence snapshotText() {
+        // Text as it is now, safe to read off the UI thread (a piece table shares its chars, anything else is copied)
+        Editable text = getText();
+
+        if (text instanceof PieceTableEditable) {
+            return ((PieceTableEditable) text).snapshot();
+        }
+
+        char[] chars = new char[text.length()];
+        TextUtils.getChars(text, 0, chars.length, chars, 0);
+
+        return new CharArraySequence(chars, 0, chars.length);
+    }
+
+    public int getUndoMemoryLimit() {
+        return undoMemoryLimit;
+    }
+
+    public void setUndoMemoryLimit(int undoMemoryLimit) {
+        this.undoMemoryLimit = undoMemoryLimit;
+        undoProvider.evict();
+    }
+
+    public int getUndoHistoryDepth() {
+        return undoHistoryDepth;
+    }
+
+    public void setUndoHistoryDepth(int undoHistoryDepth) {
+        this.undoHistoryDepth = undoHistoryDepth;
+        undoProvider.evict();
+    }
+
+    public long getUndoMemoryBytes() {
+        return undoProvider.memoryBytes;
+    }
+
+    public UndoJournal getUndoJournal() {
+        return undoJournal;
+    }
+
+    public void setUndoJournal(UndoJournal undoJournal) {
+        this.undoJournal = undoJournal;
     }
 
     public float getLineNumberColumnWidth() {
         return lineNumberColumnWidth;
     }
 
+    public void loadText(CharSequence text) {
+        // Replace content without recording it for undo
+        textChangedInternally++;
+        setText(text);
+
+        // Loaded content is the new undo baseline
+        undoProvider.reset();
+    }
+
+    public void appendLoadedText(CharSequence text) {
+        // Add to loaded content (the rest of a file shown early) without recording it for undo (appending nothing isn't
+        // reported to watchers, so it isn't flagged)
+        if (text.length() > 0) {
+            textChangedInternally++;
+            getText().append(text);
+        }
+
+        // Still part of the undo baseline
+        undoProvider.reset();
+    }
+
+    public void replayUndoJournal(List<UndoJournal.Entry> entries) {
+        // Lift history limits while replaying so undo markers always find their groups
+        int undoMemoryLimitSaved = undoMemoryLimit;
+        int undoHistoryDepthSaved = undoHistoryDepth;
+        undoMemoryLimit = Integer.MAX_VALUE;
+        undoHistoryDepth = 0;
+
+        // Replay entries against the loaded content
+        for (UndoJournal.Entry entry : entries) {
+            switch (entry.getType()) {
+            case GROUP:
+                undoProvider.replayGroup(entry.getOperations());
+                break;
+            case UNDO:
+                undoProvider.undo(1);
+                break;
+            case REDO:
+                undoProvider.redo(1);
+                break;
+            }
+        }
+
+        // Restore limits and trim what was replayed
+        undoMemoryLimit = undoMemoryLimitSaved;
+        undoHistoryDepth = undoHistoryDepthSaved;
+        undoProvider.evict();
+    }
+
+    public int getEditVersion() {
+        return editVersion;
+    }
+
+    public void commitUndoGroup() {
+        // End the current bump series now rather than waiting for the user to pause
+        undoProvider.cancelStore();
+    }
+
     public void undo() {
         undoProvider.undo(1);
     }
@@ -289,6 +660,166 @@ public class Editor extends EditText {
         undoProvider.redo(count);
     }
 
+    private void updateSyntaxHighlighting() {
+        // One batch at a time (the next one is prepared when it comes back)
+        if (!enableSyntaxHighlighting || tokenizerBatch != null) {
+            return;
+        }
+
+        // Copy out the next lines to lex, those on screen first
+        final Tokenizer.Batch batch = tokenizer.prepare(getText(), lineIndex, visibleLineFirst, visibleLineLast);
+        if (batch == null) {
+            return;
+        }
+
+        if (tokenizerWorker == null) {
+            tokenizerWorker = Executors.newSingleThreadExecutor();
+        }
+
+        tokenizerBatch = batch;
+        tokenizerWorker.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                // Stay out of the way of drawing and input
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                batch.run();
+
+                // Hand results back to the UI thread, which drops any for lines edited in the meantime
+                post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        // Given up on while it ran
+                        if (tokenizerBatch != batch) {
+                            return;
+                        }
+
+                        tokenizerBatch = null;
+                        tokenizer.apply(batch, tokenizerListener);
+
+                        // Carry on with whatever is still out of date
+                        updateSyntaxHighlighting();
+                    }
+
+                });
+            }
+
+        });
+    }
+
+    private void clearSyntaxHighlighting() {
+        // Mark all lines out of date
+        tokenizer.reset(lineIndex.getLineCount());
+
+        // Text is drawn by hand for as long as there's something to highlight it with
+        boolean hide = enableSyntaxHighlighting && tokenizer.getLexer() != null;
+        if (hide && !textColorHidden) {
+            colorText = getCurrentTextColor();
+            super.setTextColor(Color.TRANSPARENT);
+            textColorHidden = true;
+        } else if (!hide && textColorHidden) {
+            textColorHidden = false;
+            super.setTextColor(colorText);
+        }
+
+        invalidate();
+    }
+
+    private void drawSyntax(Canvas canvas) {
+        Editable text = getText();
+
+        // Get visible region (PanView clips us to its viewport)
+        canvas.getClipBounds(clipBounds);
+
+        int lineFirst = layout.getLineForVertical(clipBounds.top - getPaddingTop());
+        int lineLast = layout.getLineForVertical(clipBounds.bottom - getPaddingTop());
+
+        // Draw in layout coordinates
+        canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+
+        Paint paint = getPaint();
+        int paintColor = paint.getColor();
+
+        // Draw visible layout lines a run at a time, plain text between tokens
+        for (int line = lineFirst; line <= lineLast; line++) {
+            int start = layout.getLineStart(line);
+            int end = layout.getLineEnd(line);
+            int baseline = layout.getLineBaseline(line);
+
+            // Line feed isn't drawn
+            if (end > start && text.charAt(end - 1) == '\n') {
+                end--;
+            }
+
+            // Tokens belong to the logical line, which may be wrapped over several layout lines
+            int logicalLine = lineIndex.getLineForOffset(start);
+            int logicalStart = lineIndex.getLineStart(logicalLine);
+            int[] tokens = tokenizer.getLineTokens(logicalLine);
+
+            int position = start;
+
+            // Runs are measured on from where the layout starts the line
+            float x = layout.getPrimaryHorizontal(start);
+
+            // Lines not lexed yet are all plain for now
+            if (tokens != null) {
+                for (int i = 0; i < tokens.length; i += 3) {
+                    int tokenStart = logicalStart + tokens[i];
+                    int tokenEnd = tokenStart + tokens[i + 1];
+
+                    // Only the part of the token on this layout line
+                    if (tokenEnd <= start) {
+                        continue;
+                    }
+                    if (tokenStart >= end) {
+                        break;
+                    }
+                    tokenStart = Math.max(tokenStart, start);
+                    tokenEnd = Math.min(tokenEnd, end);
+
+                    x = drawRun(canvas, paint, text, position, tokenStart, colorText, baseline, x);
+                    x = drawRun(canvas, paint, text, tokenStart, tokenEnd, colorsSyntax[tokens[i + 2]], baseline, x);
+                    position = tokenEnd;
+                }
+            }
+
+            drawRun(canvas, paint, text, position, end, colorText, baseline, x);
+        }
+
+        paint.setColor(paintColor);
+
+        canvas.restore();
+    }
+
+    private float drawRun(Canvas canvas, Paint paint, Editable text, int start, int end, int color, int baseline, float x) {
+        paint.setColor(color);
+
+        // Draw between tabs, each stretch measured on from the last, and return where the run ends
+        while (start < end) {
+            int stretchEnd = start;
+            while (stretchEnd < end && text.charAt(stretchEnd) != '\t') {
+                stretchEnd++;
+            }
+
+            if (stretchEnd > start) {
+                canvas.drawText(text, start, stretchEnd, x, baseline, paint);
+                x += paint.measureText(text, start, stretchEnd);
+            }
+
+            // Tabs stop at positions only the layout knows, so ask it where the text after one goes
+            if (stretchEnd < end) {
+                x = layout.getPrimaryHorizontal(stretchEnd + 1);
+            }
+
+            start = stretchEnd + 1;
+        }
+
+        return x;
+    }
+
     private void updateLineNumberColumnWidth(boolean force) {
         // If line count has changed since last layout (or update is forced)
         if (force || lineCountCurrent != lineCountPrev) {
@@ -299,22 +830,19 @@ public class Editor extends EditText {
             return;
         }
 
-        // Iterate over all lines and count non-soft-wrap lines
-        int numberedLines = 0;
-        for (int i = 0; i < getLineCount(); i++) {
-            // Determine if line should be numbered
-            if (i == 0 || getText().subSequence(layout.getLineVisibleEnd(i - 1), layout.getLineEnd(i - 1)).toString().contains("\n")) {
-                numberedLines++;
-            }
-        }
+        // Every logical line gets numbered, counting on from the base
+        int numberedLines = lineNumberBase + lineIndex.getLineCount();
 
         // Subtract old column width from left padding
         setPadding(getPaddingLeft() - (int) lineNumberColumnWidth, getPaddingTop(), getPaddingRight(), getPaddingBottom());
 
         // Rest depends on presence of line number column
         if (showLineNumbers) {
+            // Make sure cached digit widths match the current paint
+            checkLineNumberPaint();
+
             // Calculate new width of line number column
-            lineNumberColumnWidth = lineNumberColumnPaddingLeft + layout.getPaint().measureText(String.valueOf(numberedLines)) + lineNumberColumnPaddingRight;
+            lineNumberColumnWidth = lineNumberColumnPaddingLeft + lineNumberGutter.measureNumber(numberedLines) + lineNumberColumnPaddingRight;
 
             // Bump left padding for new column width
             setPadding(getPaddingLeft() + (int) lineNumberColumnWidth, getPaddingTop(), getPaddingRight(), getPaddingBottom());
@@ -324,6 +852,21 @@ public class Editor extends EditText {
         }
     }
 
+    private void checkLineNumberPaint() {
+        Paint paint = getPaint();
+
+        // If paint configuration changed since digits were last measured
+        if (paint.getTextSize() != lineNumberPaintTextSize || paint.getTextScaleX() != lineNumberPaintTextScaleX || paint.getTypeface() != lineNumberPaintTypeface) {
+            // Store new configuration
+            lineNumberPaintTextSize = paint.getTextSize();
+            lineNumberPaintTextScaleX = paint.getTextScaleX();
+            lineNumberPaintTypeface = paint.getTypeface();
+
+            // Have digits re-measured on next use
+            lineNumberGutter.invalidateDigitWidths();
+        }
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         // If rendering in edit mode
@@ -332,27 +875,35 @@ public class Editor extends EditText {
             return;
         }
 
+        // Keep track of which lines are on screen, so they get lexed first
+        if (layout != null) {
+            // Get visible region (PanView clips us to its viewport)
+            canvas.getClipBounds(clipBounds);
+
+            int lineFirst = lineIndex.getLineForOffset(layout.getLineStart(layout.getLineForVertical(clipBounds.top - getPaddingTop())));
+            int lineLast = lineIndex.getLineForOffset(layout.getLineEnd(layout.getLineForVertical(clipBounds.bottom - getPaddingTop())));
+
+            if (lineFirst != visibleLineFirst || lineLast != visibleLineLast) {
+                visibleLineFirst = lineFirst;
+                visibleLineLast = lineLast;
+
+                updateSyntaxHighlighting();
+            }
+        }
+
         // Render line numbers if preferred
         if (showLineNumbers) {
             // Draw line number column background
             canvas.drawRect(getLeft(), getTop() + getPaddingTop(), getLeft() + lineNumberColumnWidth, getBottom() - getPaddingBottom(), paintLineNumberColumnBg);
 
-            // Iterate over all lines
-            int l = 1;
-            for (int i = 0; i < getLineCount(); i++) {
-                // Determine if line should be numbered
-                if (i == 0 || getText().subSequence(layout.getLineVisibleEnd(i - 1), layout.getLineEnd(i - 1)).toString().contains("\n")) {
-                    // Get Y coordinates of line's vertical bounds
-                    float lineTop = layout.getLineTop(i) + getPaddingTop();
-                    float lineBottom = layout.getLineBottom(i) + getPaddingTop();
+            // Get visible region (PanView clips us to its viewport)
+            canvas.getClipBounds(clipBounds);
 
-                    // Draw line number text
-                    canvas.drawText(String.valueOf(l), lineNumberColumnWidth - lineNumberColumnPaddingRight - layout.getPaint().measureText(String.valueOf(l)), layout.getLineBaseline(i) + getPaddingTop(), layout.getPaint());
+            // Make sure cached digit widths match the current paint
+            checkLineNumberPaint();
 
-                    // Increment user-facing line number
-                    l++;
-                }
-            }
+            // Draw line numbers for visible lines only, right-aligned in column
+            lineNumberGutter.draw(canvas, clipBounds.top - getPaddingTop(), clipBounds.bottom - getPaddingTop(), lineNumberColumnWidth - lineNumberColumnPaddingRight);
         }
 
         // Render line highlighting if preferred
@@ -363,38 +914,90 @@ public class Editor extends EditText {
 
             // If there's no text selection, but the cursor is placed in the editor
             if (selStart > -1 && selStart == selEnd) {
-                // Get line number for selection
-                int line = layout.getLineForOffset(selStart);
+                // Get logical line for selection
+                int logicalLine = lineIndex.getLineForOffset(selStart);
+
+                // Get first and last layout lines of the logical line (more than one if wrapped)
+                int lineFirst = layout.getLineForOffset(lineIndex.getLineStart(logicalLine));
+                int lineLast = layout.getLineForOffset(lineIndex.getLineEnd(logicalLine));
 
-                // Preliminary edges of highlight region vertical bounds
-                float regionTop = layout.getLineTop(line) + getPaddingTop();
-                float regionBottom = layout.getLineBottom(line) + getPaddingTop();
+                // Edges of highlight region vertical bounds
+                float regionTop = layout.getLineTop(lineFirst) + getPaddingTop();
+                float regionBottom = layout.getLineBottom(lineLast) + getPaddingTop();
 
-                // Preliminary edges of highlight region horizontal bounds
-                float regionLeft = layout.getLineLeft(line) + lineNumberColumnWidth;
+                // Edges of highlight region horizontal bounds
+                float regionLeft = layout.getLineLeft(lineFirst) + lineNumberColumnWidth;
                 float regionRight = getRight();
 
-                // Scan upwards for wrapped lines
-                int scanUp = line - 1;
-                while (scanUp >= 0 && !getText().subSequence(layout.getLineVisibleEnd(scanUp), layout.getLineEnd(scanUp)).toString().contains("\n")) {
-                    regionTop -= getLineHeight();
-                    scanUp--;
-                }
+                // Draw highlight behind line
+                canvas.drawRect(regionLeft, regionTop, regionRight, regionBottom, paintLineHighlight);
+            }
+        }
+
+        // Render find highlighting if there are occurrences
+        if (findHighlights != null && !findHighlights.isEmpty() && layout != null) {
+            // Get visible region (PanView clips us to its viewport)
+            canvas.getClipBounds(clipBounds);
+
+            // Find range of text on visible layout lines
+            int lineFirst = layout.getLineForVertical(clipBounds.top - getPaddingTop());
+            int lineLast = layout.getLineForVertical(clipBounds.bottom - getPaddingTop());
+            int offsetFirst = layout.getLineStart(lineFirst);
+            int offsetLast = layout.getLineEnd(lineLast);
+
+            // Draw in layout coordinates
+            canvas.save();
+            canvas.translate(getPaddingLeft(), getPaddingTop());
 
-                // Scan downwards for wrapped lines
-                int scanDown = line;
-                while (scanDown < getLineCount() - 1 && !getText().subSequence(layout.getLineVisibleEnd(scanDown), layout.getLineEnd(scanDown)).toString().contains("\n")) {
-                    regionBottom += getLineHeight();
-                    scanDown++;
+            // Jump straight to the first occurrence on screen, then draw until we run off the bottom
+            for (int i = findHighlights.firstEndingAfter(offsetFirst); i < findHighlights.size(); i++) {
+                int start = findHighlights.getOffset(i);
+                int end = Math.min(start + findHighlights.getLength(i), length());
+
+                if (start >= offsetLast) {
+                    break;
                 }
 
-                // Draw highlight behind line
-                canvas.drawRect(regionLeft, regionTop, regionRight, regionBottom, paintLineHighlight);
+                // Replaced occurrences aren't highlighted
+                if (findHighlights.isValid(i)) {
+                    layout.getSelectionPath(start, end, findHighlightPath);
+                    canvas.drawPath(findHighlightPath, paintFindHighlight);
+                }
             }
+
+            canvas.restore();
         }
 
         // Continue to render as an EditText
         super.onDraw(canvas);
+
+        // Draw text over the layout's invisible text, in token colors
+        if (textColorHidden && layout != null) {
+            drawSyntax(canvas);
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        // Pick up lexing where it was left off
+        updateSyntaxHighlighting();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        // Stop lexing (a batch under way finishes, but its results are ignored)
+        if (tokenizerWorker != null) {
+            tokenizerWorker.shutdown();
+            tokenizerWorker = null;
+        }
+        tokenizerBatch = null;
+
+        // Stop waiting on the current bump series
+        undoProvider.cancelStore();
     }
 
     @Override
@@ -408,20 +1011,23 @@ public class Editor extends EditText {
         if (state instanceof SavedState) {
             SavedState savedState = (SavedState) state;
 
-            // Flag text as internally changed
-            textChangedInternally += 2;
+            // Pass super state to superclass, flagging the text it sets as internally changed
+            textRestoring = true;
+            try {
+                super.onRestoreInstanceState(savedState.getSuperState());
+            } finally {
+                textRestoring = false;
+            }
 
-            // Pass super state to superclass
-            super.onRestoreInstanceState(savedState.getSuperState());
+            // Start over with empty undo/redo stacks
+            undoProvider.reset();
 
-            // Restore undo/redo stacks
-            undoProvider.stackUndo.clear();
-            for (int i = 0; i < savedState.undoProviderStackUndoArray.length; i++) {
-                undoProvider.stackUndo.addLast(savedState.undoProviderStackUndoArray[i]);
-            }
-            undoProvider.stackRedo.clear();
-            for (int i = 0; i < savedState.undoProviderStackRedoArray.length; i++) {
-                undoProvider.stackRedo.addLast(savedState.undoProviderStackRedoArray[i]);
+            // Undo/redo stacks were written to disk under this session
+            undoSessionId = savedState.undoSessionId;
+
+            // Load undo/redo stacks in the background
+            if (undoSessionId != null) {
+                undoProvider.restoreAsync(undoSessionId);
             }
         } else {
             // Not for us, pass it on
@@ -434,24 +1040,27 @@ public class Editor extends EditText {
         // Create a stateful object based on super state
         SavedState savedState = new SavedState(super.onSaveInstanceState());
 
-        // Save undo/redo stacks as arrays of ContentFrame
-        savedState.undoProviderStackUndoArray = undoProvider.stackUndo.toArray(new UndoProvider.ContentFrame[undoProvider.stackUndo.size()]);
-        savedState.undoProviderStackRedoArray = undoProvider.stackRedo.toArray(new UndoProvider.ContentFrame[undoProvider.stackRedo.size()]);
+        // Undo/redo stacks go to disk, so only a session ID goes in the parcel no matter how much history there is
+        if (undoSessionId == null) {
+            undoSessionId = UndoStore.newSessionId();
+        }
+        savedState.undoSessionId = undoSessionId;
+
+        // Write undo/redo stacks in the background
+        undoProvider.saveAsync(undoSessionId);
 
         return savedState;
     }
 
-    private class SavedState extends BaseSavedState {
+    private static class SavedState extends BaseSavedState {
 
-        private UndoProvider.ContentFrame[] undoProviderStackUndoArray;
-        private UndoProvider.ContentFrame[] undoProviderStackRedoArray;
+        private String undoSessionId;
 
         public SavedState(Parcel source) {
             super(source);
 
-            // Read undo/redo stack arrays
-            undoProviderStackUndoArray = (UndoProvider.ContentFrame[]) source.readParcelableArray(UndoProvider.ContentFrame.class.getClassLoader());
-            undoProviderStackRedoArray = (UndoProvider.ContentFrame[]) source.readParcelableArray(UndoProvider.ContentFrame.class.getClassLoader());
+            // Read undo session ID
+            undoSessionId = source.readString();
         }
 
         public SavedState(Parcelable superState) {
@@ -462,12 +1071,11 @@ public class Editor extends EditText {
         public void writeToParcel(Parcel out, int flags) {
             super.writeToParcel(out, flags);
 
-            // Write undo/redo stack arrays
-            out.writeParcelableArray(undoProviderStackUndoArray, flags);
-            out.writeParcelableArray(undoProviderStackRedoArray, flags);
+            // Write undo session ID
+            out.writeString(undoSessionId);
         }
 
-        public final Creator<SavedState> CREATOR = new Creator<SavedState>() {
+        public static final Creator<SavedState> CREATOR = new Creator<SavedState>() {
 
             @Override
             public SavedState createFromParcel(Parcel source) {
@@ -485,39 +1093,52 @@ public class Editor extends EditText {
 
     public class UndoProvider {
 
-        private static final long CHECK_PERIOD = 100l;
         private static final long STORE_THRESHOLD = 500l;
 
-        private Timer timer;
-
-        private Deque<ContentFrame> stackUndo;
-        private Deque<ContentFrame> stackRedo;
+        private Deque<EditGroup> stackUndo;
+        private Deque<EditGroup> stackRedo;
 
         private boolean stored;
-        private long timeLastBumped;
+        private long storeDeadline;
+        private boolean storePending;
 
-        private UndoProvider() {
-            timer = new Timer();
+        private Runnable storeRunnable;
+
+        private long memoryBytes;
 
-            stackUndo = new LinkedBlockingDeque<>();
-            stackRedo = new LinkedBlockingDeque<>();
+        private int captureCount;
+
+        private String captureTextRemoved;
+        private int captureSelectionStart;
+        private int captureSelectionEnd;
+
+        private UndoProvider() {
+            stackUndo = new ArrayDeque<>();
+            stackRedo = new ArrayDeque<>();
 
             stored = true;
-            timeLastBumped = System.nanoTime();
+            storeDeadline = 0l;
+            storePending = false;
 
-            // Schedule timer to check necessity of an undo store
-            timer.scheduleAtFixedRate(new TimerTask() {
+            // Runs on the UI thread once the bump series has been idle long enough
+            storeRunnable = new Runnable() {
 
                 @Override
                 public void run() {
-                    // If this bump series hasn't been highlighted and it's been long enough
-                    if (!stored && System.nanoTime() - timeLastBumped > STORE_THRESHOLD * 1000000) {
+                    long now = SystemClock.uptimeMillis();
+
+                    // If the series was bumped since this was scheduled
+                    if (now < storeDeadline) {
+                        // Wait out the remainder
+                        postDelayed(this, storeDeadline - now);
+                    } else {
                         // Store the bump series
+                        storePending = false;
                         storeUndo();
                     }
                 }
 
-            }, 0l, CHECK_PERIOD);
+            };
         }
 
         private int getUndoCount() {
@@ -545,16 +1166,22 @@ public class Editor extends EditText {
 
             // Perform count undo ops
             for (int i = 0; i < count; i++) {
-                // Do not continue if undo stack only contains baseline
-                if (stackUndo.size() == 1) {
+                // Do not continue if undo stack is empty
+                if (stackUndo.isEmpty()) {
                     break;
                 }
 
-                // Move topmost frame from undo stack to redo stack
-                stackRedo.push(stackUndo.pop());
+                // Move topmost group from undo stack to redo stack
+                EditGroup editGroup = stackUndo.pop();
+                stackRedo.push(editGroup);
+
+                // Revert the group's changes
+                revertEditGroup(editGroup);
 
-                // Change state to reflect new topmost frame on undo stack
-                applyContentFrame(stackUndo.peek());
+                // Journal the undo
+                if (undoJournal != null) {
+                    undoJournal.appendUndo();
+                }
             }
         }
 
@@ -566,11 +1193,17 @@ public class Editor extends EditText {
                     break;
                 }
 
-                // Move topmost frame from redo stack to undo stack
-                stackUndo.push(stackRedo.pop());
+                // Move topmost group from redo stack to undo stack
+                EditGroup editGroup = stackRedo.pop();
+                stackUndo.push(editGroup);
+
+                // Reapply the group's changes
+                applyEditGroup(editGroup);
 
-                // Change state to reflect new topmost frame on undo stack
-                applyContentFrame(stackUndo.peek());
+                // Journal the redo
+                if (undoJournal != null) {
+                    undoJournal.appendRedo();
+                }
             }
         }
 
@@ -579,168 +1212,304 @@ public class Editor extends EditText {
             stackUndo.clear();
             stackRedo.clear();
 
-            // Load current state into undo stack
-            stackUndo.push(storeContentFrame());
+            // Nothing is held anymore
+            memoryBytes = 0;
+
+            // Start a fresh group on next change
+            stored = true;
+        }
+
+        private void captureBefore(CharSequence s, int start, int count) {
+            // Store text about to be removed
+            captureTextRemoved = TextUtils.substring(s, start, start + count);
+
+            // Store selection before the change
+            captureSelectionStart = Selection.getSelectionStart(s);
+            captureSelectionEnd = Selection.getSelectionEnd(s);
+        }
+
+        private void captureAfter(CharSequence s, int start, int count) {
+            // Build an operation from captured and inserted text, trimmed to the chars that actually changed
+            EditOperation operation = new EditOperation(start, captureTextRemoved, TextUtils.substring(s, start, start + count), captureSelectionStart, captureSelectionEnd, start + count, start + count).trim();
+
+            // Release captured text
+            captureTextRemoved = null;
+
+            // Nothing to record if the change was a no-op (e.g. an IME recommitting the same word)
+            if (operation == null) {
+                return;
+            }
+
+            // Count changes so a background restore can tell if it was overtaken
+            captureCount++;
+
+            // If no group is open for this bump series
+            if (stored) {
+                // Open a new group on top of the undo stack
+                stackUndo.push(new EditGroup());
+            }
+
+            EditGroup editGroup = stackUndo.peek();
+            memoryBytes -= editGroup.memoryBytes;
+
+            // Try to fold operation into the previous one (e.g. consecutive keystrokes) to keep undo to one replace
+            EditOperation operationLast = editGroup.operations.isEmpty() ? null : editGroup.operations.get(editGroup.operations.size() - 1);
+            EditOperation operationMerged = operationLast == null ? null : operationLast.mergeWith(operation);
+
+            if (operationMerged != null) {
+                // Swap the previous operation for the combined one (or drop both if they cancel out)
+                editGroup.removeLast();
+                operationMerged = operationMerged.trim();
+
+                if (operationMerged != null) {
+                    editGroup.add(operationMerged);
+                }
+            } else {
+                // Add operation to topmost group
+                editGroup.add(operation);
+            }
+
+            memoryBytes += editGroup.memoryBytes;
+
+            // If operations cancelled out entirely, drop the group
+            if (editGroup.operations.isEmpty()) {
+                stackUndo.pop();
+                stored = true;
+                return;
+            }
+
+            // Bump the series along
+            bump();
+
+            // Drop old history that no longer fits
+            evict();
         }
 
         private void bump() {
             // Reset for next undo storage
             stored = false;
 
-            // Mark time of bump
-            timeLastBumped = System.nanoTime();
+            // Push the store deadline back
+            storeDeadline = SystemClock.uptimeMillis() + STORE_THRESHOLD;
+
+            // Schedule a store only if one isn't already waiting (it will see the new deadline)
+            if (!storePending) {
+                storePending = true;
+                postDelayed(storeRunnable, STORE_THRESHOLD);
+            }
 
             // Clear the redo stack
-            stackRedo.clear();
+            while (!stackRedo.isEmpty()) {
+                memoryBytes -= stackRedo.pop().memoryBytes;
+            }
+        }
+
+        private void evict() {
+            // Drop redo groups farthest from the present first, as they are the least likely to be used
+            while (memoryBytes > undoMemoryLimit && !stackRedo.isEmpty()) {
+                memoryBytes -= stackRedo.removeLast().memoryBytes;
+            }
+
+            // Drop oldest undo groups while over budget or too deep, but never the topmost group, which may still be
+            // open and collecting the current bump series (deltas need no baseline, so undo just stops earlier)
+            while (stackUndo.size() > 1 && (memoryBytes > undoMemoryLimit || (undoHistoryDepth > 0 && stackUndo.size() > undoHistoryDepth))) {
+                memoryBytes -= stackUndo.removeLast().memoryBytes;
+            }
         }
 
         private void storeUndo() {
-            // Mark that content was highlighted for this bump series
+            if (!stored) {
+                // Typing is done with the builder behind the last operation, so give it plain text of its own
+                stackUndo.peek().freezeLast();
+
+                // Journal the group now that it is complete
+                if (undoJournal != null) {
+                    undoJournal.appendGroup(stackUndo.peek().operations);
+                }
+            }
+
+            // Mark that the current group is complete for this bump series
             stored = true;
+        }
 
-            // Push current content onto undo stack for future undoing
-            stackUndo.push(storeContentFrame());
+        private void saveAsync(String sessionId) {
+            // Close the current series so every group is final and can be handed off without copying
+            cancelStore();
+
+            // Snapshot stacks as lists of operations (top of stack first)
+            List<List<EditOperation>> snapshotUndo = new ArrayList<>(stackUndo.size());
+            for (EditGroup editGroup : stackUndo) {
+                snapshotUndo.add(editGroup.operations);
+            }
+            List<List<EditOperation>> snapshotRedo = new ArrayList<>(stackRedo.size());
+            for (EditGroup editGroup : stackRedo) {
+                snapshotRedo.add(editGroup.operations);
+            }
+
+            undoStore.write(sessionId, snapshotUndo, snapshotRedo);
         }
 
-        private void applyContentFrame(final ContentFrame contentFrame) {
-            // Apply content on the UI thread
-            post(new Runnable() {
+        private void restoreAsync(String sessionId) {
+            final int captureCountRequested = captureCount;
+
+            undoStore.read(sessionId, new Callback<UndoStore.State>() {
 
                 @Override
-                public void run() {
-                    // Set editor text to that in content frame
-                    textChangedInternally++;
-                    setText(contentFrame.text);
+                public void ring(final UndoStore.State state) {
+                    // Nothing stored
+                    if (state == null) {
+                        return;
+                    }
 
-                    // Restore cursor offset
-                    setSelection(contentFrame.selectionStart, contentFrame.selectionEnd);
+                    // Install on the UI thread
+                    post(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            // Restored groups predate anything typed since, so they go beneath it
+                            for (List<EditOperation> operations : state.getStackUndo()) {
+                                EditGroup editGroup = buildGroup(operations);
+                                stackUndo.addLast(editGroup);
+                                memoryBytes += editGroup.memoryBytes;
+                            }
+
+                            // Redo history only still applies if nothing has been typed since
+                            if (captureCount == captureCountRequested && stackRedo.isEmpty()) {
+                                for (List<EditOperation> operations : state.getStackRedo()) {
+                                    EditGroup editGroup = buildGroup(operations);
+                                    stackRedo.addLast(editGroup);
+                                    memoryBytes += editGroup.memoryBytes;
+                                }
+                            }
+
+                            // Fit restored history to current limits
+                            evict();
+                        }
+
+                    });
                 }
 
             });
         }
 
-        private ContentFrame storeContentFrame() {
-            // Create a new content frame to represent current content
-            ContentFrame contentFrame = new ContentFrame();
-
-            // Store selection info
-            contentFrame.selectionEnd = getSelectionEnd();
-            contentFrame.selectionStart = getSelectionStart();
-
-            // Store copy of editor text
-            contentFrame.text = getText().subSequence(0, length());
+        private EditGroup buildGroup(List<EditOperation> operations) {
+            EditGroup editGroup = new EditGroup();
+            for (EditOperation operation : operations) {
+                editGroup.add(operation);
+            }
 
-            return contentFrame;
+            return editGroup;
         }
 
-        private class ContentFrame implements Parcelable {
+        private void replayGroup(List<EditOperation> operations) {
+            // Close out anything in progress
+            storeUndo();
 
-            private int selectionEnd;
-            private int selectionStart;
+            EditGroup editGroup = buildGroup(operations);
 
-            private CharSequence text;
+            // Apply the group to the text
+            applyEditGroup(editGroup);
 
-            private ContentFrame() {
-                selectionEnd = 0;
-                selectionStart = 0;
+            // Discard redo history and push group as if it had just been typed
+            bump();
+            stackUndo.push(editGroup);
+            memoryBytes += editGroup.memoryBytes;
+            stored = true;
+        }
 
-                text = null;
-            }
+        private void cancelStore() {
+            // Unschedule any waiting store
+            removeCallbacks(storeRunnable);
+            storePending = false;
+
+            // Close out the current bump series now
+            storeUndo();
+        }
 
-            private ContentFrame(Parcel in) {
-                // Read selection bounds
-                selectionEnd = in.readInt();
-                selectionStart = in.readInt();
+        private void revertEditGroup(EditGroup editGroup) {
+            // Batch the replacements so layout and IME are updated once
+            beginBatchEdit();
 
-                // Read whether text is spanned
-                boolean isSpanned = in.readInt() == 1;
+            // Undo operations in reverse order
+            for (int i = editGroup.operations.size() - 1; i >= 0; i--) {
+                EditOperation operation = editGroup.operations.get(i);
 
-                // If text is spanned
-                if (isSpanned) {
-                    // Create builder for spannable string
-                    SpannableStringBuilder textBuilder = new SpannableStringBuilder();
+                // An empty replace changes nothing and isn't reported to watchers, so it mustn't be flagged either
+                if (operation.getTextInserted().isEmpty() && operation.getTextRemoved().isEmpty()) {
+                    continue;
+                }
 
-                    // Read text
-                    textBuilder.append(in.readString());
+                // Swap inserted text back out for removed text, touching only that range
+                textChangedInternally++;
+                getText().replace(operation.getOffset(), operation.getOffset() + operation.getTextInserted().length(), operation.getTextRemoved());
+            }
 
-                    // Read number of spans
-                    int numSpans = in.readInt();
+            // Restore selection from before the first operation
+            EditOperation operationFirst = editGroup.operations.get(0);
+            setSelectionClamped(operationFirst.getSelectionStartBefore(), operationFirst.getSelectionEndBefore());
 
-                    // Read spans and properties iteratively
-                    for (int i = 0; i < numSpans; i++) {
-                        // Read span
-                        ParcelableSpan span = in.readParcelable(ParcelableSpan.class.getClassLoader());
+            endBatchEdit();
+        }
 
-                        // Read properties
-                        int start = in.readInt();
-                        int end = in.readInt();
-                        int flags = in.readInt();
+        private void applyEditGroup(EditGroup editGroup) {
+            // Batch the replacements so layout and IME are updated once
+            beginBatchEdit();
 
-                        // Apply span
-                        textBuilder.setSpan(span, start, end, flags);
-                    }
+            // Redo operations in original order
+            for (int i = 0; i < editGroup.operations.size(); i++) {
+                EditOperation operation = editGroup.operations.get(i);
 
-                    // Save text instance
-                    text = textBuilder;
-                } else {
-                    // Read text
-                    text = in.readString();
+                // An empty replace changes nothing and isn't reported to watchers, so it mustn't be flagged either
+                if (operation.getTextRemoved().isEmpty() && operation.getTextInserted().isEmpty()) {
+                    continue;
                 }
-            }
 
-            @Override
-            public int describeContents() {
-                return 0;
+                // Swap removed text back out for inserted text, touching only that range
+                textChangedInternally++;
+                getText().replace(operation.getOffset(), operation.getOffset() + operation.getTextRemoved().length(), operation.getTextInserted());
             }
 
-            @Override
-            public void writeToParcel(Parcel out, int flags) {
-                // Write selection bounds
-                out.writeInt(selectionEnd);
-                out.writeInt(selectionStart);
-
-                // Write whether text is spanned
-                out.writeInt(text instanceof Spanned ? 1 : 0);
+            // Restore selection from after the last operation
+            EditOperation operationLast = editGroup.operations.get(editGroup.operations.size() - 1);
+            setSelectionClamped(operationLast.getSelectionStartAfter(), operationLast.getSelectionEndAfter());
 
-                // Write text
-                out.writeString(text.toString());
+            endBatchEdit();
+        }
 
-                // If text is spanned
-                if (text instanceof Spanned) {
-                    Spannable textSpanned = (Spannable) text;
+        private void setSelectionClamped(int selectionStart, int selectionEnd) {
+            // Stored selection may be stale (e.g. an IME reported it mid-composition)
+            setSelection(Math.max(0, Math.min(selectionStart, length())), Math.max(0, Math.min(selectionEnd, length())));
+        }
 
-                    // Get all parcelable spans
-                    ParcelableSpan[] spans = textSpanned.getSpans(0, textSpanned.length(), ParcelableSpan.class);
+        private class EditGroup {
 
-                    // Write number of spans
-                    out.writeInt(spans.length);
+            private List<EditOperation> operations;
 
-                    // Write spans and properties iteratively
-                    for (ParcelableSpan span : spans) {
-                        // Write span
-                        out.writeParcelable(span, 0);
+            private long memoryBytes;
 
-                        // Write properties
-                        out.writeInt(textSpanned.getSpanStart(span));
-                        out.writeInt(textSpanned.getSpanEnd(span));
-                        out.writeInt(textSpanned.getSpanFlags(span));
-                    }
-                }
+            private EditGroup() {
+                operations = new ArrayList<>();
+                memoryBytes = 0;
             }
 
-            public final Creator<ContentFrame> CREATOR = new Creator<ContentFrame>() {
+            private void add(EditOperation operation) {
+                // Add operation and account for its memory
+                operations.add(operation);
+                memoryBytes += operation.getMemoryBytes();
+            }
 
-                @Override
-                public ContentFrame createFromParcel(Parcel in) {
-                    return new ContentFrame(in);
-                }
+            private void removeLast() {
+                // Remove last operation and release its memory
+                memoryBytes -= operations.remove(operations.size() - 1).getMemoryBytes();
+            }
 
-                @Override
-                public ContentFrame[] newArray(int size) {
-                    return new ContentFrame[size];
+            private void freezeLast() {
+                // Same text, so the same memory
+                int last = operations.size() - 1;
+                if (last >= 0) {
+                    operations.set(last, operations.get(last).freeze());
                 }
-
-            };
+            }
 
         }
 
@@ -0,0 +1,137 @@
+package io.microdev.source.widget.editor;
+
+import io.microdev.source.syntax.Tokenizer;
+
+public class LineIndex implements Tokenizer.Lines {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] lineStarts;
+    private int lineCount;
+
+    private int length;
+
+    public LineIndex() {
+        lineStarts = new int[INITIAL_CAPACITY];
+
+        // An empty document still has a single line
+        lineStarts[0] = 0;
+        lineCount = 1;
+
+        length = 0;
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public int getLineStart(int line) {
+        return lineStarts[line];
+    }
+
+    @Override
+    public int getLineEnd(int line) {
+        // Line ends just before the next line starts (excluding its line feed), or at end of text
+        return line < lineCount - 1 ? lineStarts[line + 1] - 1 : length;
+    }
+
+    public int getLineForOffset(int offset) {
+        // Binary search for the last line starting at or before the offset
+        int low = 0;
+        int high = lineCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+
+            if (lineStarts[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return low;
+    }
+
+    public boolean isLineStart(int offset) {
+        return lineStarts[getLineForOffset(offset)] == offset;
+    }
+
+    public void reset(CharSequence text) {
+        // Start over with a single empty line
+        lineCount = 1;
+        length = 0;
+
+        // Index the whole text as one insertion
+        onTextChanged(text, 0, 0, text.length());
+    }
+
+    public void onTextChanged(CharSequence text, int start, int before, int count) {
+        // Line starts in (start, start + before] followed a line feed that has just been removed
+        int removeFrom = firstLineStartAfter(start);
+        int removeTo = firstLineStartAfter(start + before);
+
+        // Count line feeds in the inserted text
+        int inserted = 0;
+        for (int i = start; i < start + count; i++) {
+            if (text.charAt(i) == '\n') {
+                inserted++;
+            }
+        }
+
+        // Make room for inserted line starts (or close the gap left by removed ones)
+        int newLineCount = lineCount - (removeTo - removeFrom) + inserted;
+        ensureCapacity(newLineCount);
+        System.arraycopy(lineStarts, removeTo, lineStarts, removeFrom + inserted, lineCount - removeTo);
+
+        // Shift line starts following the change by the difference in length
+        int delta = count - before;
+        if (delta != 0) {
+            for (int i = removeFrom + inserted; i < newLineCount; i++) {
+                lineStarts[i] += delta;
+            }
+        }
+
+        // Fill in line starts for inserted line feeds
+        int l = removeFrom;
+        for (int i = start; i < start + count; i++) {
+            if (text.charAt(i) == '\n') {
+                lineStarts[l++] = i + 1;
+            }
+        }
+
+        lineCount = newLineCount;
+        length += delta;
+    }
+
+    private int firstLineStartAfter(int offset) {
+        // Binary search for the first line starting strictly after the offset
+        int low = 1;
+        int high = lineCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            if (lineStarts[mid] <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > lineStarts.length) {
+            // Grow by half again to amortize insertions
+            int[] lineStartsNew = new int[Math.max(capacity, lineStarts.length + (lineStarts.length >> 1))];
+            System.arraycopy(lineStarts, 0, lineStartsNew, 0, lineCount);
+            lineStarts = lineStartsNew;
+        }
+    }
+
+}
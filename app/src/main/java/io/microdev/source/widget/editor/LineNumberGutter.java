@@ -0,0 +1,118 @@
+package io.microdev.source.widget.editor;
+
+class LineNumberGutter<C> {
+
+    private static final char[] DIGITS = "0123456789".toCharArray();
+
+    private static final int MAX_DIGITS = 10;
+
+    private Host<C> host;
+    private LineIndex lineIndex;
+
+    private char[] digits;
+
+    // Number of the first line, less one (nonzero when the text is a window on a larger document)
+    private int lineNumberBase;
+
+    private float[] digitWidths;
+    private boolean digitWidthsValid;
+
+    LineNumberGutter(Host<C> host, LineIndex lineIndex) {
+        this.host = host;
+        this.lineIndex = lineIndex;
+
+        digits = new char[MAX_DIGITS];
+
+        digitWidths = new float[10];
+        digitWidthsValid = false;
+    }
+
+    void setLineNumberBase(int lineNumberBase) {
+        this.lineNumberBase = lineNumberBase;
+    }
+
+    void invalidateDigitWidths() {
+        digitWidthsValid = false;
+    }
+
+    float measureNumber(int number) {
+        // Write digits into reused buffer
+        int index = writeDigits(number);
+
+        // Sum cached digit advances
+        return measureDigits(index);
+    }
+
+    void draw(C canvas, int clipTop, int clipBottom, float right) {
+        // Nothing to number without lines
+        if (host.getLineCount() == 0) {
+            return;
+        }
+
+        // Find layout lines bounding the visible region
+        int lineFirst = host.getLineForVertical(clipTop);
+        int lineLast = host.getLineForVertical(clipBottom);
+
+        // Iterate over visible lines only
+        for (int i = lineFirst; i <= lineLast; i++) {
+            // Get logical line containing the start of this layout line
+            int lineStart = host.getLineStart(i);
+            int logicalLine = lineIndex.getLineForOffset(lineStart);
+
+            // Only number the first layout line of each logical line (soft-wrapped continuations are not)
+            if (lineIndex.getLineStart(logicalLine) == lineStart) {
+                // Write digits into reused buffer
+                int index = writeDigits(lineNumberBase + logicalLine + 1);
+
+                // Draw digits right-aligned against the given edge
+                host.drawLineNumber(canvas, digits, index, MAX_DIGITS - index, right - measureDigits(index), host.getLineBaseline(i));
+            }
+        }
+    }
+
+    private int writeDigits(int number) {
+        // Fill buffer from the end, returning the index of the leading digit
+        int index = MAX_DIGITS;
+        do {
+            digits[--index] = (char) ('0' + number % 10);
+            number /= 10;
+        } while (number > 0);
+
+        return index;
+    }
+
+    private float measureDigits(int index) {
+        // Measure each digit once per paint configuration
+        if (!digitWidthsValid) {
+            for (int d = 0; d < 10; d++) {
+                digitWidths[d] = host.measureText(DIGITS, d, 1);
+            }
+
+            digitWidthsValid = true;
+        }
+
+        float width = 0f;
+        for (int i = index; i < MAX_DIGITS; i++) {
+            width += digitWidths[digits[i] - '0'];
+        }
+
+        return width;
+    }
+
+    interface Host<C> {
+
+        int getLineCount();
+
+        int getLineForVertical(int vertical);
+
+        int getLineStart(int line);
+
+        int getLineBaseline(int line);
+
+        float measureText(char[] text, int index, int count);
+
+        void drawLineNumber(C canvas, char[] text, int index, int count, float x, int baseline);
+
+    }
+
+}
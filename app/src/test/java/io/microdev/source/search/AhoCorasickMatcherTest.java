@@ -0,0 +1,42 @@
+package io.microdev.source.search;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AhoCorasickMatcherTest {
+
+    @Test
+    public void prefixTermLosesToLongerTermAtSameStart() throws Exception {
+        AhoCorasickMatcher matcher = new AhoCorasickMatcher(new String[] { "log.level", "log.level.debug" }, false);
+        char[] text = "set log.level.debug=true".toCharArray();
+
+        assertEquals(4, matcher.find(text, 0, text.length - matcher.getMinLength(), text.length));
+        assertEquals(15, matcher.getMatchLength());
+        assertEquals(1, matcher.getMatchTerm());
+
+        // Shorter one still found where the longer one doesn't fit
+        char[] shorter = "log.level.info".toCharArray();
+        assertEquals(0, matcher.find(shorter, 0, shorter.length - matcher.getMinLength(), shorter.length));
+        assertEquals(0, matcher.getMatchTerm());
+    }
+
+    @Test
+    public void earlierStartWinsOverEarlierCompletion() throws Exception {
+        AhoCorasickMatcher matcher = new AhoCorasickMatcher(new String[] { "abcd", "bc" }, false);
+        char[] text = "abcd".toCharArray();
+
+        // "bc" completes first, but "abcd" starts first
+        assertEquals(0, matcher.find(text, 0, text.length - matcher.getMinLength(), text.length));
+        assertEquals(4, matcher.getMatchLength());
+        assertEquals(0, matcher.getMatchTerm());
+
+        // Earlier start counts even when the later one is out of range
+        assertEquals(0, matcher.find(text, 0, 0, text.length));
+
+        // Nothing once the longer term is cut off by the end of the text
+        assertEquals(1, matcher.find(text, 0, 2, 3));
+        assertEquals(1, matcher.getMatchTerm());
+    }
+
+}
@@ -0,0 +1,102 @@
+package io.microdev.source.search;
+
+import java.util.Random;
+
+public class HorspoolMatcherBenchmark {
+
+    private static final String[] WORDS = { "int", "return", "value", "offset", "length", "public", "static", "void", "final", "private", "(", ")", "{", "}", ";", "=", "+", "i", "j", "text" };
+
+    private static final int TEXT_LENGTH = 4 * 1024 * 1024;
+
+    private static final int WARMUP_RUNS = 10;
+    private static final int MEASURED_RUNS = 20;
+
+    public static void main(String[] args) {
+        char[] chars = buildText().toCharArray();
+
+        // A short needle that occurs often, and a long one that occurs once near the end
+        String needleShort = "value";
+        String needleLong = "private static final int NEEDLE_FOUND_ONLY_ONCE = 1;";
+
+        // Plant long needle near the end
+        int planted = chars.length - 1000;
+        needleLong.getChars(0, needleLong.length(), chars, planted);
+
+        for (String needle : new String[] { needleShort, needleLong }) {
+            for (boolean ignoreCase : new boolean[] { false, true }) {
+                run(chars, needle, ignoreCase);
+            }
+        }
+    }
+
+    private static void run(char[] chars, String needle, boolean ignoreCase) {
+        int countIndexOf = 0;
+        int countHorspool = 0;
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            countIndexOf = searchIndexOf(chars, needle, ignoreCase);
+            countHorspool = searchHorspool(chars, needle, ignoreCase);
+        }
+
+        long timeStart = System.nanoTime();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            countIndexOf = searchIndexOf(chars, needle, ignoreCase);
+        }
+        long timeIndexOf = (System.nanoTime() - timeStart) / MEASURED_RUNS;
+
+        timeStart = System.nanoTime();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            countHorspool = searchHorspool(chars, needle, ignoreCase);
+        }
+        long timeHorspool = (System.nanoTime() - timeStart) / MEASURED_RUNS;
+
+        System.out.printf("needle %2d chars, ignoreCase %-5b: indexOf %8.2f ms (%d hits), horspool %8.2f ms (%d hits)%n", needle.length(), ignoreCase, timeIndexOf / 1e6, countIndexOf, timeHorspool / 1e6, countHorspool);
+    }
+
+    private static int searchIndexOf(char[] chars, String needle, boolean ignoreCase) {
+        // What find used to do: copy (and maybe lowercase) everything, then step one char past each hit
+        String text = new String(chars);
+        if (ignoreCase) {
+            text = text.toLowerCase();
+            needle = needle.toLowerCase();
+        }
+
+        int count = 0;
+        int offset = 0;
+        while ((offset = text.indexOf(needle, offset)) > -1) {
+            count++;
+            offset++;
+        }
+
+        return count;
+    }
+
+    private static int searchHorspool(char[] chars, String needle, boolean ignoreCase) {
+        HorspoolMatcher matcher = new HorspoolMatcher(needle, ignoreCase);
+
+        int count = 0;
+        int offset = 0;
+        int lastStart = chars.length - matcher.getLength();
+        while ((offset = matcher.find(chars, offset, lastStart)) != -1) {
+            count++;
+            offset += matcher.getLength();
+        }
+
+        return count;
+    }
+
+    private static String buildText() {
+        Random random = new Random(0);
+
+        // Code-like text of short tokens and line breaks
+        StringBuilder text = new StringBuilder(TEXT_LENGTH + 16);
+        while (text.length() < TEXT_LENGTH) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            text.append(random.nextInt(8) == 0 ? '\n' : ' ');
+        }
+        text.setLength(TEXT_LENGTH);
+
+        return text.toString();
+    }
+
+}
@@ -0,0 +1,125 @@
+package io.microdev.source.search;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OccurrencePatcherTest {
+
+    @Test
+    public void patchMatchesFreshScanUnderRandomEdits() throws Exception {
+        Random random = new Random(42);
+
+        for (String[] terms : new String[][] { { "aa" }, { "aa", "ab", "aab" } }) {
+            StringBuilder text = randomText(random, 400);
+
+            OccurrenceIndex index = new OccurrenceIndex();
+            OccurrencePatcher patcher = new OccurrencePatcher(terms, false);
+
+            for (String occurrence : scan(terms, text)) {
+                String[] parts = occurrence.split(":");
+                index.add(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+            }
+
+            for (int i = 0; i < 2000; i++) {
+                edit(random, text, index, patcher, false);
+                assertEquals(scan(terms, text), occurrences(index));
+            }
+        }
+    }
+
+    @Test
+    public void followMatchesFreshScanWhileSearchRuns() throws Exception {
+        Random random = new Random(7);
+
+        for (String[] terms : new String[][] { { "aa" }, { "aa", "ab", "aab" } }) {
+            for (int round = 0; round < 300; round++) {
+                StringBuilder text = randomText(random, 200);
+
+                OccurrenceIndex index = new OccurrenceIndex();
+                OccurrencePatcher patcher = new OccurrencePatcher(terms, false);
+
+                // Worker's occurrences in its snapshot, delivered a few at a time with edits in between
+                List<String> snapshot = scan(terms, text);
+                int delivered = 0;
+                while (delivered < snapshot.size()) {
+                    int count = Math.min(snapshot.size() - delivered, 1 + random.nextInt(4));
+
+                    int[] offsets = new int[count];
+                    int[] lengths = new int[count];
+                    int[] termIndices = new int[count];
+                    for (int k = 0; k < count; k++) {
+                        String[] parts = snapshot.get(delivered + k).split(":");
+                        offsets[k] = Integer.parseInt(parts[0]);
+                        lengths[k] = Integer.parseInt(parts[1]);
+                        termIndices[k] = Integer.parseInt(parts[2]);
+                    }
+                    delivered += count;
+
+                    patcher.add(index, text, offsets, lengths, termIndices);
+
+                    for (int e = random.nextInt(3); e > 0; e--) {
+                        edit(random, text, index, patcher, true);
+                    }
+                }
+
+                patcher.finish(index, text);
+
+                assertEquals(scan(terms, text), occurrences(index));
+            }
+        }
+    }
+
+    private static void edit(Random random, StringBuilder text, OccurrenceIndex index, OccurrencePatcher patcher, boolean follow) {
+        int start = random.nextInt(text.length() + 1);
+        int before = Math.min(text.length() - start, random.nextInt(4));
+        CharSequence inserted = random.nextInt(3) == 0 ? "" : randomText(random, 1 + random.nextInt(4));
+
+        text.replace(start, start + before, inserted.toString());
+
+        if (follow) {
+            patcher.follow(index, text, start, before, inserted.length());
+        } else {
+            patcher.patch(index, text, start, before, inserted.length());
+        }
+    }
+
+    private static StringBuilder randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            text.append(random.nextInt(3) == 0 ? 'b' : 'a');
+        }
+
+        return text;
+    }
+
+    private static List<String> scan(String[] terms, CharSequence text) {
+        // Same greedy scan as the search worker, over the whole text at once (as offset:length:term, to compare as a whole)
+        TermMatcher matcher = SearchEngine.newMatcher(terms, false);
+        char[] chars = text.toString().toCharArray();
+
+        List<String> occurrences = new ArrayList<>();
+        int offset = 0;
+        int occurrence;
+        while ((occurrence = matcher.find(chars, offset, chars.length - matcher.getMinLength(), chars.length)) != -1) {
+            occurrences.add(occurrence + ":" + matcher.getMatchLength() + ":" + matcher.getMatchTerm());
+            offset = occurrence + matcher.getMatchLength();
+        }
+
+        return occurrences;
+    }
+
+    private static List<String> occurrences(OccurrenceIndex index) {
+        List<String> occurrences = new ArrayList<>();
+        for (int i = index.nextValid(-1); i != -1; i = index.nextValid(i)) {
+            occurrences.add(index.getOffset(i) + ":" + index.getLength(i) + ":" + index.getTerm(i));
+        }
+
+        return occurrences;
+    }
+
+}
@@ -0,0 +1,218 @@
+package io.microdev.source.syntax;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GrammarTest {
+
+    // Bundled definitions, relative to the module
+    private static final File DEFINITIONS_DIR = new File("src/main/res/raw");
+
+    @Test
+    public void bundledGrammarsHighlightTheirLanguages() throws Exception {
+        Grammar java = GrammarCompiler.compile(readDefinition("grammar_java"));
+        assertEquals("keyword:public type:int operator:= number:0x1F comment:// x", tokens(java, "public int classy = 0x1F; // x"));
+
+        // Block comments carry on into the next line
+        assertEquals("comment:/* a", tokens(java, "/* a"));
+
+        Grammar json = GrammarCompiler.compile(readDefinition("grammar_json"));
+        assertEquals("operator:{ type:\"a\": keyword:true operator:, type:\"b\" : number:-1.5e3 operator:}", tokens(json, "{\"a\": true, \"b\" : -1.5e3}"));
+
+        // Keys need a colon followed by a space or the end of the line, so a URL value isn't one
+        Grammar yaml = GrammarCompiler.compile(readDefinition("grammar_yaml"));
+        assertEquals("type:url:  comment:# c", tokens(yaml, "url: http://x # c"));
+        assertEquals("operator:- type:nested:", tokens(yaml, "- nested:"));
+
+        // Keys run to three words at most (so the key rule gives up a few words on, not at the end of the line)
+        assertEquals("type:first name:  comment:# c", tokens(yaml, "first name: Ann # c"));
+        assertEquals("", tokens(yaml, "one two three four five six seven"));
+
+        Grammar xml = GrammarCompiler.compile(readDefinition("grammar_xml"));
+        assertEquals("keyword:<a type:href operator:= string:\"x\" keyword:> number:&amp; keyword:</a>", tokens(xml, "<a href=\"x\">&amp;</a>"));
+
+        Grammar shell = GrammarCompiler.compile(readDefinition("grammar_shell"));
+        assertEquals("keyword:if type:$HOME operator:; keyword:then string:\"${x}\" comment:#y", tokens(shell, "if [ $HOME ]; then echo \"${x}\" #y"));
+    }
+
+    @Test
+    public void longestMatchWinsThenFirstRule() throws Exception {
+        Grammar grammar = GrammarCompiler.compile(""
+                + "mode a\n"
+                + "keyword if\n"
+                + "plain [a-z]+\n"
+                + "number [0-9]+  > b\n"
+                + "mode b string\n"
+                + "comment x$  > a\n");
+
+        // Equal lengths go to the keyword, longer words to the identifier
+        assertEquals("keyword:if", tokens(grammar, "if iffy"));
+
+        // Switching modes, then back at the end of the line
+        List<String> tokens = new ArrayList<>();
+        assertEquals(0, grammar.tokenizeLine("1 xx", 0, 4, 0, collect("1 xx", tokens)));
+        assertEquals("[number:1, string: x, comment:x]", tokens.toString());
+    }
+
+    @Test
+    public void tablesSurviveTheCache() throws Exception {
+        String definition = readDefinition("grammar_java");
+        Grammar grammar = GrammarCompiler.compile(definition);
+
+        // Same tables and same tokens after a write and read
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        grammar.write(new DataOutputStream(bytes));
+        Grammar read = Grammar.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(grammar.getStateCount(), read.getStateCount());
+        assertEquals(tokens(grammar, "static final String s = \"\\\"\"; /* */"), tokens(read, "static final String s = \"\\\"\"; /* */"));
+
+        // Cache stores it under its name
+        File cacheDir = File.createTempFile("grammar", "test");
+        assertTrue(cacheDir.delete() && cacheDir.mkdir());
+
+        String name = "test-" + System.nanoTime();
+        assertNotNull(new GrammarCache(cacheDir).load(name, definition));
+        assertTrue(new File(cacheDir, "grammars/" + name + ".grammar").isFile());
+
+        // And hands out the same one from memory from then on
+        assertSame(GrammarCache.getLoaded(name), new GrammarCache(cacheDir).load(name, definition));
+    }
+
+    @Test
+    public void corruptCacheIsCompiledAgain() throws Exception {
+        String definition = readDefinition("grammar_json");
+        Grammar grammar = GrammarCompiler.compile(definition);
+
+        // Tables that don't fit together are refused, even without a checksum to catch them
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        grammar.write(new DataOutputStream(bytes));
+        byte[] tables = bytes.toByteArray();
+        int transitionsAt = 4 + 4 * ByteBuffer.wrap(tables).getInt(0) + 4;
+        ByteBuffer.wrap(tables).putInt(transitionsAt, Integer.MAX_VALUE);
+        try {
+            Grammar.read(new DataInputStream(new ByteArrayInputStream(tables)));
+            fail("Read tables that don't fit together");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        // A stored grammar with a flipped byte is a miss, and is compiled again
+        File cacheDir = File.createTempFile("grammar", "test");
+        assertTrue(cacheDir.delete() && cacheDir.mkdir());
+
+        String name = "test-" + System.nanoTime();
+        new GrammarCache(cacheDir).load(name, definition);
+
+        File file = new File(cacheDir, "grammars/" + name + ".grammar");
+        byte[] stored = readFile(file);
+        stored[stored.length - 1] ^= 1;
+
+        String nameCorrupt = name + "-corrupt";
+        writeFile(new File(cacheDir, "grammars/" + nameCorrupt + ".grammar"), stored);
+
+        Grammar read = new GrammarCache(cacheDir).load(nameCorrupt, definition);
+        assertEquals(tokens(grammar, "{\"a\": [1, null]}"), tokens(read, "{\"a\": [1, null]}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badPatternIsRejected() throws Exception {
+        GrammarCompiler.compile("mode a\nplain (ab\n");
+    }
+
+    private static String tokens(Grammar grammar, String line) {
+        List<String> tokens = new ArrayList<>();
+        grammar.tokenizeLine(line, 0, line.length(), grammar.getInitialState(), collect(line, tokens));
+
+        // Styled tokens only, as style:text
+        StringBuilder builder = new StringBuilder();
+        for (String token : tokens) {
+            if (!token.startsWith("plain:")) {
+                builder.append(builder.length() == 0 ? "" : " ").append(token);
+            }
+        }
+
+        return builder.toString();
+    }
+
+    private static Lexer.Sink collect(final String line, final List<String> tokens) {
+        final String[] names = { "plain", "keyword", "type", "string", "number", "comment", "operator" };
+
+        return new Lexer.Sink() {
+
+            private int lastStyle = -1;
+            private int lastEnd = -1;
+
+            @Override
+            public void addToken(int start, int end, int style) {
+                // Runs of the same style read as one token
+                if (style == lastStyle && start == lastEnd) {
+                    tokens.set(tokens.size() - 1, tokens.get(tokens.size() - 1) + line.substring(start, end));
+                } else {
+                    tokens.add(names[style] + ":" + line.substring(start, end));
+                }
+
+                lastStyle = style;
+                lastEnd = end;
+            }
+
+        };
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            in.readFully(bytes);
+
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String readDefinition(String name) throws Exception {
+        Reader reader = new InputStreamReader(new FileInputStream(new File(DEFINITIONS_DIR, name + ".txt")), "UTF-8");
+
+        try {
+            StringBuilder text = new StringBuilder();
+
+            char[] buffer = new char[4096];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+}
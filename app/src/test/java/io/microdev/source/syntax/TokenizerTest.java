@@ -0,0 +1,235 @@
+package io.microdev.source.syntax;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import io.microdev.source.widget.editor.LineIndex;
+
+import static org.junit.Assert.*;
+
+public class TokenizerTest {
+
+    // Enough of a C-like language to need state carried from line to line
+    private static final Grammar GRAMMAR = GrammarCompiler.compile(""
+            + "mode code\n"
+            + "comment //.*\n"
+            + "comment /\\*  > block_comment\n"
+            + "string \"([^\"\\\\]|\\\\.)*\"?\n"
+            + "number [0-9][0-9A-Za-z_.]*\n"
+            + "keyword (class|return)\n"
+            + "type int\n"
+            + "plain [A-Za-z_][A-Za-z0-9_]*\n"
+            + "operator [-+*/=<>!&|]\n"
+            + "mode block_comment comment\n"
+            + "comment \\*/  > code\n");
+
+    @Test
+    public void tokenizesLineRelativeToItsStart() throws Exception {
+        Document document = new Document("x\nint a = \"b\"; // c\n");
+
+        assertEquals(3, document.tokenize());
+
+        // Keyword, operator, string, comment, with starts counted from the start of the line
+        assertArrayEquals(new int[] { 0, 3, TokenStyle.TYPE, 6, 1, TokenStyle.OPERATOR, 8, 3, TokenStyle.STRING, 13, 4, TokenStyle.COMMENT }, document.tokenizer.getLineTokens(1));
+        assertArrayEquals(new int[0], document.tokenizer.getLineTokens(0));
+    }
+
+    @Test
+    public void editRelexesOnlyUntilStateMatches() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("int value").append(i).append(" = ").append(i).append(";\n");
+        }
+
+        Document document = new Document(text.toString());
+        assertEquals(5001, document.tokenize());
+
+        // Typing within a line leaves every other line as it was
+        document.replace(document.lines.getLineStart(2500) + 3, 0, " x");
+        assertEquals(1, document.tokenize());
+
+        // Opening a comment carries on to the end of the document, closing it again settles right after
+        int offset = document.lines.getLineStart(100);
+        document.replace(offset, 0, "/*");
+        assertEquals(4901, document.tokenize());
+        assertArrayEquals(new int[] { 0, document.lines.getLineEnd(4000) - document.lines.getLineStart(4000), TokenStyle.COMMENT }, document.tokenizer.getLineTokens(4000));
+
+        document.replace(document.lines.getLineStart(102), 0, "*/");
+        assertEquals(4899, document.tokenize());
+        document.replace(document.lines.getLineStart(102), 2, "");
+        document.replace(document.lines.getLineEnd(103), 0, "*/");
+        assertEquals(2, document.tokenize());
+    }
+
+    @Test
+    public void incrementalMatchesFromScratchUnderRandomEdits() throws Exception {
+        String[] snippets = { "int", " ", "\n", "/*", "*/", "//", "\"", "x", "42", "return", ";" };
+        Random random = new Random(42);
+
+        Document document = new Document("class A {\n    int a = 1; /* one\n    two */\n}\n");
+        document.tokenize();
+
+        for (int i = 0; i < 2000; i++) {
+            int start = random.nextInt(document.text.length() + 1);
+            int before = Math.min(document.text.length() - start, random.nextInt(4));
+            document.replace(start, before, random.nextInt(3) == 0 ? "" : snippets[random.nextInt(snippets.length)]);
+
+            // Let a few edits pile up before lexing, some of the time
+            if (random.nextInt(3) == 0) {
+                document.tokenize();
+
+                Document expected = new Document(document.text.toString());
+                expected.tokenize();
+
+                for (int line = 0; line < document.lines.getLineCount(); line++) {
+                    assertArrayEquals(expected.tokenizer.getLineTokens(line), document.tokenizer.getLineTokens(line));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void batchesStartOnScreenThenSweepFromTop() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("int a = ").append(i).append(";\n");
+        }
+
+        Document document = new Document(text.toString());
+
+        // Lines on screen go first
+        Tokenizer.Batch batch = document.tokenizer.prepare(document.text, document.lines, 3000, 3040);
+        assertEquals(3000, batch.getLineFirst());
+        batch.run();
+        assertEquals(batch.getLineCount(), document.tokenizer.apply(batch, null));
+        assertTrue(document.tokenizer.isLineTokenized(3040));
+
+        // Then everything else, from the top, until the sweep meets lines already done
+        int batches = 0;
+        while ((batch = document.tokenizer.prepare(document.text, document.lines, 3000, 3040)) != null) {
+            assertTrue(batch.getLineFirst() < 3000 || batch.getLineFirst() >= 3000 + 500);
+            batch.run();
+            document.tokenizer.apply(batch, null);
+            batches++;
+        }
+        assertTrue(document.tokenizer.isTokenized());
+        assertTrue(batches < 5000 / 100);
+    }
+
+    @Test
+    public void batchDropsLinesEditedWhileItRan() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("int a = ").append(i).append(";\n");
+        }
+
+        Document document = new Document(text.toString());
+
+        // Lines added above the batch move it down, a change within it cuts it short
+        Tokenizer.Batch batch = document.tokenizer.prepare(document.text, document.lines, 10, 20);
+        batch.run();
+        document.replace(0, 0, "\n\n");
+        document.replace(document.lines.getLineStart(42), 0, "x");
+        assertEquals(42 - 12, document.tokenizer.apply(batch, null));
+        assertTrue(document.tokenizer.isLineTokenized(12));
+        assertTrue(document.tokenizer.isLineTokenized(41));
+        assertFalse(document.tokenizer.isLineTokenized(42));
+        assertFalse(document.tokenizer.isLineTokenized(11));
+
+        // A new lexer throws out the lot
+        batch = document.tokenizer.prepare(document.text, document.lines, -1, -1);
+        batch.run();
+        document.tokenizer.setLexer(GRAMMAR);
+        assertEquals(-1, document.tokenizer.apply(batch, null));
+    }
+
+    @Test
+    public void batchesMatchFromScratchUnderRandomEdits() throws Exception {
+        String[] snippets = { "int", " ", "\n", "\n\n", "/*", "*/", "//", "\"", "x", "42", ";" };
+        Random random = new Random(7);
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append(snippets[random.nextInt(snippets.length)]);
+        }
+
+        Document document = new Document(text.toString());
+        Tokenizer.Batch batch = null;
+
+        for (int i = 0; i < 3000; i++) {
+            // Edits land while a batch is out being lexed
+            if (batch == null) {
+                int line = random.nextInt(document.lines.getLineCount());
+                batch = document.tokenizer.prepare(document.text, document.lines, line, line + 10);
+                if (batch != null) {
+                    batch.run();
+                }
+            }
+
+            if (random.nextBoolean()) {
+                int start = random.nextInt(document.text.length() + 1);
+                int before = Math.min(document.text.length() - start, random.nextInt(4));
+                document.replace(start, before, random.nextInt(3) == 0 ? "" : snippets[random.nextInt(snippets.length)]);
+            } else if (batch != null) {
+                document.tokenizer.apply(batch, null);
+                batch = null;
+            }
+        }
+
+        if (batch != null) {
+            document.tokenizer.apply(batch, null);
+        }
+
+        // Finish off with batches alone
+        while ((batch = document.tokenizer.prepare(document.text, document.lines, -1, -1)) != null) {
+            batch.run();
+            document.tokenizer.apply(batch, null);
+        }
+
+        Document expected = new Document(document.text.toString());
+        expected.tokenize();
+
+        for (int line = 0; line < document.lines.getLineCount(); line++) {
+            assertArrayEquals(expected.tokenizer.getLineTokens(line), document.tokenizer.getLineTokens(line));
+        }
+    }
+
+    private static class Document {
+
+        private final StringBuilder text;
+        private final LineIndex lines;
+        private final Tokenizer tokenizer;
+
+        private Document(String text) {
+            this.text = new StringBuilder(text);
+
+            lines = new LineIndex();
+            lines.reset(text);
+
+            tokenizer = new Tokenizer();
+            tokenizer.reset(lines.getLineCount());
+            tokenizer.setLexer(GRAMMAR);
+        }
+
+        private void replace(int start, int before, String insert) {
+            // Same bookkeeping as the editor does on a change
+            int line = lines.getLineForOffset(start);
+            int linesRemoved = lines.getLineForOffset(start + before) - line;
+
+            text.replace(start, start + before, insert);
+            lines.onTextChanged(text, start, before, insert.length());
+
+            tokenizer.onLinesChanged(line, linesRemoved, lines.getLineForOffset(start + insert.length()) - line);
+        }
+
+        private int tokenize() {
+            int lexed = tokenizer.tokenize(text, lines, Integer.MAX_VALUE, null);
+            assertTrue(tokenizer.isTokenized());
+
+            return lexed;
+        }
+
+    }
+
+}
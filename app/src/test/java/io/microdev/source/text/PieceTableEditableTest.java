@@ -0,0 +1,134 @@
+package io.microdev.source.text;
+
+import android.text.Editable;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PieceTableEditableTest {
+
+    @Test
+    public void insertionMovesPointsAndLeavesMarks() throws Exception {
+        PieceTableEditable text = new PieceTableEditable("hello world");
+
+        Object point = new Object();
+        Object mark = new Object();
+        Object inclusive = new Object();
+        text.setSpan(point, 5, 5, Spanned.SPAN_POINT_POINT);
+        text.setSpan(mark, 5, 5, Spanned.SPAN_MARK_MARK);
+        text.setSpan(inclusive, 0, 5, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+
+        text.insert(5, ",");
+
+        assertEquals("hello, world", text.toString());
+        assertEquals(6, text.getSpanStart(point));
+        assertEquals(5, text.getSpanStart(mark));
+        assertEquals(0, text.getSpanStart(inclusive));
+        assertEquals(6, text.getSpanEnd(inclusive));
+
+        // Text after a span moves it along whatever its flags
+        text.insert(0, ">");
+        assertEquals(7, text.getSpanStart(point));
+        assertEquals(6, text.getSpanStart(mark));
+    }
+
+    @Test
+    public void exclusiveSpanGoesWithItsText() throws Exception {
+        PieceTableEditable text = new PieceTableEditable("one two three");
+
+        Object exclusive = new Object();
+        Object inclusive = new Object();
+        Object empty = new Object();
+        text.setSpan(exclusive, 4, 7, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(inclusive, 4, 7, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        text.setSpan(empty, 4, 4, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        text.delete(4, 7);
+
+        assertEquals("one  three", text.toString());
+        assertEquals(-1, text.getSpanStart(exclusive));
+        assertEquals(4, text.getSpanStart(inclusive));
+        assertEquals(4, text.getSpanEnd(inclusive));
+
+        // Spans that were empty to begin with stay
+        assertEquals(4, text.getSpanStart(empty));
+    }
+
+    @Test
+    public void watchersHearTextThenSpans() throws Exception {
+        PieceTableEditable text = new PieceTableEditable("abcdef");
+
+        final List<String> events = new ArrayList<>();
+
+        Object moved = new Object();
+        Object removed = new Object();
+        Object untouched = new Object();
+        text.setSpan(untouched, 0, 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(moved, 4, 6, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(removed, 2, 3, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        text.setSpan(new Watcher(events), 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        events.clear();
+
+        text.replace(2, 4, "X");
+
+        // Text watchers in turn, then span watchers in the order spans were set (the watcher's own span shrank too)
+        List<String> expected = new ArrayList<>();
+        expected.add("before 2 2 1");
+        expected.add("on 2 2 1");
+        expected.add("after");
+        expected.add("changed 4 6 3 5");
+        expected.add("removed 2 3");
+        expected.add("changed 0 6 0 5");
+        assertEquals(expected, events);
+    }
+
+    private static class Watcher implements TextWatcher, SpanWatcher {
+
+        private final List<String> events;
+
+        private Watcher(List<String> events) {
+            this.events = events;
+        }
+
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            events.add("before " + start + " " + count + " " + after);
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            events.add("on " + start + " " + before + " " + count);
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            events.add("after");
+        }
+
+        @Override
+        public void onSpanAdded(Spannable text, Object what, int start, int end) {
+            events.add("added " + start + " " + end);
+        }
+
+        @Override
+        public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+            events.add("removed " + start + " " + end);
+        }
+
+        @Override
+        public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+            events.add("changed " + ostart + " " + oend + " " + nstart + " " + nend);
+        }
+
+    }
+
+}
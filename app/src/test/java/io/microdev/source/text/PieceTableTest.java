@@ -0,0 +1,71 @@
+package io.microdev.source.text;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PieceTableTest {
+
+    @Test
+    public void matchesStringBuilderUnderRandomEdits() throws Exception {
+        Random random = new Random(42);
+
+        StringBuilder expected = new StringBuilder("The quick brown fox\njumps over\nthe lazy dog\n");
+        PieceTable table = new PieceTable(expected.toString());
+
+        for (int i = 0; i < 5000; i++) {
+            int start = random.nextInt(expected.length() + 1);
+            int end = Math.min(expected.length(), start + random.nextInt(8));
+            String text = random.nextInt(3) == 0 ? "" : Integer.toString(i, 36);
+
+            expected.replace(start, end, text);
+            table.replace(start, end, text, 0, text.length());
+
+            assertEquals(expected.length(), table.length());
+        }
+
+        assertEquals(expected.toString(), table.toString());
+
+        // Bulk copies and single chars agree, from any piece
+        int start = expected.length() / 3;
+        char[] chars = new char[expected.length() / 3];
+        table.getChars(start, start + chars.length, chars, 0);
+        assertEquals(expected.substring(start, start + chars.length), new String(chars));
+        assertEquals(expected.charAt(start), table.charAt(start));
+    }
+
+    @Test
+    public void snapshotIsUnaffectedByLaterEdits() throws Exception {
+        PieceTable table = new PieceTable("hello world");
+        table.replace(5, 5, ",", 0, 1);
+
+        PieceTable.Snapshot snapshot = table.snapshot();
+
+        // Enough typing to outgrow the add buffer, plus a deletion across the snapshot's pieces
+        for (int i = 0; i < 1000; i++) {
+            table.replace(table.length(), table.length(), "!", 0, 1);
+        }
+        table.replace(0, 8, "", 0, 0);
+
+        assertEquals("hello, world", snapshot.toString());
+        assertEquals("world", snapshot.subSequence(7, 12).toString());
+        assertEquals('w', snapshot.charAt(7));
+    }
+
+    @Test
+    public void typingExtendsOnePiece() throws Exception {
+        PieceTable table = new PieceTable("0123456789");
+
+        // Type a word in the middle, one char at a time
+        for (int i = 0; i < 100; i++) {
+            table.replace(5 + i, 5 + i, "x", 0, 1);
+        }
+
+        // Original halves either side of one piece of typed text
+        assertEquals(3, table.getPieceCount());
+        assertEquals(110, table.length());
+    }
+
+}
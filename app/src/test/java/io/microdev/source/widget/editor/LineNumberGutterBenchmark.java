@@ -0,0 +1,100 @@
+package io.microdev.source.widget.editor;
+
+public class LineNumberGutterBenchmark {
+
+    private static final int LINE_HEIGHT = 24;
+    private static final int VIEWPORT_HEIGHT = 1920;
+
+    private static final int WARMUP_FRAMES = 20000;
+    private static final int MEASURED_FRAMES = 100000;
+
+    public static void main(String[] args) {
+        for (int lines : new int[] { 1000, 10000, 100000 }) {
+            run(lines);
+        }
+    }
+
+    private static void run(int lines) {
+        // Build a document of short lines, every fourth of which soft-wraps once
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append(i % 4 == 0 ? "a long line that wraps once" : "short line");
+            text.append('\n');
+        }
+
+        LineIndex lineIndex = new LineIndex();
+        lineIndex.reset(text);
+
+        FakeLayout layout = new FakeLayout(lineIndex);
+        LineNumberGutter<int[]> gutter = new LineNumberGutter<>(layout, lineIndex);
+
+        // Draw frames scrolled to the middle of the document
+        int scrollY = layout.getLineCount() * LINE_HEIGHT / 2;
+        int[] drawn = new int[1];
+
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            gutter.draw(drawn, scrollY, scrollY + VIEWPORT_HEIGHT, 100f);
+        }
+
+        drawn[0] = 0;
+        long timeStart = System.nanoTime();
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            gutter.draw(drawn, scrollY, scrollY + VIEWPORT_HEIGHT, 100f);
+        }
+        long timeElapsed = System.nanoTime() - timeStart;
+
+        System.out.printf("%7d lines: %8.1f ns/frame, %d numbers drawn per frame%n", lines, (double) timeElapsed / MEASURED_FRAMES, drawn[0] / MEASURED_FRAMES);
+    }
+
+    private static class FakeLayout implements LineNumberGutter.Host<int[]> {
+
+        private int[] layoutLineStarts;
+        private int layoutLineCount;
+
+        private FakeLayout(LineIndex lineIndex) {
+            layoutLineStarts = new int[lineIndex.getLineCount() * 2];
+
+            // Break each logical line longer than 16 chars into two layout lines
+            for (int i = 0; i < lineIndex.getLineCount(); i++) {
+                int start = lineIndex.getLineStart(i);
+                layoutLineStarts[layoutLineCount++] = start;
+
+                if (lineIndex.getLineEnd(i) - start > 16) {
+                    layoutLineStarts[layoutLineCount++] = start + 16;
+                }
+            }
+        }
+
+        @Override
+        public int getLineCount() {
+            return layoutLineCount;
+        }
+
+        @Override
+        public int getLineForVertical(int vertical) {
+            return Math.max(0, Math.min(layoutLineCount - 1, vertical / LINE_HEIGHT));
+        }
+
+        @Override
+        public int getLineStart(int line) {
+            return layoutLineStarts[line];
+        }
+
+        @Override
+        public int getLineBaseline(int line) {
+            return (line + 1) * LINE_HEIGHT;
+        }
+
+        @Override
+        public float measureText(char[] text, int index, int count) {
+            return 10f * count;
+        }
+
+        @Override
+        public void drawLineNumber(int[] canvas, char[] text, int index, int count, float x, int baseline) {
+            canvas[0]++;
+        }
+
+    }
+
+}
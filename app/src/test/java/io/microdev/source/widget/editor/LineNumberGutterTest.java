@@ -0,0 +1,150 @@
+package io.microdev.source.widget.editor;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class LineNumberGutterTest {
+
+    private static final int LINE_HEIGHT = 20;
+
+    @Test
+    public void drawsOnlyVisibleLineNumbers() throws Exception {
+        LineIndex lineIndex = index(1000);
+        RecordingHost host = new RecordingHost(lineIndex.getLineCount());
+
+        new LineNumberGutter<>(host, lineIndex).draw(host, 100 * LINE_HEIGHT, 110 * LINE_HEIGHT, 50f);
+
+        assertEquals(11, host.drawCount);
+        assertEquals("111", host.lastText);
+    }
+
+    @Test
+    public void rightAlignsWithCachedDigitWidths() throws Exception {
+        LineIndex lineIndex = index(200);
+        RecordingHost host = new RecordingHost(lineIndex.getLineCount());
+        LineNumberGutter<CountingHost> gutter = new LineNumberGutter<>(host, lineIndex);
+
+        assertEquals(30f, gutter.measureNumber(123), 0f);
+
+        gutter.draw(host, 149 * LINE_HEIGHT, 149 * LINE_HEIGHT, 100f);
+        assertEquals("150", host.lastText);
+        assertEquals(70f, host.lastX, 0f);
+
+        // Digits are measured once until invalidated
+        assertEquals(10, host.measureCount);
+        gutter.invalidateDigitWidths();
+        gutter.measureNumber(1);
+        assertEquals(20, host.measureCount);
+    }
+
+    @Test
+    public void steadyStateDrawDoesNotAllocate() throws Exception {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        LineIndex lineIndex = index(100000);
+        CountingHost host = new CountingHost(lineIndex.getLineCount());
+        LineNumberGutter<CountingHost> gutter = new LineNumberGutter<>(host, lineIndex);
+
+        int frames = 2000;
+
+        // Warm up, then measure the allocation counter's own overhead
+        for (int i = 0; i < frames; i++) {
+            gutter.draw(host, i * LINE_HEIGHT, i * LINE_HEIGHT + 1080, 50f);
+        }
+        long overheadStart = threadBean.getThreadAllocatedBytes(threadId);
+        long overhead = threadBean.getThreadAllocatedBytes(threadId) - overheadStart;
+
+        long allocatedStart = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < frames; i++) {
+            gutter.draw(host, i * LINE_HEIGHT, i * LINE_HEIGHT + 1080, 50f);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedStart - overhead;
+
+        // Even a single small allocation per drawn line would add up to far more than this
+        assertTrue("Gutter allocated " + allocated + " bytes drawing " + host.drawCount + " lines", allocated < host.drawCount);
+    }
+
+    private static LineIndex index(int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("line\n");
+        }
+
+        LineIndex lineIndex = new LineIndex();
+        lineIndex.reset(text);
+
+        return lineIndex;
+    }
+
+    private static class CountingHost implements LineNumberGutter.Host<CountingHost> {
+
+        private int lineCount;
+        private int lineStride;
+
+        int drawCount;
+        int measureCount;
+
+        private CountingHost(int lineCount) {
+            this.lineCount = lineCount;
+
+            // Each "line\n" is one layout line five chars long
+            lineStride = 5;
+        }
+
+        @Override
+        public int getLineCount() {
+            return lineCount;
+        }
+
+        @Override
+        public int getLineForVertical(int vertical) {
+            return Math.max(0, Math.min(lineCount - 1, vertical / LINE_HEIGHT));
+        }
+
+        @Override
+        public int getLineStart(int line) {
+            return line * lineStride;
+        }
+
+        @Override
+        public int getLineBaseline(int line) {
+            return (line + 1) * LINE_HEIGHT;
+        }
+
+        @Override
+        public float measureText(char[] text, int index, int count) {
+            measureCount++;
+            return 10f * count;
+        }
+
+        @Override
+        public void drawLineNumber(CountingHost canvas, char[] text, int index, int count, float x, int baseline) {
+            drawCount++;
+        }
+
+    }
+
+    private static class RecordingHost extends CountingHost {
+
+        String lastText;
+        float lastX;
+
+        private RecordingHost(int lineCount) {
+            super(lineCount);
+        }
+
+        @Override
+        public void drawLineNumber(CountingHost canvas, char[] text, int index, int count, float x, int baseline) {
+            super.drawLineNumber(canvas, text, index, count, x, baseline);
+
+            lastText = new String(text, index, count);
+            lastX = x;
+        }
+
+    }
+
+}